@@ -19,6 +19,7 @@ import (
 	"errors"
 	"fmt"
 	"strings"
+	"time"
 
 	"localhost/Intra/Android/app/src/go/doh"
 	"localhost/Intra/Android/app/src/go/intra/protect"
@@ -27,6 +28,10 @@ import (
 // DoHServer represents a DNS-over-HTTPS server.
 type DoHServer struct {
 	r doh.Resolver
+
+	// probeCtx is canceled by Cancel, to abort probes of this server.
+	probeCtx    context.Context
+	cancelProbe context.CancelFunc
 }
 
 // NewDoHServer creates a DoHServer that connects to the specified DoH server.
@@ -41,17 +46,79 @@ type DoHServer struct {
 // listener will be notified after each DNS query succeeds or fails.
 func NewDoHServer(
 	url string, ipsStr string, protector protect.Protector, listener DoHListener,
+) (*DoHServer, error) {
+	return NewWarmDoHServer(url, ipsStr, "", protector, listener)
+}
+
+// NewWarmDoHServer is like [NewDoHServer], but also keeps the server's TLS session state and
+// working IP address in warmStartDir, which should be in app-private storage.  A DoHServer created
+// later for the same server reuses them, so its first query can skip DNS bootstrap and resume the
+// TLS session on a known-good address.  If warmStartDir is empty, nothing is stored.
+func NewWarmDoHServer(
+	url string, ipsStr string, warmStartDir string, protector protect.Protector, listener DoHListener,
 ) (*DoHServer, error) {
 	ips := []string{}
 	if len(ipsStr) > 0 {
 		ips = strings.Split(ipsStr, ",")
 	}
 	dialer := protect.MakeDialer(protector)
-	t, err := doh.NewResolver(url, ips, dialer, nil, makeInternalDoHListener(listener))
+	t, err := doh.NewWarmResolver(url, ips, warmStartDir, dialer, nil, makeInternalDoHListener(listener))
+	if err != nil {
+		return nil, err
+	}
+	ctx, cancel := context.WithCancel(context.Background())
+	return &DoHServer{r: t, probeCtx: ctx, cancelProbe: cancel}, nil
+}
+
+// DoHServerList is an ordered list of [DoHServer]s, for [NewDoHServerPool].
+// (It is required cuz gomobile doesn't support slices of objects.)
+type DoHServerList struct {
+	servers []*DoHServer
+}
+
+// NewDoHServerList creates an empty [DoHServerList].
+func NewDoHServerList() *DoHServerList {
+	return &DoHServerList{}
+}
+
+// Add appends s to the list.
+func (l *DoHServerList) Add(s *DoHServer) {
+	l.servers = append(l.servers, s)
+}
+
+// NewDoHServerPool creates a DoHServer that sends each query to whichever server in servers is
+// currently fastest and most reliable, and fails over to another one when a server stops responding.
+//
+// The first server is preferred until the others have been measured, so it should be the user's
+// chosen server.  Queries are reported to the listeners of the individual servers.
+//
+// If hedge is true, a query that is slower than usual is also sent to the next best server, and the
+// first answer is used.  See [DoHQuerySumary].GetHedges.
+func NewDoHServerPool(servers *DoHServerList, hedge bool) (*DoHServer, error) {
+	resolvers := make([]doh.Resolver, len(servers.servers))
+	for i, s := range servers.servers {
+		resolvers[i] = s.r
+	}
+	r, err := doh.NewPool(resolvers, hedge)
 	if err != nil {
 		return nil, err
 	}
-	return &DoHServer{t}, nil
+	ctx, cancel := context.WithCancel(context.Background())
+	return &DoHServer{r: r, probeCtx: ctx, cancelProbe: cancel}, nil
+}
+
+// Cancel aborts any [Probe] of this server that is in progress, and makes later probes fail.
+// It does not affect a [Session] using this server.
+func (s *DoHServer) Cancel() {
+	s.cancelProbe()
+}
+
+// Retire closes the server's connections once its in-flight queries finish, and stops refreshing its
+// cached answers.  Call it on a server that will never be passed to [Session].SetDoHServer, such as
+// one that was superseded while warming up.  A [Session] retires the servers it replaces on its own.
+func (s *DoHServer) Retire() {
+	s.cancelProbe()
+	doh.Retire(s.r)
 }
 
 // dohQuery is used by [DoHServer].Probe.
@@ -73,9 +140,18 @@ var dohQuery = []byte{
 
 // Probe checks whether the [DoHServer] server can handle DNS-over-HTTPS (DoH) requests.
 //
+// timeoutMs is the deadline for the whole probe, in milliseconds.  The probe also fails early if
+// [DoHServer].Cancel is called.  The deadline doesn't cover creating s; see [DoHProbe].
+//
 // If the server responds correctly, the function returns nil. Otherwise, the function returns an error.
-func Probe(s *DoHServer) error {
-	resp, err := s.r.Query(context.Background(), dohQuery)
+func Probe(s *DoHServer, timeoutMs int64) error {
+	ctx, cancel := context.WithTimeout(s.probeCtx, time.Duration(timeoutMs)*time.Millisecond)
+	defer cancel()
+	return probe(ctx, s)
+}
+
+func probe(ctx context.Context, s *DoHServer) error {
+	resp, err := s.r.Query(ctx, dohQuery)
 	if err != nil {
 		return fmt.Errorf("failed to send query: %w", err)
 	}
@@ -85,6 +161,78 @@ func Probe(s *DoHServer) error {
 	return nil
 }
 
+// DoHProbe checks whether a DoH server works.  Unlike [Probe], it also creates the [DoHServer],
+// so that its deadline and cancellation cover the DNS lookup of the server's hostname, which
+// [NewDoHServer] performs without a deadline.
+type DoHProbe struct {
+	ctx    context.Context
+	cancel context.CancelFunc
+}
+
+// NewDoHProbe creates a [DoHProbe].  Each DoHProbe should only be run once.
+func NewDoHProbe() *DoHProbe {
+	ctx, cancel := context.WithCancel(context.Background())
+	return &DoHProbe{ctx: ctx, cancel: cancel}
+}
+
+// Cancel aborts the probe if it is running, and makes it fail if it has not started yet.
+func (p *DoHProbe) Cancel() {
+	p.cancel()
+}
+
+// Run checks whether the DoH server at url can handle DNS-over-HTTPS requests.  url, ipsStr and
+// protector are as in [NewDoHServer].
+//
+// timeoutMs is the deadline for the whole probe, including the DNS lookup, in milliseconds.  The
+// probe also fails early if [DoHProbe].Cancel is called.
+//
+// If the server responds correctly, the function returns nil. Otherwise, the function returns an error.
+func (p *DoHProbe) Run(url string, ipsStr string, protector protect.Protector, timeoutMs int64) error {
+	ctx, cancel := context.WithTimeout(p.ctx, time.Duration(timeoutMs)*time.Millisecond)
+	defer cancel()
+
+	type result struct {
+		s   *DoHServer
+		err error
+	}
+	created := make(chan result, 1)
+	go func() {
+		// The lookup can't be interrupted, so it is abandoned if the deadline passes first.
+		s, err := NewDoHServer(url, ipsStr, protector, nil)
+		created <- result{s, err}
+	}()
+	var s *DoHServer
+	select {
+	case r := <-created:
+		if r.err != nil {
+			return r.err
+		}
+		s = r.s
+	case <-ctx.Done():
+		return fmt.Errorf("failed to bootstrap: %w", ctx.Err())
+	}
+	defer s.Retire()
+	return probe(ctx, s)
+}
+
+// Prewarm connects the [DoHServer] to its server ahead of use, completing the TCP and TLS handshakes
+// and the HTTP/2 preface, so that the first query it handles does not wait for them.  Call it on a
+// new server before passing it to [Session].SetDoHServer.
+//
+// timeoutMs is the deadline for warming up, in milliseconds.  Prewarm also fails early if
+// [DoHServer].Cancel is called.  A server that fails to warm up can still be used.
+//
+// For a server pool, Prewarm returns once the preferred server is warm.  The backup servers keep
+// warming in the background until the same deadline, or until [DoHServer].Cancel or
+// [DoHServer].Retire is called.
+func Prewarm(s *DoHServer, timeoutMs int64) error {
+	timeout := time.Duration(timeoutMs) * time.Millisecond
+	ctx, cancel := context.WithTimeout(s.probeCtx, timeout)
+	// Not canceled on return, so that backup servers can finish warming up.
+	time.AfterFunc(timeout, cancel)
+	return doh.Prewarm(ctx, s.r)
+}
+
 ////////// event listeners
 
 // DoHQueryToken is an opaque object used to match responses to queries.
@@ -102,6 +250,10 @@ type DoHListener interface {
 
 	// OnResponse will be called when a DoH response has been received.
 	OnResponse(DoHQueryToken, *DoHQuerySumary)
+
+	// OnCacheStats will be called periodically with the cache statistics of each server, and when
+	// a server is retired.
+	OnCacheStats(*DoHCacheStats)
 }
 
 // DoHStatus is an integer representing the status of a DoH transaction.
@@ -114,6 +266,7 @@ const (
 	DoHStatusBadQuery      DoHStatus = doh.BadQuery      // Malformed input
 	DoHStatusBadResponse   DoHStatus = doh.BadResponse   // Response was invalid
 	DoHStatusInternalError DoHStatus = doh.InternalError // This should never happen
+	DoHStatusCached        DoHStatus = doh.Cached        // Answered from the resolver's cache
 )
 
 // DoHQuerySumary is the summary of a DNS transaction.
@@ -129,6 +282,23 @@ func (q DoHQuerySumary) GetStatus() DoHStatus { return q.summ.Status }
 func (q DoHQuerySumary) GetHTTPStatus() int   { return q.summ.HTTPStatus }
 func (q DoHQuerySumary) GetLatency() float64  { return q.summ.Latency }
 
+// IsHedge returns whether this query was a duplicate of a slow query, sent to another server.
+func (q DoHQuerySumary) IsHedge() bool { return q.summ.Hedge }
+
+// GetHedges returns the number of duplicates of this query sent to other servers.
+func (q DoHQuerySumary) GetHedges() int { return q.summ.Hedges }
+
+// DoHCacheStats counts the DNS queries answered from a server's cache, the queries it had to send,
+// and the queries it sent to refresh popular answers before they expired, since the previous report.
+// It will be reported to [DoHListener].OnCacheStats.
+type DoHCacheStats struct {
+	stats *doh.CacheStats
+}
+
+func (s DoHCacheStats) GetHits() int       { return s.stats.Hits }
+func (s DoHCacheStats) GetMisses() int     { return s.stats.Misses }
+func (s DoHCacheStats) GetPrefetches() int { return s.stats.Prefetches }
+
 // dohListenerAdapter is an adapter for the internal [doh.Listener].
 type dohListenerAdapter struct {
 	l DoHListener
@@ -150,3 +320,7 @@ func (e dohListenerAdapter) OnQuery(url string) doh.Token {
 func (e dohListenerAdapter) OnResponse(t doh.Token, s *doh.Summary) {
 	e.l.OnResponse(t, &DoHQuerySumary{s})
 }
+
+func (e dohListenerAdapter) OnCacheStats(s *doh.CacheStats) {
+	e.l.OnCacheStats(&DoHCacheStats{s})
+}
@@ -18,11 +18,13 @@ import (
 	"errors"
 	"io"
 	"io/fs"
+	"localhost/Intra/Android/app/src/go/doh"
 	"localhost/Intra/Android/app/src/go/intra"
 	"localhost/Intra/Android/app/src/go/intra/protect"
 	"localhost/Intra/Android/app/src/go/logging"
 	"localhost/Intra/Android/app/src/go/tuntap"
 	"os"
+	"sync"
 
 	"github.com/Jigsaw-Code/outline-sdk/network"
 )
@@ -33,9 +35,24 @@ import (
 type Session struct {
 	// TODO: hide this internal Tunnel when finished moving everything to backend
 	*intra.Tunnel
+
+	mu  sync.Mutex
+	doh *DoHServer // The server currently in use
 }
 
-func (s *Session) SetDoHServer(svr *DoHServer) { s.SetDNS(svr.r) }
+// SetDoHServer switches the session to svr.  Queries already sent to the previous server are
+// allowed to finish, after which its connections are closed.  To avoid stalling queries while
+// svr connects, call [Prewarm] first.
+func (s *Session) SetDoHServer(svr *DoHServer) {
+	s.SetDNS(svr.r)
+	s.mu.Lock()
+	old := s.doh
+	s.doh = svr
+	s.mu.Unlock()
+	if old != nil && old != svr {
+		doh.Retire(old.r)
+	}
+}
 
 // ConnectSession reads packets from a TUN device and applies the Intra routing
 // rules. Currently, this only consists of redirecting DNS packets to a specified
@@ -70,7 +87,19 @@ func ConnectSession(
 	}
 	go copyUntilEOF(t, tun)
 	go copyUntilEOF(tun, t)
-	return &Session{t}, nil
+	return &Session{Tunnel: t, doh: dohdns}, nil
+}
+
+// Disconnect closes the session, and retires its DoH server.
+func (s *Session) Disconnect() {
+	s.Tunnel.Disconnect()
+	s.mu.Lock()
+	old := s.doh
+	s.doh = nil
+	s.mu.Unlock()
+	if old != nil {
+		doh.Retire(old.r)
+	}
 }
 
 func copyUntilEOF(dst, src io.ReadWriteCloser) {
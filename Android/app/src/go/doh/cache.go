@@ -0,0 +1,323 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"container/list"
+	"encoding/binary"
+	"errors"
+	"strings"
+	"sync"
+	"time"
+
+	"golang.org/x/net/dns/dnsmessage"
+)
+
+// Maximum number of responses held by a resolver's answer cache.
+const defaultCacheSize = 1024
+
+// Upper bound on how long any response is cached, regardless of its TTLs.
+const maxCacheTTL = time.Hour
+
+// cacheKey identifies the responses that can be used to answer a query.
+// The DO bit is part of the key because it changes which records the server
+// returns (RFC 3225).  The CD bit is part of the key because a response to a
+// query with CD set has not been validated, so it must not be used to answer
+// queries without it (RFC 4035 Section 4.7).
+type cacheKey struct {
+	name  string // Lowercase, fully qualified
+	qtype dnsmessage.Type
+	class dnsmessage.Class
+	do    bool
+	cd    bool
+}
+
+type cacheEntry struct {
+	key      cacheKey
+	response []byte // Query ID is zero
+	ttls     []int  // Offsets of the TTL fields to rewrite
+	stored   time.Time
+	expires  time.Time
+}
+
+// answerCache is a size-bounded LRU cache of DNS responses.  Responses are
+// held until their smallest TTL expires, and every TTL in a cached response is
+// reduced by the time it has spent in the cache.  Negative responses are cached
+// for the TTL of the SOA record in the authority section (RFC 2308 Section 5).
+// answerCache is safe for concurrent use.
+type answerCache struct {
+	mu      sync.Mutex
+	size    int
+	entries map[cacheKey]*list.Element
+	lru     *list.List // Most recently used at the front
+	now     func() time.Time
+}
+
+func newAnswerCache(size int) *answerCache {
+	return &answerCache{
+		size:    size,
+		entries: make(map[cacheKey]*list.Element),
+		lru:     list.New(),
+		now:     time.Now,
+	}
+}
+
+var errUncacheable = errors.New("query is not cacheable")
+
+// makeCacheKey returns the key for q, which must be a standard query with a
+// single question.
+func makeCacheKey(q []byte) (key cacheKey, err error) {
+	var p dnsmessage.Parser
+	h, err := p.Start(q)
+	if err != nil {
+		return
+	}
+	if h.Response || h.OpCode != 0 {
+		err = errUncacheable
+		return
+	}
+	key.cd = h.CheckingDisabled
+	questions, err := p.AllQuestions()
+	if err != nil {
+		return
+	}
+	if len(questions) != 1 {
+		err = errUncacheable
+		return
+	}
+	key.name = strings.ToLower(questions[0].Name.String())
+	key.qtype = questions[0].Type
+	key.class = questions[0].Class
+	if err = p.SkipAllAnswers(); err != nil {
+		return
+	}
+	if err = p.SkipAllAuthorities(); err != nil {
+		return
+	}
+	for {
+		var rh dnsmessage.ResourceHeader
+		rh, err = p.AdditionalHeader()
+		if err == dnsmessage.ErrSectionDone {
+			err = nil
+			return
+		}
+		if err != nil {
+			return
+		}
+		if rh.Type == dnsmessage.TypeOPT {
+			key.do = rh.DNSSECAllowed()
+		}
+		if err = p.SkipAdditional(); err != nil {
+			return
+		}
+	}
+}
+
+// get returns a copy of the cached response to q, with q's ID, RD and CD bits,
+// and question name (which may differ in case) and the remaining TTLs filled
+// in, or nil if there is no fresh response.
+func (c *answerCache) get(q []byte) []byte {
+	key, err := makeCacheKey(q)
+	if err != nil {
+		return nil
+	}
+	now := c.now()
+	c.mu.Lock()
+	elem, ok := c.entries[key]
+	if !ok {
+		c.mu.Unlock()
+		return nil
+	}
+	e := elem.Value.(*cacheEntry)
+	if !now.Before(e.expires) {
+		c.lru.Remove(elem)
+		delete(c.entries, key)
+		c.mu.Unlock()
+		return nil
+	}
+	c.lru.MoveToFront(elem)
+	c.mu.Unlock()
+
+	// The entry is immutable, so it can be copied outside the lock.
+	resp := make([]byte, len(e.response))
+	copy(resp, e.response)
+	copy(resp, q[:2])
+	const rd, cd = 0x01, 0x10 // In bytes 2 and 3 of the header
+	resp[2] = resp[2]&^rd | q[2]&rd
+	resp[3] = resp[3]&^cd | q[3]&cd
+	copyQuestionName(resp, q)
+	elapsed := uint32(now.Sub(e.stored) / time.Second)
+	for _, off := range e.ttls {
+		ttl := binary.BigEndian.Uint32(resp[off:])
+		if ttl > elapsed {
+			ttl -= elapsed
+		} else {
+			ttl = 0
+		}
+		binary.BigEndian.PutUint32(resp[off:], ttl)
+	}
+	return resp
+}
+
+// put caches the response to q, if it is cacheable, and returns how long it
+// will be held, or zero if it was not cached.
+func (c *answerCache) put(q []byte, response []byte) time.Duration {
+	key, err := makeCacheKey(q)
+	if err != nil {
+		return 0
+	}
+	ttl, offsets, ok := cacheTTL(response)
+	if !ok || ttl <= 0 {
+		return 0
+	}
+	if ttl > maxCacheTTL {
+		ttl = maxCacheTTL
+	}
+	now := c.now()
+	e := &cacheEntry{
+		key:      key,
+		response: make([]byte, len(response)),
+		ttls:     offsets,
+		stored:   now,
+		expires:  now.Add(ttl),
+	}
+	copy(e.response, response)
+	binary.BigEndian.PutUint16(e.response, 0)
+
+	c.mu.Lock()
+	defer c.mu.Unlock()
+	if elem, ok := c.entries[key]; ok {
+		elem.Value = e
+		c.lru.MoveToFront(elem)
+		return ttl
+	}
+	c.entries[key] = c.lru.PushFront(e)
+	for c.lru.Len() > c.size {
+		oldest := c.lru.Back()
+		c.lru.Remove(oldest)
+		delete(c.entries, oldest.Value.(*cacheEntry).key)
+	}
+	return ttl
+}
+
+// cacheTTL returns how long response may be cached, and the offsets of the TTL
+// fields in it.  ok is false if the response must not be cached.
+func cacheTTL(response []byte) (ttl time.Duration, offsets []int, ok bool) {
+	if len(response) < 12 {
+		return
+	}
+	flags := binary.BigEndian.Uint16(response[2:])
+	const qrBit, tcBit = 1 << 15, 1 << 9
+	if flags&qrBit == 0 || flags&tcBit != 0 {
+		return
+	}
+	rcode := dnsmessage.RCode(flags & 0xf)
+	if rcode != dnsmessage.RCodeSuccess && rcode != dnsmessage.RCodeNameError {
+		return
+	}
+	qdcount := int(binary.BigEndian.Uint16(response[4:]))
+	ancount := int(binary.BigEndian.Uint16(response[6:]))
+	nscount := int(binary.BigEndian.Uint16(response[8:]))
+	arcount := int(binary.BigEndian.Uint16(response[10:]))
+
+	off := 12
+	for i := 0; i < qdcount; i++ {
+		if off = skipName(response, off); off < 0 || off+4 > len(response) {
+			return
+		}
+		off += 4 // QTYPE, QCLASS
+	}
+
+	// The smallest TTL among the answers, and the negative caching TTL.
+	minTTL := uint32(1<<32 - 1)
+	negativeTTL := uint32(0)
+	hasNegativeTTL := false
+	for i := 0; i < ancount+nscount+arcount; i++ {
+		if off = skipName(response, off); off < 0 || off+10 > len(response) {
+			return
+		}
+		rtype := dnsmessage.Type(binary.BigEndian.Uint16(response[off:]))
+		recordTTL := binary.BigEndian.Uint32(response[off+4:])
+		rdlength := int(binary.BigEndian.Uint16(response[off+8:]))
+		rdata := off + 10
+		if rdata+rdlength > len(response) {
+			return
+		}
+		// The OPT pseudo-record's TTL field holds EDNS flags, not a TTL.
+		if rtype != dnsmessage.TypeOPT {
+			offsets = append(offsets, off+4)
+			if recordTTL < minTTL {
+				minTTL = recordTTL
+			}
+		}
+		if i >= ancount && i < ancount+nscount && rtype == dnsmessage.TypeSOA {
+			// RFC 2308 Section 5: the negative TTL is the lesser of the SOA
+			// record's TTL and its MINIMUM field, which ends the RDATA.
+			if rdlength < 20 {
+				return
+			}
+			negativeTTL = binary.BigEndian.Uint32(response[rdata+rdlength-4:])
+			if recordTTL < negativeTTL {
+				negativeTTL = recordTTL
+			}
+			hasNegativeTTL = true
+		}
+		off = rdata + rdlength
+	}
+
+	if rcode == dnsmessage.RCodeNameError || ancount == 0 {
+		// NXDOMAIN or NODATA.  Without an SOA record there is no way to know how
+		// long the negative answer is valid (RFC 2308 Section 5).
+		if !hasNegativeTTL {
+			return
+		}
+		minTTL = negativeTTL
+	}
+	return time.Duration(minTTL) * time.Second, offsets, true
+}
+
+// copyQuestionName overwrites the question name in resp with the one in q, so
+// that the asker gets back the letter case it used.  The names are equal apart
+// from case, so they have the same length unless one of them is compressed, in
+// which case resp is left alone.
+func copyQuestionName(resp, q []byte) {
+	if end := skipName(q, 12); end > 0 && end == skipName(resp, 12) {
+		copy(resp[12:end], q[12:end])
+	}
+}
+
+// skipName returns the offset just past the name starting at off, or -1 if the
+// name is malformed.
+func skipName(msg []byte, off int) int {
+	for off < len(msg) {
+		c := int(msg[off])
+		switch c & 0xc0 {
+		case 0x00:
+			if c == 0 {
+				return off + 1
+			}
+			off += 1 + c
+		case 0xc0:
+			// A compression pointer always ends the name.
+			if off+2 > len(msg) {
+				return -1
+			}
+			return off + 2
+		default:
+			return -1
+		}
+	}
+	return -1
+}
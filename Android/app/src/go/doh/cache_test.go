@@ -0,0 +1,291 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"context"
+	"io"
+	"net/http"
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/require"
+	"golang.org/x/net/dns/dnsmessage"
+)
+
+// fakeClock replaces time.Now in an answerCache.
+type fakeClock struct {
+	t time.Time
+}
+
+func (c *fakeClock) now() time.Time          { return c.t }
+func (c *fakeClock) advance(d time.Duration) { c.t = c.t.Add(d) }
+
+func newTestCache(size int) (*answerCache, *fakeClock) {
+	clock := &fakeClock{time.Unix(1700000000, 0)}
+	c := newAnswerCache(size)
+	c.now = clock.now
+	return c, clock
+}
+
+func makeQuery(id uint16, name string, do bool) []byte {
+	q := dnsmessage.Message{
+		Header: dnsmessage.Header{ID: id, RecursionDesired: true},
+		Questions: []dnsmessage.Question{{
+			Name:  dnsmessage.MustNewName(name),
+			Type:  dnsmessage.TypeA,
+			Class: dnsmessage.ClassINET,
+		}},
+	}
+	if do {
+		var rh dnsmessage.ResourceHeader
+		if err := rh.SetEDNS0(4096, dnsmessage.RCodeSuccess, true); err != nil {
+			panic(err)
+		}
+		q.Additionals = []dnsmessage.Resource{{Header: rh, Body: &dnsmessage.OPTResource{}}}
+	}
+	return mustPack(&q)
+}
+
+func aRecord(name string, ttl uint32) dnsmessage.Resource {
+	return dnsmessage.Resource{
+		Header: dnsmessage.ResourceHeader{
+			Name:  dnsmessage.MustNewName(name),
+			Type:  dnsmessage.TypeA,
+			Class: dnsmessage.ClassINET,
+			TTL:   ttl,
+		},
+		Body: &dnsmessage.AResource{A: [4]byte{192, 0, 2, 1}},
+	}
+}
+
+func soaRecord(ttl uint32, minimum uint32) dnsmessage.Resource {
+	return dnsmessage.Resource{
+		Header: dnsmessage.ResourceHeader{
+			Name:  dnsmessage.MustNewName("example.com."),
+			Type:  dnsmessage.TypeSOA,
+			Class: dnsmessage.ClassINET,
+			TTL:   ttl,
+		},
+		Body: &dnsmessage.SOAResource{
+			NS:      dnsmessage.MustNewName("ns.example.com."),
+			MBox:    dnsmessage.MustNewName("hostmaster.example.com."),
+			Serial:  1,
+			Refresh: 3600,
+			Retry:   600,
+			Expire:  604800,
+			MinTTL:  minimum,
+		},
+	}
+}
+
+func makeResponse(q []byte, rcode dnsmessage.RCode, answers []dnsmessage.Resource, authorities []dnsmessage.Resource) []byte {
+	m := mustUnpack(q)
+	m.Response = true
+	m.RecursionAvailable = true
+	m.RCode = rcode
+	m.Answers = answers
+	m.Authorities = authorities
+	return mustPack(m)
+}
+
+// Check that a cached response gets the new query's ID and reduced TTLs.
+func TestCacheHit(t *testing.T) {
+	c, clock := newTestCache(defaultCacheSize)
+	q := makeQuery(0x1234, "www.example.com.", false)
+	c.put(q, makeResponse(q, dnsmessage.RCodeSuccess,
+		[]dnsmessage.Resource{aRecord("www.example.com.", 300), aRecord("www.example.com.", 400)}, nil))
+
+	clock.advance(100*time.Second + 500*time.Millisecond)
+	resp := c.get(makeQuery(0xbeef, "WWW.Example.COM.", false))
+	require.NotNil(t, resp)
+	m := mustUnpack(resp)
+	require.Equal(t, uint16(0xbeef), m.ID)
+	require.Len(t, m.Answers, 2)
+	require.Equal(t, uint32(200), m.Answers[0].Header.TTL)
+	require.Equal(t, uint32(300), m.Answers[1].Header.TTL)
+}
+
+// Check that a response expires with its smallest TTL.
+func TestCacheExpiry(t *testing.T) {
+	c, clock := newTestCache(defaultCacheSize)
+	q := makeQuery(1, "www.example.com.", false)
+	ttl := c.put(q, makeResponse(q, dnsmessage.RCodeSuccess,
+		[]dnsmessage.Resource{aRecord("www.example.com.", 60), aRecord("www.example.com.", 30)}, nil))
+	require.Equal(t, 30*time.Second, ttl)
+
+	clock.advance(29 * time.Second)
+	require.NotNil(t, c.get(q))
+	clock.advance(time.Second)
+	require.Nil(t, c.get(q))
+}
+
+// Check that responses with and without DNSSEC records are cached separately.
+func TestCacheDOBit(t *testing.T) {
+	c, _ := newTestCache(defaultCacheSize)
+	q := makeQuery(1, "www.example.com.", false)
+	c.put(q, makeResponse(q, dnsmessage.RCodeSuccess,
+		[]dnsmessage.Resource{aRecord("www.example.com.", 300)}, nil))
+
+	require.Nil(t, c.get(makeQuery(1, "www.example.com.", true)))
+	require.NotNil(t, c.get(q))
+}
+
+// Check that a response to a query with CD set, which was not validated, is
+// not used to answer queries without it (RFC 4035 Section 4.7).
+func TestCacheCDBit(t *testing.T) {
+	c, _ := newTestCache(defaultCacheSize)
+	cd := mustUnpack(makeQuery(1, "www.example.com.", false))
+	cd.CheckingDisabled = true
+	q := mustPack(cd)
+	c.put(q, makeResponse(q, dnsmessage.RCodeSuccess,
+		[]dnsmessage.Resource{aRecord("www.example.com.", 300)}, nil))
+
+	require.Nil(t, c.get(makeQuery(1, "www.example.com.", false)))
+	resp := c.get(q)
+	require.NotNil(t, resp)
+	require.True(t, mustUnpack(resp).CheckingDisabled)
+}
+
+// Check that a cached response echoes the new query's question name and RD
+// bit, rather than those of the query that filled the cache.
+func TestCacheEchoesQuestion(t *testing.T) {
+	c, _ := newTestCache(defaultCacheSize)
+	q := makeQuery(1, "www.example.com.", false)
+	c.put(q, makeResponse(q, dnsmessage.RCodeSuccess,
+		[]dnsmessage.Resource{aRecord("www.example.com.", 300)}, nil))
+
+	m := mustUnpack(makeQuery(2, "wWw.ExAmPlE.cOm.", false))
+	m.RecursionDesired = false
+	resp := mustUnpack(c.get(mustPack(m)))
+	require.Equal(t, "wWw.ExAmPlE.cOm.", resp.Questions[0].Name.String())
+	require.False(t, resp.RecursionDesired)
+	require.Len(t, resp.Answers, 1)
+}
+
+// Check that negative responses are cached for the SOA's negative TTL.
+func TestCacheNegative(t *testing.T) {
+	c, clock := newTestCache(defaultCacheSize)
+	nx := makeQuery(1, "nx.example.com.", false)
+	c.put(nx, makeResponse(nx, dnsmessage.RCodeNameError, nil,
+		[]dnsmessage.Resource{soaRecord(3600, 60)}))
+	nodata := makeQuery(1, "nodata.example.com.", false)
+	c.put(nodata, makeResponse(nodata, dnsmessage.RCodeSuccess, nil,
+		[]dnsmessage.Resource{soaRecord(30, 900)}))
+
+	clock.advance(20 * time.Second)
+	resp := c.get(nx)
+	require.NotNil(t, resp)
+	m := mustUnpack(resp)
+	require.Equal(t, dnsmessage.RCodeNameError, m.RCode)
+	require.Equal(t, uint32(3580), m.Authorities[0].Header.TTL)
+	require.NotNil(t, c.get(nodata))
+
+	clock.advance(10 * time.Second)
+	require.NotNil(t, c.get(nx))
+	require.Nil(t, c.get(nodata))
+
+	clock.advance(30 * time.Second)
+	require.Nil(t, c.get(nx))
+}
+
+// Check that responses that must not be cached are ignored.
+func TestCacheUncacheable(t *testing.T) {
+	c, _ := newTestCache(defaultCacheSize)
+	q := makeQuery(1, "www.example.com.", false)
+	answer := []dnsmessage.Resource{aRecord("www.example.com.", 300)}
+
+	// Negative response without an SOA record.
+	c.put(q, makeResponse(q, dnsmessage.RCodeNameError, nil, nil))
+	require.Nil(t, c.get(q))
+
+	// Server failure.
+	c.put(q, makeResponse(q, dnsmessage.RCodeServerFailure, nil, nil))
+	require.Nil(t, c.get(q))
+
+	// Zero TTL.
+	c.put(q, makeResponse(q, dnsmessage.RCodeSuccess,
+		[]dnsmessage.Resource{aRecord("www.example.com.", 0)}, nil))
+	require.Nil(t, c.get(q))
+
+	// Truncated response.
+	m := mustUnpack(makeResponse(q, dnsmessage.RCodeSuccess, answer, nil))
+	m.Truncated = true
+	c.put(q, mustPack(m))
+	require.Nil(t, c.get(q))
+
+	// Not a response.
+	c.put(q, q)
+	require.Nil(t, c.get(q))
+
+	// Malformed response.
+	resp := makeResponse(q, dnsmessage.RCodeSuccess, answer, nil)
+	c.put(q, resp[:len(resp)-1])
+	require.Nil(t, c.get(q))
+}
+
+// Check that the least recently used response is evicted.
+func TestCacheEviction(t *testing.T) {
+	c, _ := newTestCache(2)
+	names := []string{"a.example.com.", "b.example.com.", "c.example.com."}
+	queries := make([][]byte, len(names))
+	for i, name := range names {
+		queries[i] = makeQuery(1, name, false)
+	}
+	put := func(i int) {
+		c.put(queries[i], makeResponse(queries[i], dnsmessage.RCodeSuccess,
+			[]dnsmessage.Resource{aRecord(names[i], 300)}, nil))
+	}
+
+	put(0)
+	put(1)
+	require.NotNil(t, c.get(queries[0]))
+	put(2)
+	require.NotNil(t, c.get(queries[0]))
+	require.Nil(t, c.get(queries[1]))
+	require.NotNil(t, c.get(queries[2]))
+}
+
+// Check that the resolver answers a repeated query from its cache, and reports
+// it to the listener.
+func TestResolverCache(t *testing.T) {
+	resolver, listener := newTestDoHResolverWithListener(t, googleDoH)
+	rt := makeTestRoundTripper()
+	resolver.client.Transport = rt
+
+	q := makeQuery(0x1234, "www.example.com.", false)
+	go func() {
+		<-rt.req
+		r, w := io.Pipe()
+		rt.resp <- &http.Response{
+			StatusCode: 200,
+			Body:       r,
+			Request:    &http.Request{URL: parsedURL},
+		}
+		w.Write(makeResponse(makeQuery(0, "www.example.com.", false), dnsmessage.RCodeSuccess,
+			[]dnsmessage.Resource{aRecord("www.example.com.", 300)}, nil))
+		w.Close()
+	}()
+	_, err := resolver.Query(context.Background(), q)
+	require.NoError(t, err)
+	require.Equal(t, Complete, listener.summary.Status)
+
+	// The round tripper would block if the second query reached it.
+	resp, err := resolver.Query(context.Background(), makeQuery(0x5678, "www.example.com.", false))
+	require.NoError(t, err)
+	require.Equal(t, uint16(0x5678), mustUnpack(resp).ID)
+	require.Equal(t, Cached, listener.summary.Status)
+	require.Equal(t, 0, listener.summary.HTTPStatus)
+}
@@ -0,0 +1,129 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"context"
+	"errors"
+	"net"
+	"time"
+)
+
+// Delay between the starts of consecutive connection attempts, as recommended
+// by RFC 8305 Section 5.
+const connectionAttemptDelay = 250 * time.Millisecond
+
+// interleave returns ips reordered so that IPv6 and IPv4 addresses alternate,
+// starting with IPv6 (RFC 8305 Section 4).  The relative order of addresses
+// within each family is preserved.
+func interleave(ips []net.IP) []net.IP {
+	var v6, v4 []net.IP
+	for _, ip := range ips {
+		if ip.To4() != nil {
+			v4 = append(v4, ip)
+		} else {
+			v6 = append(v6, ip)
+		}
+	}
+	out := make([]net.IP, 0, len(ips))
+	for i := 0; i < len(v6) || i < len(v4); i++ {
+		if i < len(v6) {
+			out = append(out, v6[i])
+		}
+		if i < len(v4) {
+			out = append(out, v4[i])
+		}
+	}
+	return out
+}
+
+type dialResult struct {
+	conn net.Conn
+	ip   net.IP
+	err  error
+}
+
+// raceDial connects to one of ips, trying them in order.  A new attempt starts
+// every connectionAttemptDelay, or as soon as the previous attempt fails,
+// whichever comes first.  The first connection to succeed is returned along
+// with its IP, and the other attempts are canceled.  If every attempt fails,
+// the last error is returned.
+func raceDial(ctx context.Context, ips []net.IP, dial func(context.Context, net.IP) (net.Conn, error)) (net.Conn, net.IP, error) {
+	if len(ips) == 0 {
+		return nil, nil, errors.New("no IP addresses to dial")
+	}
+	ctx, cancel := context.WithCancel(ctx)
+	defer cancel()
+
+	// Buffered so that attempts still running when we return never block.
+	results := make(chan dialResult, len(ips))
+	next := 0
+	pending := 0
+	start := func() {
+		ip := ips[next]
+		next++
+		pending++
+		go func() {
+			conn, err := dial(ctx, ip)
+			results <- dialResult{conn, ip, err}
+		}()
+	}
+
+	start()
+	timer := time.NewTimer(connectionAttemptDelay)
+	defer timer.Stop()
+	restartTimer := func() {
+		if !timer.Stop() {
+			select {
+			case <-timer.C:
+			default:
+			}
+		}
+		timer.Reset(connectionAttemptDelay)
+	}
+
+	var err error
+	for pending > 0 {
+		var delay <-chan time.Time
+		if next < len(ips) {
+			delay = timer.C
+		}
+		select {
+		case res := <-results:
+			pending--
+			if res.err == nil {
+				// Attempts canceled too late to fail may still connect, so close
+				// whatever they return.
+				go func(n int) {
+					for i := 0; i < n; i++ {
+						if loser := <-results; loser.conn != nil {
+							loser.conn.Close()
+						}
+					}
+				}(pending)
+				return res.conn, res.ip, nil
+			}
+			err = res.err
+			if next < len(ips) && ctx.Err() == nil {
+				start()
+				restartTimer()
+			}
+		case <-delay:
+			start()
+			timer.Reset(connectionAttemptDelay)
+		}
+	}
+	return nil, nil, err
+}
@@ -0,0 +1,151 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"context"
+	"errors"
+	"net"
+	"sync"
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/require"
+)
+
+func parseIPs(addrs ...string) []net.IP {
+	ips := make([]net.IP, len(addrs))
+	for i, addr := range addrs {
+		ips[i] = net.ParseIP(addr)
+	}
+	return ips
+}
+
+func TestInterleave(t *testing.T) {
+	ips := parseIPs("192.0.2.1", "192.0.2.2", "2001:db8::1", "192.0.2.3", "2001:db8::2")
+	require.Equal(t, parseIPs("2001:db8::1", "192.0.2.1", "2001:db8::2", "192.0.2.2", "192.0.2.3"), interleave(ips))
+	require.Empty(t, interleave(nil))
+}
+
+// fakeDialer behaves according to a per-IP script: each IP connects or fails
+// after its delay, or hangs until canceled if it has no entry.
+type fakeDialer struct {
+	mu       sync.Mutex
+	delays   map[string]time.Duration
+	failures map[string]bool
+	dialed   []string
+	closed   []string
+}
+
+type fakeDialConn struct {
+	net.Conn
+	d  *fakeDialer
+	ip string
+}
+
+func (c *fakeDialConn) Close() error {
+	c.d.mu.Lock()
+	defer c.d.mu.Unlock()
+	c.d.closed = append(c.d.closed, c.ip)
+	return nil
+}
+
+func (d *fakeDialer) dial(ctx context.Context, ip net.IP) (net.Conn, error) {
+	d.mu.Lock()
+	d.dialed = append(d.dialed, ip.String())
+	delay, ok := d.delays[ip.String()]
+	d.mu.Unlock()
+	if !ok {
+		<-ctx.Done()
+		return nil, ctx.Err()
+	}
+	time.Sleep(delay)
+	if d.failures[ip.String()] {
+		return nil, errors.New("connection refused")
+	}
+	return &fakeDialConn{d: d, ip: ip.String()}, nil
+}
+
+func (d *fakeDialer) getDialed() []string {
+	d.mu.Lock()
+	defer d.mu.Unlock()
+	return append([]string{}, d.dialed...)
+}
+
+// Check that a fast server wins even if it's later in the list.
+func TestRaceDialStaggered(t *testing.T) {
+	d := &fakeDialer{delays: map[string]time.Duration{"192.0.2.2": 0}}
+	before := time.Now()
+	conn, ip, err := raceDial(context.Background(), parseIPs("192.0.2.1", "192.0.2.2", "192.0.2.3"), d.dial)
+	require.NoError(t, err)
+	require.Equal(t, "192.0.2.2", ip.String())
+	require.Equal(t, "192.0.2.2", conn.(*fakeDialConn).ip)
+	// The second attempt starts after one delay, and the third never starts.
+	require.GreaterOrEqual(t, time.Since(before), connectionAttemptDelay)
+	require.Equal(t, []string{"192.0.2.1", "192.0.2.2"}, d.getDialed())
+}
+
+// Check that a failed attempt starts the next one without waiting.
+func TestRaceDialFailFast(t *testing.T) {
+	d := &fakeDialer{
+		delays:   map[string]time.Duration{"192.0.2.1": 0, "192.0.2.2": 0, "192.0.2.3": 0},
+		failures: map[string]bool{"192.0.2.1": true, "192.0.2.2": true},
+	}
+	before := time.Now()
+	_, ip, err := raceDial(context.Background(), parseIPs("192.0.2.1", "192.0.2.2", "192.0.2.3"), d.dial)
+	require.NoError(t, err)
+	require.Equal(t, "192.0.2.3", ip.String())
+	require.Less(t, time.Since(before), connectionAttemptDelay)
+}
+
+// Check that the last error is returned if every attempt fails.
+func TestRaceDialAllFail(t *testing.T) {
+	d := &fakeDialer{
+		delays:   map[string]time.Duration{"192.0.2.1": 0, "192.0.2.2": 0},
+		failures: map[string]bool{"192.0.2.1": true, "192.0.2.2": true},
+	}
+	conn, _, err := raceDial(context.Background(), parseIPs("192.0.2.1", "192.0.2.2"), d.dial)
+	require.Error(t, err)
+	require.Nil(t, conn)
+
+	_, _, err = raceDial(context.Background(), nil, d.dial)
+	require.Error(t, err)
+}
+
+// Check that a connection that completes after the winner is closed.
+func TestRaceDialClosesLosers(t *testing.T) {
+	d := &fakeDialer{delays: map[string]time.Duration{
+		"192.0.2.1": 2 * connectionAttemptDelay,
+		"192.0.2.2": 0,
+	}}
+	_, ip, err := raceDial(context.Background(), parseIPs("192.0.2.1", "192.0.2.2"), d.dial)
+	require.NoError(t, err)
+	require.Equal(t, "192.0.2.2", ip.String())
+	require.Eventually(t, func() bool {
+		d.mu.Lock()
+		defer d.mu.Unlock()
+		return len(d.closed) == 1 && d.closed[0] == "192.0.2.1"
+	}, 5*time.Second, 10*time.Millisecond)
+}
+
+// Check that canceling the context stops all attempts.
+func TestRaceDialCanceled(t *testing.T) {
+	d := &fakeDialer{}
+	ctx, cancel := context.WithTimeout(context.Background(), 3*connectionAttemptDelay/2)
+	defer cancel()
+	_, _, err := raceDial(ctx, parseIPs("192.0.2.1", "192.0.2.2", "192.0.2.3"), d.dial)
+	require.ErrorIs(t, err, context.DeadlineExceeded)
+	require.Len(t, d.getDialed(), 2)
+}
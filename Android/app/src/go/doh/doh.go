@@ -52,6 +52,8 @@ const (
 	BadResponse
 	// InternalError : This should never happen
 	InternalError
+	// Cached : Answered from the resolver's cache, without contacting the server
+	Cached
 )
 
 // If the server sends an invalid reply, we start a "servfail hangover"
@@ -66,7 +68,9 @@ type Summary struct {
 	Response   []byte
 	Server     string
 	Status     int
-	HTTPStatus int // Zero unless Status is Complete or HTTPError
+	HTTPStatus int  // Zero unless Status is Complete or HTTPError
+	Hedge      bool // True if this query was a duplicate, sent because an earlier copy was slow
+	Hedges     int  // Number of duplicates of this query sent to other servers, if any
 }
 
 // A Token is an opaque handle used to match responses to queries.
@@ -101,6 +105,10 @@ type resolver struct {
 	client             http.Client
 	dialer             *net.Dialer
 	listener           Listener
+	cache              *answerCache
+	flights            flightGroup
+	prefetch           *prefetcher
+	warm               *warmStart // Nil unless warm start is enabled
 	hangoverLock       sync.RWMutex
 	hangoverExpiration time.Time
 }
@@ -123,32 +131,36 @@ func (r *resolver) dial(ctx context.Context, network, addr string) (net.Conn, er
 		return &net.TCPAddr{IP: ip, Port: port}
 	}
 
-	// TODO: Improve IP fallback strategy with parallelism and Happy Eyeballs.
-	var conn net.Conn
+	// Race the addresses Happy Eyeballs style, starting with the confirmed IP.
 	ips := r.ips.Get(domain)
 	confirmed := ips.Confirmed()
+	var candidates []net.IP
 	if confirmed != nil {
-		logging.Debug("DoH(resolver.dial) - trying confirmed IP", "confirmedIP", confirmed, "addr", addr)
-		if conn, err = split.DialWithSplitRetry(ctx, r.dialer, tcpaddr(confirmed), nil); err == nil {
-			logging.Info("DoH(resolver.dial) - confirmed IP worked", "confirmedIP", confirmed)
-			return conn, nil
-		}
-		logging.Debug("DoH(resolver.dial) - confirmed IP failed", "confirmedIP", confirmed, "err", err)
-		ips.Disconfirm(confirmed)
+		candidates = append(candidates, confirmed)
 	}
-
-	logging.Debug("DoH(resolver.dial) - trying all IPs")
+	var others []net.IP
 	for _, ip := range ips.GetAll() {
-		if ip.Equal(confirmed) {
-			// Don't try this IP twice.
-			continue
+		if !ip.Equal(confirmed) {
+			others = append(others, ip)
 		}
-		if conn, err = split.DialWithSplitRetry(ctx, r.dialer, tcpaddr(ip), nil); err == nil {
-			logging.Info("DoH(resolver.dial) - found working IP", "ip", ip)
-			return conn, nil
+	}
+	candidates = append(candidates, interleave(others)...)
+
+	logging.Debug("DoH(resolver.dial) - racing IPs", "confirmedIP", confirmed, "count", len(candidates))
+	conn, ip, err := raceDial(ctx, candidates, func(ctx context.Context, ip net.IP) (net.Conn, error) {
+		ctx, cancel := context.WithTimeout(ctx, tcpTimeout)
+		defer cancel()
+		return split.DialWithSplitRetry(ctx, r.dialer, tcpaddr(ip), nil)
+	})
+	if err != nil {
+		logging.Debug("DoH(resolver.dial) - all IPs failed", "addr", addr, "err", err)
+		if confirmed != nil {
+			ips.Disconfirm(confirmed)
 		}
+		return nil, err
 	}
-	return nil, err
+	logging.Info("DoH(resolver.dial) - found working IP", "ip", ip)
+	return conn, nil
 }
 
 // NewResolver returns a DoH [Resolver], ready for use.
@@ -166,6 +178,18 @@ func (r *resolver) dial(ctx context.Context, network, addr string) (net.Conn, er
 //
 // `listener` will receive the status of each DNS query when it is complete.
 func NewResolver(rawurl string, addrs []string, dialer *net.Dialer, auth ClientAuth, listener Listener) (Resolver, error) {
+	return newResolver(rawurl, addrs, "", dialer, auth, listener)
+}
+
+// NewWarmResolver is like [NewResolver], except that the resolver keeps its TLS session state and
+// confirmed IP address in a file in `warmStartDir`.  If that file was saved by an earlier resolver
+// for the same hostname, the new resolver resumes the saved TLS session on the saved IP address,
+// and resolves the hostname in the background instead of blocking.
+func NewWarmResolver(rawurl string, addrs []string, warmStartDir string, dialer *net.Dialer, auth ClientAuth, listener Listener) (Resolver, error) {
+	return newResolver(rawurl, addrs, warmStartDir, dialer, auth, listener)
+}
+
+func newResolver(rawurl string, addrs []string, warmStartDir string, dialer *net.Dialer, auth ClientAuth, listener Listener) (Resolver, error) {
 	if dialer == nil {
 		dialer = &net.Dialer{}
 	}
@@ -195,8 +219,22 @@ func NewResolver(rawurl string, addrs []string, dialer *net.Dialer, auth ClientA
 		listener: listener,
 		dialer:   dialer,
 		ips:      ipmap.NewIPMap(dialer.Resolver),
+		cache:    newAnswerCache(defaultCacheSize),
+	}
+	var report func(*CacheStats)
+	if cl, ok := listener.(CacheListener); ok {
+		report = cl.OnCacheStats
+	}
+	t.prefetch = newPrefetcher(t.refresh, report)
+	if len(warmStartDir) > 0 {
+		t.warm = loadWarmStart(warmStartDir, t.hostname)
+	}
+	var ips *ipmap.IPSet
+	if warmIP := t.warm.confirmedIP(); warmIP != nil {
+		ips = t.ips.GetWarm(t.hostname, warmIP)
+	} else {
+		ips = t.ips.Get(t.hostname)
 	}
-	ips := t.ips.Get(t.hostname)
 	for _, addr := range addrs {
 		ips.Add(addr)
 	}
@@ -206,7 +244,7 @@ func NewResolver(rawurl string, addrs []string, dialer *net.Dialer, auth ClientA
 
 	// Use session cache to minimize repeat TLS handshake overhead.
 	tlsconfig := &tls.Config{
-		ClientSessionCache: tls.NewLRUClientSessionCache(64),
+		ClientSessionCache: t.warm.sessionCache(tls.NewLRUClientSessionCache(64)),
 	}
 	if auth != nil {
 		signer := newClientAuthWrapper(auth)
@@ -310,6 +348,7 @@ func (r *resolver) doQuery(ctx context.Context, q []byte) (response []byte, serv
 	} else if server != nil {
 		// Record a working IP address for this server iff qerr is nil
 		r.ips.Get(hostname).Confirm(server.IP)
+		r.warm.setConfirmedIP(server.IP)
 	}
 	return
 }
@@ -433,13 +472,31 @@ func (r *resolver) sendRequest(id uint16, req *http.Request) (response []byte, h
 }
 
 func (r *resolver) Query(ctx context.Context, q []byte) ([]byte, error) {
+	before := time.Now()
+	if response := r.cache.get(q); response != nil {
+		r.prefetch.hit(q)
+		markCached(ctx)
+		// There is no HTTP transaction to measure, so OnQuery is skipped.
+		if r.listener != nil {
+			sendReport(ctx, r.listener, nil, &Summary{
+				Latency:  time.Since(before).Seconds(),
+				Query:    q,
+				Response: response,
+				Status:   Cached,
+			})
+		}
+		return response, nil
+	}
+	r.prefetch.miss(q)
+
 	var token Token
 	if r.listener != nil {
 		token = r.listener.OnQuery(r.url)
 	}
 
-	before := time.Now()
-	response, server, qerr := r.doQuery(ctx, q)
+	// Concurrent identical queries share a single request.  Each one is still
+	// reported to the listener separately.
+	response, server, qerr := r.flights.do(ctx, q, r.doQuery)
 	after := time.Now()
 
 	errIsCancel := false
@@ -456,19 +513,16 @@ func (r *resolver) Query(ctx context.Context, q []byte) ([]byte, error) {
 		if errors.As(qerr.err, &herr) {
 			httpStatus = herr.status
 		}
+	} else if ttl := r.cache.put(q, response); ttl > 0 {
+		r.prefetch.fetched(q, ttl)
 	}
 
-	// Stop sending OnResponse when the error is cancelled because the cancelled
-	// error is typically triggered by a Disconnect() operation, which will cause
-	// the following deadlock:
-	//   1. Java - synchronized VpnController.stop()
-	//   2. Go   -   context.Cancel()
-	//   3. Go   -   (if we don't stop sending OnResponse)
-	//   4. Java -   GoIntraListener.onResponse
-	//   5. Java -   synchronized VpnController.onConnectionStateChanged()
-	// Deadlock happens (both Step 1 and Step 5 are marked as synchronized)!
-	//
-	// TODO: make stop() an asynchronized function
+	// Don't send OnResponse when the query was cancelled.  Cancellation is
+	// typically triggered by Disconnect(), and says nothing about the health of
+	// the server, so reporting it would only mark a working connection as
+	// failing while the VPN shuts down.  (This also used to avoid a deadlock
+	// with VpnController.stop(), which now returns without waiting for
+	// Disconnect().)
 	if r.listener != nil && !errIsCancel {
 		latency := after.Sub(before)
 		var ip string
@@ -476,18 +530,34 @@ func (r *resolver) Query(ctx context.Context, q []byte) ([]byte, error) {
 			ip = server.IP.String()
 		}
 
-		r.listener.OnResponse(token, &Summary{
+		hedge, hedges := hedgeFromContext(ctx)
+		sendReport(ctx, r.listener, token, &Summary{
 			Latency:    latency.Seconds(),
 			Query:      q,
 			Response:   response,
 			Server:     ip,
 			Status:     status,
 			HTTPStatus: httpStatus,
+			Hedge:      hedge,
+			Hedges:     hedges,
 		})
 	}
 	return response, err
 }
 
+// refresh fetches the answer to q again, without reporting it to the listener,
+// and caches it.  It is used to refresh popular answers before they expire.
+func (r *resolver) refresh(ctx context.Context, q []byte) {
+	response, _, qerr := r.flights.do(ctx, q, r.doQuery)
+	if qerr != nil {
+		logging.Debug("DoH(resolver.refresh) - failed", "err", qerr)
+		return
+	}
+	if ttl := r.cache.put(q, response); ttl > 0 {
+		r.prefetch.fetched(q, ttl)
+	}
+}
+
 func (r *resolver) GetURL() string {
 	return r.url
 }
@@ -407,6 +407,8 @@ func TestDohIPConfirmDisconfirm(t *testing.T) {
 	}
 
 	// simulate http-fail with doh server-ip set to previously confirmed-ip
+	// (bypassing the answer cache, which now holds the first response)
+	resolver.cache = newAnswerCache(defaultCacheSize)
 	rt := makeTestRoundTripper()
 	resolver.client.Transport = rt
 	go func() {
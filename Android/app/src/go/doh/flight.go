@@ -0,0 +1,118 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"context"
+	"encoding/binary"
+	"net"
+	"sync"
+)
+
+// flightKey identifies queries that can share a single upstream request.
+// Unlike cacheKey, it includes the header flags, so that queries differing in
+// (for example) the RD bit are sent separately.
+type flightKey struct {
+	cacheKey
+	flags uint16
+}
+
+// flight is an upstream request, and its result once done is closed.
+type flight struct {
+	done     chan struct{}
+	response []byte
+	server   *net.TCPAddr
+	qerr     *queryError
+	cancel   context.CancelFunc // Cancels the request
+	waiters  int                // Callers that joined after the first; guarded by flightGroup.mu
+	active   int                // Callers still waiting for the result; guarded by flightGroup.mu
+}
+
+// flightGroup coalesces concurrent identical queries into one upstream request.
+type flightGroup struct {
+	mu      sync.Mutex
+	flights map[flightKey]*flight
+}
+
+// do calls query(ctx, q), unless an identical query is already in flight, in
+// which case it waits for that query's result instead.  Either way, the
+// response is private to the caller and carries q's ID and question name.
+//
+// The shared request is not bound to the cancellation of the caller that
+// started it, since other callers may be waiting for it.  It is canceled once
+// every caller has stopped waiting.
+func (g *flightGroup) do(ctx context.Context, q []byte, query func(context.Context, []byte) ([]byte, *net.TCPAddr, *queryError)) ([]byte, *net.TCPAddr, *queryError) {
+	key, err := makeCacheKey(q)
+	if err != nil {
+		// Malformed or unusual queries are not worth coalescing.
+		return query(ctx, q)
+	}
+	fk := flightKey{key, binary.BigEndian.Uint16(q[2:])}
+
+	g.mu.Lock()
+	if g.flights == nil {
+		g.flights = make(map[flightKey]*flight)
+	}
+	f, ok := g.flights[fk]
+	if ok {
+		f.waiters++
+	} else {
+		fctx, cancel := context.WithCancel(context.WithoutCancel(ctx))
+		f = &flight{done: make(chan struct{}), cancel: cancel}
+		g.flights[fk] = f
+		go g.run(fctx, fk, f, q, query)
+	}
+	f.active++
+	g.mu.Unlock()
+
+	select {
+	case <-f.done:
+	case <-ctx.Done():
+		g.mu.Lock()
+		f.active--
+		if f.active == 0 {
+			// Nobody wants the result any more.  Later callers start afresh.
+			f.cancel()
+			if g.flights[fk] == f {
+				delete(g.flights, fk)
+			}
+		}
+		g.mu.Unlock()
+		return tryServfail(q), nil, &queryError{SendFailed, ctx.Err()}
+	}
+	var response []byte
+	if len(f.response) >= 2 {
+		response = make([]byte, len(f.response))
+		copy(response, f.response)
+		copy(response, q[:2])
+		copyQuestionName(response, q)
+	}
+	return response, f.server, f.qerr
+}
+
+// run sends the request for f and publishes its result.
+func (g *flightGroup) run(ctx context.Context, fk flightKey, f *flight, q []byte, query func(context.Context, []byte) ([]byte, *net.TCPAddr, *queryError)) {
+	response, server, qerr := query(ctx, q)
+	f.cancel()
+
+	// Callers copy the response, so it must not be modified after this point.
+	f.response, f.server, f.qerr = response, server, qerr
+	g.mu.Lock()
+	if g.flights[fk] == f {
+		delete(g.flights, fk)
+	}
+	g.mu.Unlock()
+	close(f.done)
+}
@@ -0,0 +1,248 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"context"
+	"encoding/binary"
+	"io"
+	"net"
+	"net/http"
+	"sync"
+	"sync/atomic"
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/require"
+	"golang.org/x/net/dns/dnsmessage"
+)
+
+// Blocks until n callers are waiting for the flight for q.
+func waitForWaiters(t *testing.T, g *flightGroup, q []byte, n int) {
+	key, err := makeCacheKey(q)
+	require.NoError(t, err)
+	fk := flightKey{key, binary.BigEndian.Uint16(q[2:])}
+	require.Eventually(t, func() bool {
+		g.mu.Lock()
+		defer g.mu.Unlock()
+		f, ok := g.flights[fk]
+		return ok && f.waiters == n
+	}, 5*time.Second, time.Millisecond)
+}
+
+// Check that concurrent identical queries share one request, and that each
+// caller gets a response with its own ID.
+func TestFlightCoalesces(t *testing.T) {
+	var g flightGroup
+	var calls atomic.Int32
+	release := make(chan struct{})
+	query := func(ctx context.Context, q []byte) ([]byte, *net.TCPAddr, *queryError) {
+		calls.Add(1)
+		<-release
+		return makeResponse(q, dnsmessage.RCodeSuccess,
+			[]dnsmessage.Resource{aRecord("www.example.com.", 300)}, nil), nil, nil
+	}
+
+	const n = 5
+	responses := make([][]byte, n)
+	var wg sync.WaitGroup
+	for i := 0; i < n; i++ {
+		wg.Add(1)
+		go func(i int) {
+			defer wg.Done()
+			responses[i], _, _ = g.do(context.Background(), makeQuery(uint16(i), "www.example.com.", false), query)
+		}(i)
+		if i == 0 {
+			require.Eventually(t, func() bool { return calls.Load() == 1 }, 5*time.Second, time.Millisecond)
+		}
+	}
+	waitForWaiters(t, &g, makeQuery(0, "www.example.com.", false), n-1)
+	close(release)
+	wg.Wait()
+
+	require.Equal(t, int32(1), calls.Load())
+	for i, resp := range responses {
+		require.Equal(t, uint16(i), mustUnpack(resp).ID)
+	}
+	require.Empty(t, g.flights)
+}
+
+// Check that queries with different questions or flags are not coalesced.
+func TestFlightDistinct(t *testing.T) {
+	var g flightGroup
+	var calls atomic.Int32
+	query := func(ctx context.Context, q []byte) ([]byte, *net.TCPAddr, *queryError) {
+		calls.Add(1)
+		return makeResponse(q, dnsmessage.RCodeSuccess, nil, nil), nil, nil
+	}
+
+	a := makeQuery(1, "a.example.com.", false)
+	b := makeQuery(1, "b.example.com.", false)
+	m := mustUnpack(a)
+	m.CheckingDisabled = true
+	cd := mustPack(m)
+	for _, q := range [][]byte{a, b, cd} {
+		g.do(context.Background(), q, query)
+	}
+	require.Equal(t, int32(3), calls.Load())
+}
+
+// Check that a waiter whose context is canceled stops waiting.
+func TestFlightWaiterCanceled(t *testing.T) {
+	var g flightGroup
+	release := make(chan struct{})
+	defer close(release)
+	query := func(ctx context.Context, q []byte) ([]byte, *net.TCPAddr, *queryError) {
+		<-release
+		return nil, nil, &queryError{SendFailed, context.Canceled}
+	}
+
+	q := makeQuery(1, "www.example.com.", false)
+	go g.do(context.Background(), q, query)
+	waitForWaiters(t, &g, q, 0)
+
+	ctx, cancel := context.WithCancel(context.Background())
+	done := make(chan *queryError)
+	go func() {
+		_, _, qerr := g.do(ctx, q, query)
+		done <- qerr
+	}()
+	waitForWaiters(t, &g, q, 1)
+	cancel()
+	qerr := <-done
+	require.ErrorIs(t, qerr, context.Canceled)
+}
+
+// Check that the shared request survives the cancellation of the caller that
+// started it, as long as another caller is waiting, and that each caller gets
+// its own question name back.
+func TestFlightFirstCallerCanceled(t *testing.T) {
+	var g flightGroup
+	release := make(chan struct{})
+	var queryErr error
+	query := func(ctx context.Context, q []byte) ([]byte, *net.TCPAddr, *queryError) {
+		<-release
+		queryErr = ctx.Err()
+		return makeResponse(q, dnsmessage.RCodeSuccess,
+			[]dnsmessage.Resource{aRecord("www.example.com.", 300)}, nil), nil, nil
+	}
+
+	ctx, cancel := context.WithCancel(context.Background())
+	first := makeQuery(1, "www.example.com.", false)
+	firstDone := make(chan *queryError)
+	go func() {
+		_, _, qerr := g.do(ctx, first, query)
+		firstDone <- qerr
+	}()
+	waitForWaiters(t, &g, first, 0)
+
+	second := makeQuery(2, "WWW.Example.COM.", false)
+	secondDone := make(chan []byte)
+	go func() {
+		resp, _, qerr := g.do(context.Background(), second, query)
+		require.Nil(t, qerr)
+		secondDone <- resp
+	}()
+	waitForWaiters(t, &g, first, 1)
+	cancel()
+	require.ErrorIs(t, <-firstDone, context.Canceled)
+
+	close(release)
+	resp := mustUnpack(<-secondDone)
+	require.NoError(t, queryErr)
+	require.Equal(t, uint16(2), resp.ID)
+	require.Equal(t, "WWW.Example.COM.", resp.Questions[0].Name.String())
+}
+
+// Check that the shared request is canceled once every caller has left.
+func TestFlightAllCanceled(t *testing.T) {
+	var g flightGroup
+	canceled := make(chan error)
+	query := func(ctx context.Context, q []byte) ([]byte, *net.TCPAddr, *queryError) {
+		<-ctx.Done()
+		canceled <- ctx.Err()
+		return nil, nil, &queryError{SendFailed, ctx.Err()}
+	}
+
+	ctx, cancel := context.WithCancel(context.Background())
+	q := makeQuery(1, "www.example.com.", false)
+	done := make(chan struct{})
+	go func() {
+		g.do(ctx, q, query)
+		close(done)
+	}()
+	waitForWaiters(t, &g, q, 0)
+	cancel()
+	<-done
+	require.ErrorIs(t, <-canceled, context.Canceled)
+}
+
+type countingDoHListener struct {
+	Listener
+	mu        sync.Mutex
+	summaries []*Summary
+}
+
+func (l *countingDoHListener) OnQuery(url string) Token { return nil }
+func (l *countingDoHListener) OnResponse(tok Token, s *Summary) {
+	l.mu.Lock()
+	defer l.mu.Unlock()
+	l.summaries = append(l.summaries, s)
+}
+
+// Check that the resolver sends one request for concurrent identical queries,
+// and reports each of them to the listener.
+func TestResolverCoalesces(t *testing.T) {
+	listener := &countingDoHListener{}
+	r, err := NewResolver(googleDoH.url, googleDoH.ips, nil, nil, listener)
+	require.NoError(t, err)
+	resolver := r.(*resolver)
+	rt := makeTestRoundTripper()
+	resolver.client.Transport = rt
+
+	first := makeQuery(1, "www.example.com.", false)
+	second := makeQuery(2, "www.example.com.", false)
+	results := make(chan []byte, 2)
+	go func() {
+		resp, _ := resolver.Query(context.Background(), first)
+		results <- resp
+	}()
+	<-rt.req
+	go func() {
+		resp, _ := resolver.Query(context.Background(), second)
+		results <- resp
+	}()
+	waitForWaiters(t, &resolver.flights, first, 1)
+
+	pr, pw := io.Pipe()
+	rt.resp <- &http.Response{
+		StatusCode: 200,
+		Body:       pr,
+		Request:    &http.Request{URL: parsedURL},
+	}
+	pw.Write(makeResponse(makeQuery(0, "www.example.com.", false), dnsmessage.RCodeSuccess,
+		[]dnsmessage.Resource{aRecord("www.example.com.", 300)}, nil))
+	pw.Close()
+
+	ids := map[uint16]bool{}
+	for i := 0; i < 2; i++ {
+		ids[mustUnpack(<-results).ID] = true
+	}
+	require.Equal(t, map[uint16]bool{1: true, 2: true}, ids)
+	require.Len(t, listener.summaries, 2)
+	for _, s := range listener.summaries {
+		require.Equal(t, Complete, s.Status)
+	}
+}
@@ -0,0 +1,129 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"context"
+	"errors"
+	"net/http"
+	"time"
+)
+
+// A retired resolver's connections are closed once they become idle, and
+// again after this delay, which is longer than any request can last
+// (TCP handshake + TLS handshake + response header timeout).
+const drainTimeout = 35 * time.Second
+
+// warmupQuery is sent by Prewarm.  It asks for the root NS records, which
+// every resolver has cached.
+var warmupQuery = []byte{
+	0, 0, // [0-1]   query ID
+	1, 0, // [2-3]   flags, RD=1
+	0, 1, // [4-5]   QDCOUNT (number of queries) = 1
+	0, 0, // [6-7]   ANCOUNT (number of answers) = 0
+	0, 0, // [8-9]   NSCOUNT (number of authoritative answers) = 0
+	0, 0, // [10-11] ARCOUNT (number of additional records) = 0
+
+	0,    // root domain
+	0, 2, // QTYPE = NS
+	0, 1, // QCLASS = IN (Internet)
+}
+
+// Prewarm connects r to its server, completing the TCP and TLS handshakes
+// and the HTTP/2 preface, so that the next query can be sent immediately.
+// It sends a query that is neither cached nor reported to the listener.
+//
+// For a pool, every upstream is warmed, but Prewarm returns as soon as the
+// preferred upstream is warm, since that is where queries go first.  If the
+// preferred upstream fails, Prewarm returns once any other upstream is warm.
+// Upstreams that are still connecting keep going in the background until ctx
+// is done, so ctx should outlive the call.
+//
+// Prewarm is meant to be called on a new Resolver before it replaces an old
+// one, so that queries never wait for a cold connection.
+func Prewarm(ctx context.Context, r Resolver) error {
+	switch r := r.(type) {
+	case *resolver:
+		return r.prewarm(ctx)
+	case *pool:
+		type result struct {
+			preferred bool
+			err       error
+		}
+		// Buffered so that upstreams warming in the background never block.
+		results := make(chan result, len(r.upstreams))
+		for i, u := range r.upstreams {
+			go func(u *upstream, preferred bool) {
+				results <- result{preferred, Prewarm(ctx, u.r)}
+			}(u, i == 0)
+		}
+		var err error
+		warmed := false          // Some other upstream is warm
+		preferredFailed := false // The preferred upstream could not be warmed
+		for range r.upstreams {
+			res := <-results
+			switch {
+			case res.err == nil && (res.preferred || preferredFailed):
+				return nil
+			case res.err == nil:
+				warmed = true
+			case res.preferred:
+				if warmed {
+					return nil
+				}
+				preferredFailed = true
+				err = res.err
+			case err == nil:
+				err = res.err
+			}
+		}
+		return err
+	default:
+		return errors.New("resolver does not support prewarming")
+	}
+}
+
+func (r *resolver) prewarm(ctx context.Context) error {
+	q := append([]byte(nil), warmupQuery...)
+	if _, _, qerr := r.doQuery(ctx, q); qerr != nil {
+		return qerr
+	}
+	return nil
+}
+
+// Retire lets r's in-flight queries finish, and then closes its connections.
+// It also stops refreshing r's cached answers.  It must be called after r has
+// been replaced, so that connections on a network that is no longer in use are
+// not kept open indefinitely.
+func Retire(r Resolver) {
+	switch r := r.(type) {
+	case *resolver:
+		r.retire()
+	case *pool:
+		for _, u := range r.upstreams {
+			Retire(u.r)
+		}
+	}
+}
+
+func (r *resolver) retire() {
+	r.prefetch.stop()
+	t, ok := r.client.Transport.(*http.Transport)
+	if !ok {
+		return
+	}
+	t.CloseIdleConnections()
+	time.AfterFunc(drainTimeout, t.CloseIdleConnections)
+}
@@ -0,0 +1,118 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"bytes"
+	"context"
+	"errors"
+	"io"
+	"net/http"
+	"testing"
+
+	"github.com/stretchr/testify/require"
+	"golang.org/x/net/dns/dnsmessage"
+)
+
+func respondOK(rt *testRoundTripper) {
+	rt.resp <- &http.Response{
+		StatusCode: 200,
+		Body:       io.NopCloser(bytes.NewReader(makeResponse(makeQuery(0, "www.example.com.", false), dnsmessage.RCodeSuccess, nil, nil))),
+		Request:    &http.Request{URL: parsedURL},
+	}
+}
+
+// Check that Prewarm sends a root NS query without reporting it.
+func TestPrewarm(t *testing.T) {
+	listener := &countingDoHListener{}
+	r, err := NewResolver(googleDoH.url, googleDoH.ips, nil, nil, listener)
+	require.NoError(t, err)
+	rt := makeTestRoundTripper()
+	r.(*resolver).client.Transport = rt
+
+	done := make(chan error)
+	go func() { done <- Prewarm(context.Background(), r) }()
+	req := <-rt.req
+	body, err := io.ReadAll(req.Body)
+	require.NoError(t, err)
+	q := mustUnpack(body)
+	require.Equal(t, dnsmessage.TypeNS, q.Questions[0].Type)
+	require.Equal(t, ".", q.Questions[0].Name.String())
+	respondOK(rt)
+
+	require.NoError(t, <-done)
+	require.Empty(t, listener.summaries)
+}
+
+func TestPrewarmFailure(t *testing.T) {
+	r := newTestDoHResolver(t, googleDoH)
+	rt := makeTestRoundTripper()
+	rt.err = errors.New("network is unreachable")
+	r.client.Transport = rt
+	require.Error(t, Prewarm(context.Background(), r))
+}
+
+// Check that a pool is warm once its preferred upstream is, or any upstream
+// if the preferred one fails.
+func TestPrewarmPool(t *testing.T) {
+	down := newTestDoHResolver(t, googleDoH)
+	downRT := makeTestRoundTripper()
+	downRT.err = errors.New("network is unreachable")
+	down.client.Transport = downRT
+	up := newTestDoHResolver(t, googleDoH)
+	upRT := makeTestRoundTripper()
+	up.client.Transport = upRT
+
+	p, err := NewPool([]Resolver{down, up}, false)
+	require.NoError(t, err)
+	done := make(chan error)
+	go func() { done <- Prewarm(context.Background(), p) }()
+	<-upRT.req
+	respondOK(upRT)
+	require.NoError(t, <-done)
+
+	// Prewarm waits for the preferred upstream even after another succeeds.
+	slow := newTestDoHResolver(t, googleDoH)
+	slowRT := makeTestRoundTripper()
+	slow.client.Transport = slowRT
+	p, err = NewPool([]Resolver{slow, up}, false)
+	require.NoError(t, err)
+	go func() { done <- Prewarm(context.Background(), p) }()
+	<-upRT.req
+	respondOK(upRT)
+	<-slowRT.req
+	select {
+	case <-done:
+		require.Fail(t, "Prewarm returned before every upstream was warm")
+	default:
+	}
+	respondOK(slowRT)
+	require.NoError(t, <-done)
+
+	// Once the preferred upstream is warm, Prewarm doesn't wait for the others.
+	hung := newTestDoHResolver(t, googleDoH)
+	hungRT := makeTestRoundTripper()
+	hung.client.Transport = hungRT
+	p, err = NewPool([]Resolver{up, hung}, false)
+	require.NoError(t, err)
+	go func() { done <- Prewarm(context.Background(), p) }()
+	<-hungRT.req
+	<-upRT.req
+	respondOK(upRT)
+	require.NoError(t, <-done)
+	respondOK(hungRT)
+
+	require.Error(t, Prewarm(context.Background(), &fakeUpstream{}))
+}
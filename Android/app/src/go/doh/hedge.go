@@ -0,0 +1,114 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"context"
+	"math"
+	"slices"
+	"sync"
+	"sync/atomic"
+	"time"
+)
+
+const (
+	// Number of recent query latencies used to compute the hedge delay.
+	hedgeSamples = 64
+	// Until this many latencies have been observed, defaultHedgeDelay is used.
+	hedgeMinSamples = 16
+	// A query is hedged once it has taken longer than this fraction of recent
+	// queries.
+	hedgeQuantile     = 0.9
+	defaultHedgeDelay = time.Second
+	minHedgeDelay     = 10 * time.Millisecond
+	// Maximum long-run ratio of hedges to queries, and the most hedges that can
+	// be sent in a burst.  This caps the extra load that hedging can add, even
+	// if every query is slow.
+	hedgeRate  = 0.05
+	hedgeBurst = 5
+)
+
+// hedger decides when a pool should send a duplicate of a slow query to a
+// second upstream.
+type hedger struct {
+	mu       sync.Mutex
+	samples  [hedgeSamples]time.Duration // Ring buffer of recent latencies
+	sorted   [hedgeSamples]time.Duration // Scratch space for computing the quantile
+	n        int                         // Total number of latencies observed
+	quantile time.Duration               // hedgeQuantile of samples, once n >= hedgeMinSamples
+	tokens   float64                     // Hedges currently allowed by the rate cap
+}
+
+// observe records the latency of a successful round trip to an upstream
+// server.  Answers from an upstream's cache must not be observed, or they
+// would pull the hedge delay down to minHedgeDelay.
+//
+// The quantile is recomputed here, after the query has been answered, so that
+// delay() doesn't have to sort the samples before every query.
+func (h *hedger) observe(latency time.Duration) {
+	h.mu.Lock()
+	defer h.mu.Unlock()
+	h.samples[h.n%hedgeSamples] = latency
+	h.n++
+	if h.n < hedgeMinSamples {
+		return
+	}
+	count := min(h.n, hedgeSamples)
+	sorted := h.sorted[:count]
+	copy(sorted, h.samples[:count])
+	slices.Sort(sorted)
+	h.quantile = sorted[int(math.Ceil(hedgeQuantile*float64(count)))-1]
+}
+
+// delay returns how long a new query should wait for an answer before it is
+// hedged.  It must be called once per query, to accrue the hedge budget.
+func (h *hedger) delay() time.Duration {
+	h.mu.Lock()
+	defer h.mu.Unlock()
+	h.tokens = math.Min(h.tokens+hedgeRate, hedgeBurst)
+	if h.n < hedgeMinSamples {
+		return defaultHedgeDelay
+	}
+	return max(h.quantile, minHedgeDelay)
+}
+
+// allow reports whether a hedge may be sent, and if so charges it to the budget.
+func (h *hedger) allow() bool {
+	h.mu.Lock()
+	defer h.mu.Unlock()
+	if h.tokens < 1 {
+		return false
+	}
+	h.tokens--
+	return true
+}
+
+type hedgeKey struct{}
+
+// hedgeInfo is attached to the context of each upstream query made by a
+// hedging pool, so that the upstream can include it in its Summary.
+type hedgeInfo struct {
+	sent  *atomic.Int32 // Number of hedges sent for this query so far
+	hedge bool          // Whether this upstream query is itself a hedge
+}
+
+// hedgeFromContext returns whether ctx belongs to a hedge, and the number of
+// hedges sent so far for the same query.
+func hedgeFromContext(ctx context.Context) (hedge bool, hedges int) {
+	if info, ok := ctx.Value(hedgeKey{}).(hedgeInfo); ok {
+		return info.hedge, int(info.sent.Load())
+	}
+	return false, 0
+}
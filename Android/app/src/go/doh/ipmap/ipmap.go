@@ -28,6 +28,10 @@ type IPMap interface {
 	// discovered by resolving it.  Subsequent calls to Get return the
 	// same IPSet.
 	Get(hostname string) *IPSet
+	// GetWarm is like Get, except that if the IPSet does not exist yet, it is
+	// created with ip as its confirmed address, and the hostname is resolved
+	// in the background instead of blocking the caller.
+	GetWarm(hostname string, ip net.IP) *IPSet
 }
 
 // NewIPMap returns a fresh IPMap.
@@ -71,6 +75,22 @@ func (m *ipMap) Get(hostname string) *IPSet {
 	return s
 }
 
+func (m *ipMap) GetWarm(hostname string, ip net.IP) *IPSet {
+	s := &IPSet{r: m.r}
+	s.Confirm(ip)
+
+	m.Lock()
+	if s2 := m.m[hostname]; s2 != nil {
+		m.Unlock()
+		return s2
+	}
+	m.m[hostname] = s
+	m.Unlock()
+
+	go s.Add(hostname)
+	return s
+}
+
 // IPSet represents an unordered collection of IP addresses for a single host.
 // One IP can be marked as confirmed to be working correctly.
 type IPSet struct {
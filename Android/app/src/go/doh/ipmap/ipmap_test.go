@@ -20,6 +20,7 @@ import (
 	"net"
 	"sync/atomic"
 	"testing"
+	"time"
 )
 
 // We use '.' at the end to make sure resolution treats it an inexistent root domain.
@@ -175,3 +176,38 @@ func TestResolver(t *testing.T) {
 		t.Error("Fake dialer didn't run")
 	}
 }
+
+func TestGetWarm(t *testing.T) {
+	var dialCount int32
+	resolver := &net.Resolver{
+		PreferGo: true,
+		Dial: func(context context.Context, network, address string) (net.Conn, error) {
+			atomic.AddInt32(&dialCount, 1)
+			return nil, errors.New("Fake dialer")
+		},
+	}
+	m := NewIPMap(resolver)
+	ip := net.ParseIP("192.0.2.1")
+	s := m.GetWarm("www.google.com", ip)
+	if !ip.Equal(s.Confirmed()) {
+		t.Errorf("Warm IP should be confirmed, got %v", s.Confirmed())
+	}
+	if all := s.GetAll(); len(all) != 1 || !all[0].Equal(ip) {
+		t.Errorf("Warm set should contain only the warm IP, got %v", all)
+	}
+	if m.Get("www.google.com") != s {
+		t.Error("Get should return the warm set")
+	}
+	if m.GetWarm("www.google.com", net.ParseIP("192.0.2.2")) != s {
+		t.Error("GetWarm should return the existing set")
+	}
+
+	// The hostname is still resolved, in the background.
+	deadline := time.Now().Add(5 * time.Second)
+	for atomic.LoadInt32(&dialCount) == 0 {
+		if time.Now().After(deadline) {
+			t.Fatal("Background lookup didn't run")
+		}
+		time.Sleep(time.Millisecond)
+	}
+}
@@ -0,0 +1,297 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"context"
+	"errors"
+	"sync"
+	"sync/atomic"
+	"time"
+)
+
+const (
+	// Weight of the newest sample in the latency and error rate averages.
+	ewmaWeight = 0.2
+	// Expected latency added per unit of error rate when ranking upstreams, so
+	// that an upstream failing half of its queries ranks behind one that is
+	// 1 second slower.
+	errorPenalty = 2 * time.Second
+	// Consecutive failures that open an upstream's circuit breaker.
+	breakerThreshold = 3
+	// How long an open circuit breaker rejects queries before allowing a trial.
+	breakerCooldown = 30 * time.Second
+	// Maximum number of upstreams tried for a single query.
+	maxAttempts = 2
+)
+
+// upstream tracks the health of one of a pool's resolvers.
+type upstream struct {
+	r Resolver
+
+	mu        sync.Mutex
+	latency   time.Duration // EWMA of successful query latency, zero if unmeasured
+	errorRate float64       // EWMA of the failure rate, between 0 and 1
+	failures  int           // Consecutive failures
+	openUntil time.Time     // If non-zero, the circuit breaker is open until this time
+	trial     bool          // True while a half-open trial query is in flight
+}
+
+// cost returns the upstream's expected cost of a query, for ranking.
+func (u *upstream) cost() time.Duration {
+	return u.latency + time.Duration(u.errorRate*float64(errorPenalty))
+}
+
+// available reports whether the circuit breaker allows a query at time now.
+// If the breaker's cooldown has elapsed, it admits one trial query at a time.
+func (u *upstream) available(now time.Time) bool {
+	if u.openUntil.IsZero() {
+		return true
+	}
+	return !u.trial && !now.Before(u.openUntil)
+}
+
+func (u *upstream) record(latency time.Duration, failed bool, now time.Time) {
+	u.mu.Lock()
+	defer u.mu.Unlock()
+	u.trial = false
+	if failed {
+		u.errorRate += ewmaWeight * (1 - u.errorRate)
+		u.failures++
+		if u.failures >= breakerThreshold {
+			u.openUntil = now.Add(breakerCooldown)
+		}
+		return
+	}
+	u.errorRate -= ewmaWeight * u.errorRate
+	u.failures = 0
+	u.openUntil = time.Time{}
+	if u.latency == 0 {
+		u.latency = latency
+	} else {
+		u.latency += time.Duration(ewmaWeight * float64(latency-u.latency))
+	}
+}
+
+// pool is a Resolver that sends each query to the healthiest of several
+// upstream resolvers, failing over to the next one if it doesn't answer.
+type pool struct {
+	upstreams []*upstream
+	hedger    *hedger // Nil if hedging is disabled
+	now       func() time.Time
+}
+
+// NewPool returns a Resolver that routes each query to whichever of resolvers
+// currently has the lowest expected latency, accounting for recent errors.
+// An upstream that fails breakerThreshold times in a row is skipped for
+// breakerCooldown, after which a single query is allowed through to test it.
+// If every upstream's breaker is open, queries go to the least costly one
+// anyway, so that resolution recovers as soon as any upstream does.
+//
+// Upstreams are initially preferred in the order given, so the first one
+// should be the user's chosen server.
+//
+// If hedge is true, a query that has not been answered within the recent p90
+// latency is also sent to the next best upstream, and the first answer wins.
+// The rate of these extra queries is capped at hedgeRate.
+func NewPool(resolvers []Resolver, hedge bool) (Resolver, error) {
+	if len(resolvers) == 0 {
+		return nil, errors.New("no resolvers in pool")
+	}
+	if len(resolvers) == 1 {
+		return resolvers[0], nil
+	}
+	p := &pool{now: time.Now}
+	if hedge {
+		p.hedger = &hedger{tokens: hedgeBurst}
+	}
+	for _, r := range resolvers {
+		p.upstreams = append(p.upstreams, &upstream{r: r})
+	}
+	return p, nil
+}
+
+// pick returns the best available upstream not in tried, or nil if there is
+// none.  If force is true, upstreams with an open circuit breaker are also
+// considered.
+func (p *pool) pick(tried map[*upstream]bool, force bool) *upstream {
+	now := p.now()
+	var best *upstream
+	var bestCost time.Duration
+	for _, u := range p.upstreams {
+		if tried[u] {
+			continue
+		}
+		u.mu.Lock()
+		ok := force || u.available(now)
+		cost := u.cost()
+		u.mu.Unlock()
+		if ok && (best == nil || cost < bestCost) {
+			best, bestCost = u, cost
+		}
+	}
+	if best != nil {
+		best.mu.Lock()
+		if !best.openUntil.IsZero() {
+			best.trial = true
+		}
+		best.mu.Unlock()
+	}
+	return best
+}
+
+// attempt is the outcome of sending a query to one upstream.
+type attempt struct {
+	response []byte
+	err      error
+	report   *report
+}
+
+func (p *pool) Query(ctx context.Context, q []byte) ([]byte, error) {
+	// Canceling ctx on return abandons any attempt that lost a hedged race.
+	ctx, cancel := context.WithCancel(ctx)
+	defer cancel()
+
+	tried := make(map[*upstream]bool)
+	// Buffered so that abandoned attempts never block.
+	results := make(chan attempt, maxAttempts)
+	pending := 0
+	hedges := new(atomic.Int32)
+	launch := func(u *upstream, hedge bool) {
+		tried[u] = true
+		pending++
+		cached := new(atomic.Bool)
+		rep := new(report)
+		actx := context.WithValue(ctx, cachedKey{}, cached)
+		actx = context.WithValue(actx, reportKey{}, rep)
+		if p.hedger != nil {
+			actx = context.WithValue(actx, hedgeKey{}, hedgeInfo{hedges, hedge})
+		}
+		go func() {
+			before := p.now()
+			response, err := u.r.Query(actx, q)
+			p.record(ctx, u, err, p.now().Sub(before), cached.Load())
+			results <- attempt{response, err, rep}
+		}()
+	}
+
+	u := p.pick(tried, false)
+	if u == nil {
+		u = p.pick(tried, true)
+	}
+	launch(u, false)
+
+	var hedgeTimer <-chan time.Time
+	if p.hedger != nil {
+		t := time.NewTimer(p.hedger.delay())
+		defer t.Stop()
+		hedgeTimer = t.C
+	}
+
+	// Only the attempt whose result is returned is reported to the listener, so
+	// that a query that fails over or is hedged is still reported once.
+	var last attempt
+	for pending > 0 {
+		select {
+		case a := <-results:
+			pending--
+			if a.err == nil {
+				a.report.send()
+				return a.response, nil
+			}
+			last = a
+			var qerr *queryError
+			if ctx.Err() != nil || (errors.As(a.err, &qerr) && qerr.status == BadQuery) {
+				// No other upstream would do better.
+				a.report.send()
+				return a.response, a.err
+			}
+			if pending == 0 && len(tried) < maxAttempts {
+				if u := p.pick(tried, false); u != nil {
+					launch(u, false)
+				}
+			}
+		case <-hedgeTimer:
+			hedgeTimer = nil
+			if len(tried) < maxAttempts && p.hedger.allow() {
+				if u := p.pick(tried, false); u != nil {
+					hedges.Add(1)
+					launch(u, true)
+				}
+			}
+		}
+	}
+	last.report.send()
+	return last.response, last.err
+}
+
+// record updates u's statistics with the outcome of a query sent to it with
+// ctx.  Canceled and malformed queries are not held against the upstream, and
+// answers from its cache are not counted, since they say nothing about the
+// server.
+func (p *pool) record(ctx context.Context, u *upstream, err error, latency time.Duration, cached bool) {
+	var qerr *queryError
+	if cached || (err != nil && (ctx.Err() != nil || (errors.As(err, &qerr) && qerr.status == BadQuery))) {
+		u.mu.Lock()
+		u.trial = false
+		u.mu.Unlock()
+		return
+	}
+	u.record(latency, err != nil, p.now())
+	if err == nil && p.hedger != nil {
+		p.hedger.observe(latency)
+	}
+}
+
+type reportKey struct{}
+
+// report holds an upstream's report of one attempt, until the pool that made
+// the attempt decides whether to send it.
+type report struct {
+	listener Listener // Nil if the upstream had nothing to report
+	token    Token
+	summary  *Summary
+}
+
+func (r *report) send() {
+	if r.listener != nil {
+		r.listener.OnResponse(r.token, r.summary)
+	}
+}
+
+// sendReport passes summary to listener, unless ctx belongs to a pool's
+// attempt, in which case the pool decides whether to send it.
+func sendReport(ctx context.Context, listener Listener, token Token, summary *Summary) {
+	if r, ok := ctx.Value(reportKey{}).(*report); ok {
+		r.listener, r.token, r.summary = listener, token, summary
+		return
+	}
+	listener.OnResponse(token, summary)
+}
+
+type cachedKey struct{}
+
+// markCached tells the pool that sent a query with ctx, if any, that the
+// upstream answered it from its cache, without a round trip to the server.
+func markCached(ctx context.Context) {
+	if cached, ok := ctx.Value(cachedKey{}).(*atomic.Bool); ok {
+		cached.Store(true)
+	}
+}
+
+// GetURL returns the URL of the first (preferred) upstream.
+func (p *pool) GetURL() string {
+	return p.upstreams[0].r.GetURL()
+}
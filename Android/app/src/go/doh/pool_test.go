@@ -0,0 +1,325 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"context"
+	"errors"
+	"sync"
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/require"
+	"golang.org/x/net/dns/dnsmessage"
+)
+
+// fakeUpstream answers after latency on the shared clock, or fails if down.
+type fakeUpstream struct {
+	url      string
+	clock    *fakeClock
+	latency  time.Duration
+	down     bool
+	cached   bool     // Answer from cache, instantly
+	listener Listener // If set, each query is reported to it
+	queries  int
+}
+
+func (f *fakeUpstream) Query(ctx context.Context, q []byte) ([]byte, error) {
+	f.queries++
+	if f.cached {
+		markCached(ctx)
+		return makeResponse(q, dnsmessage.RCodeSuccess, nil, nil), nil
+	}
+	f.clock.advance(f.latency)
+	status := Complete
+	if f.down {
+		status = SendFailed
+	}
+	if f.listener != nil {
+		sendReport(ctx, f.listener, nil, &Summary{Query: q, Server: f.url, Status: status})
+	}
+	if f.down {
+		return tryServfail(q), &queryError{SendFailed, errors.New("connection refused")}
+	}
+	return makeResponse(q, dnsmessage.RCodeSuccess, nil, nil), nil
+}
+
+func (f *fakeUpstream) GetURL() string { return f.url }
+
+func newTestPool(t *testing.T, upstreams ...*fakeUpstream) (*pool, *fakeClock) {
+	clock := &fakeClock{time.Unix(1700000000, 0)}
+	resolvers := make([]Resolver, len(upstreams))
+	for i, u := range upstreams {
+		u.clock = clock
+		resolvers[i] = u
+	}
+	r, err := NewPool(resolvers, false)
+	require.NoError(t, err)
+	p := r.(*pool)
+	p.now = clock.now
+	return p, clock
+}
+
+func TestPoolSingle(t *testing.T) {
+	u := &fakeUpstream{url: "https://a/"}
+	r, err := NewPool([]Resolver{u}, false)
+	require.NoError(t, err)
+	require.Same(t, u, r)
+
+	_, err = NewPool(nil, false)
+	require.Error(t, err)
+}
+
+// Check that queries move to the faster upstream once both are measured.
+func TestPoolPrefersFaster(t *testing.T) {
+	slow := &fakeUpstream{url: "https://slow/", latency: 200 * time.Millisecond}
+	fast := &fakeUpstream{url: "https://fast/", latency: 20 * time.Millisecond}
+	p, _ := newTestPool(t, slow, fast)
+	require.Equal(t, "https://slow/", p.GetURL())
+
+	q := makeQuery(1, "www.example.com.", false)
+	for i := 0; i < 10; i++ {
+		_, err := p.Query(context.Background(), q)
+		require.NoError(t, err)
+	}
+	// The first query goes to the first upstream, and the second to the
+	// unmeasured one.  After that, the fast one wins.
+	require.Equal(t, 1, slow.queries)
+	require.Equal(t, 9, fast.queries)
+}
+
+// Check that a failed query is retried on another upstream, and that the
+// failing upstream's breaker opens and later admits a trial query.
+func TestPoolFailover(t *testing.T) {
+	a := &fakeUpstream{url: "https://a/", latency: 10 * time.Millisecond}
+	b := &fakeUpstream{url: "https://b/", latency: 2 * time.Second}
+	p, clock := newTestPool(t, a, b)
+	q := makeQuery(1, "www.example.com.", false)
+
+	// Measure both.
+	for i := 0; i < 2; i++ {
+		_, err := p.Query(context.Background(), q)
+		require.NoError(t, err)
+	}
+	require.Equal(t, 1, a.queries)
+	require.Equal(t, 1, b.queries)
+	a.down = true
+
+	// Every query still succeeds via b, and a is abandoned after
+	// breakerThreshold failures.
+	for i := 0; i < 10; i++ {
+		_, err := p.Query(context.Background(), q)
+		require.NoError(t, err)
+	}
+	require.Equal(t, 1+breakerThreshold, a.queries)
+	require.Equal(t, 11, b.queries)
+
+	// After the cooldown, a gets one trial query, which closes the breaker.
+	a.down = false
+	clock.advance(breakerCooldown)
+	_, err := p.Query(context.Background(), q)
+	require.NoError(t, err)
+	require.Equal(t, 2+breakerThreshold, a.queries)
+	u := p.upstreams[0]
+	require.Zero(t, u.failures)
+	require.True(t, u.openUntil.IsZero())
+}
+
+// Check that a query that fails over is reported once, with the outcome that
+// was returned.
+func TestPoolReportsOnce(t *testing.T) {
+	listener := &countingDoHListener{}
+	a := &fakeUpstream{url: "https://a/", down: true, listener: listener}
+	b := &fakeUpstream{url: "https://b/", listener: listener}
+	p, _ := newTestPool(t, a, b)
+
+	_, err := p.Query(context.Background(), makeQuery(1, "www.example.com.", false))
+	require.NoError(t, err)
+	require.Equal(t, 1, a.queries)
+	require.Equal(t, 1, b.queries)
+	require.Len(t, listener.summaries, 1)
+	require.Equal(t, Complete, listener.summaries[0].Status)
+	require.Equal(t, "https://b/", listener.summaries[0].Server)
+
+	// When every upstream fails, the last failure is reported.
+	b.down = true
+	_, err = p.Query(context.Background(), makeQuery(2, "www.example.com.", false))
+	require.Error(t, err)
+	require.Len(t, listener.summaries, 2)
+	require.Equal(t, SendFailed, listener.summaries[1].Status)
+}
+
+// Check that an error is returned when every upstream fails, and that queries
+// keep going out when all breakers are open.
+func TestPoolAllDown(t *testing.T) {
+	a := &fakeUpstream{url: "https://a/", down: true}
+	b := &fakeUpstream{url: "https://b/", down: true}
+	p, _ := newTestPool(t, a, b)
+	q := makeQuery(1, "www.example.com.", false)
+
+	for i := 0; i < breakerThreshold+2; i++ {
+		resp, err := p.Query(context.Background(), q)
+		require.Error(t, err)
+		require.Equal(t, dnsmessage.RCodeServerFailure, mustUnpack(resp).RCode)
+	}
+	// Both are tried until their breakers open, then one per query.
+	require.Equal(t, 2*breakerThreshold+2, a.queries+b.queries)
+}
+
+// Check that answers from an upstream's cache don't count as measurements.
+func TestPoolIgnoresCacheHits(t *testing.T) {
+	a := &fakeUpstream{url: "https://a/", latency: 100 * time.Millisecond}
+	b := &fakeUpstream{url: "https://b/", latency: 50 * time.Millisecond}
+	p, _ := newTestPool(t, a, b)
+	q := makeQuery(1, "www.example.com.", false)
+
+	// Measure both.
+	for i := 0; i < 2; i++ {
+		_, err := p.Query(context.Background(), q)
+		require.NoError(t, err)
+	}
+	require.Equal(t, 1, a.queries)
+
+	// b answers from its cache, which must not make it look any faster.
+	b.cached = true
+	for i := 0; i < 10; i++ {
+		_, err := p.Query(context.Background(), q)
+		require.NoError(t, err)
+	}
+	require.Equal(t, 11, b.queries)
+	u := p.upstreams[1]
+	require.Equal(t, 50*time.Millisecond, u.latency)
+	require.Zero(t, u.errorRate)
+}
+
+// Check that cancellation is not held against an upstream.
+func TestPoolCanceled(t *testing.T) {
+	a := &fakeUpstream{url: "https://a/", down: true}
+	b := &fakeUpstream{url: "https://b/"}
+	p, _ := newTestPool(t, a, b)
+	ctx, cancel := context.WithCancel(context.Background())
+	cancel()
+
+	_, err := p.Query(ctx, makeQuery(1, "www.example.com.", false))
+	require.Error(t, err)
+	require.Equal(t, 1, a.queries)
+	require.Zero(t, b.queries)
+	require.Zero(t, p.upstreams[0].failures)
+}
+
+// delayedUpstream answers after a real delay, unless the query is canceled
+// first.  It records the hedge info of each query it answers.
+type delayedUpstream struct {
+	delay  time.Duration
+	mu     sync.Mutex
+	hedges []bool
+}
+
+func (d *delayedUpstream) Query(ctx context.Context, q []byte) ([]byte, error) {
+	select {
+	case <-time.After(d.delay):
+	case <-ctx.Done():
+		return nil, &queryError{SendFailed, ctx.Err()}
+	}
+	hedge, _ := hedgeFromContext(ctx)
+	d.mu.Lock()
+	d.hedges = append(d.hedges, hedge)
+	d.mu.Unlock()
+	return makeResponse(q, dnsmessage.RCodeSuccess, nil, nil), nil
+}
+
+func (d *delayedUpstream) GetURL() string { return "https://delayed/" }
+
+func newHedgingPool(t *testing.T, upstreams ...Resolver) *pool {
+	r, err := NewPool(upstreams, true)
+	require.NoError(t, err)
+	p := r.(*pool)
+	for i := 0; i < hedgeMinSamples; i++ {
+		p.hedger.observe(time.Millisecond)
+	}
+	return p
+}
+
+// Check that a slow query is hedged to the next upstream, that the hedge's
+// answer is used, and that the abandoned query doesn't count as a failure.
+func TestPoolHedge(t *testing.T) {
+	slow := &delayedUpstream{delay: time.Hour}
+	fast := &delayedUpstream{}
+	p := newHedgingPool(t, slow, fast)
+
+	before := time.Now()
+	_, err := p.Query(context.Background(), makeQuery(1, "www.example.com.", false))
+	require.NoError(t, err)
+	require.Less(t, time.Since(before), defaultHedgeDelay)
+	require.Equal(t, []bool{true}, fast.hedges)
+	u := p.upstreams[0]
+	u.mu.Lock()
+	defer u.mu.Unlock()
+	require.Zero(t, u.failures)
+	require.Zero(t, u.errorRate)
+}
+
+// Check that no hedge is sent once the budget is spent.
+func TestPoolHedgeBudget(t *testing.T) {
+	slow := &delayedUpstream{delay: 50 * time.Millisecond}
+	fast := &delayedUpstream{}
+	p := newHedgingPool(t, slow, fast)
+	p.hedger.tokens = 0
+
+	_, err := p.Query(context.Background(), makeQuery(1, "www.example.com.", false))
+	require.NoError(t, err)
+	require.Equal(t, []bool{false}, slow.hedges)
+	require.Empty(t, fast.hedges)
+}
+
+// Check that answers from an upstream's cache don't lower the hedge delay.
+func TestPoolHedgeIgnoresCacheHits(t *testing.T) {
+	a := &fakeUpstream{url: "https://a/", clock: &fakeClock{time.Now()}, cached: true}
+	b := &fakeUpstream{url: "https://b/", clock: a.clock}
+	p := newHedgingPool(t, a, b)
+	p.hedger.n = 0
+
+	for i := 0; i < hedgeMinSamples; i++ {
+		_, err := p.Query(context.Background(), makeQuery(1, "www.example.com.", false))
+		require.NoError(t, err)
+	}
+	require.Zero(t, p.hedger.n)
+	require.Equal(t, defaultHedgeDelay, p.hedger.delay())
+}
+
+func TestHedgeDelay(t *testing.T) {
+	var h hedger
+	require.Equal(t, defaultHedgeDelay, h.delay())
+	for i := 1; i <= 100; i++ {
+		h.observe(time.Duration(i) * time.Millisecond)
+	}
+	// The buffer holds 37-100 ms, and the 58th of those 64 samples is the p90.
+	require.Equal(t, 94*time.Millisecond, h.delay())
+
+	for i := 0; i < hedgeSamples; i++ {
+		h.observe(0)
+	}
+	require.Equal(t, minHedgeDelay, h.delay())
+}
+
+func TestHedgeAllow(t *testing.T) {
+	var h hedger
+	require.False(t, h.allow())
+	for i := 0; i <= int(1/hedgeRate); i++ {
+		h.delay()
+	}
+	require.True(t, h.allow())
+	require.False(t, h.allow())
+}
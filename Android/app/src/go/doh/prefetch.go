@@ -0,0 +1,259 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"context"
+	"math"
+	"sync"
+	"time"
+)
+
+const (
+	// A cached answer is refreshed shortly before it expires if it was used at
+	// least this many times since it was fetched.
+	prefetchMinHits = 2
+	// Answers with shorter TTLs are not refreshed in advance, because keeping
+	// them fresh would cost a query every few seconds.
+	prefetchMinTTL = 10 * time.Second
+	// The refresh starts when this fraction of the TTL remains.
+	prefetchLead = 0.1
+	// Deadline for each refresh query.
+	prefetchTimeout = 5 * time.Second
+	// Maximum number of refresh queries per minute, shared by all resolvers,
+	// and the most that can be sent in a burst.
+	prefetchPerMinute = 30
+	prefetchBurst     = 10
+	// Maximum number of names whose usage each resolver tracks.
+	maxPrefetchNames = defaultCacheSize
+	// Cache statistics are reported to the listener after this many lookups.
+	statsInterval = 100
+)
+
+// CacheStats counts a resolver's cache lookups and refresh queries since its
+// previous report.
+type CacheStats struct {
+	Hits       int // Queries answered from the cache
+	Misses     int // Cacheable queries that had to be sent to the server
+	Prefetches int // Queries sent to refresh popular answers before they expired
+}
+
+// CacheListener can be implemented by a Listener to receive CacheStats.
+type CacheListener interface {
+	OnCacheStats(*CacheStats)
+}
+
+// prefetchBudget is a token bucket that caps the rate of refresh queries.
+type prefetchBudget struct {
+	mu     sync.Mutex
+	tokens float64
+	last   time.Time
+	now    func() time.Time
+}
+
+func newPrefetchBudget(now func() time.Time) *prefetchBudget {
+	return &prefetchBudget{tokens: prefetchBurst, last: now(), now: now}
+}
+
+// allow reports whether a refresh query may be sent, and if so charges it to
+// the budget.
+func (b *prefetchBudget) allow() bool {
+	b.mu.Lock()
+	defer b.mu.Unlock()
+	now := b.now()
+	b.tokens = math.Min(b.tokens+now.Sub(b.last).Minutes()*prefetchPerMinute, prefetchBurst)
+	b.last = now
+	if b.tokens < 1 {
+		return false
+	}
+	b.tokens--
+	return true
+}
+
+// All resolvers share one budget, so that neither pools nor resolvers that
+// replace each other on network changes can multiply it.
+var globalPrefetchBudget = newPrefetchBudget(time.Now)
+
+type stopper interface {
+	Stop() bool
+}
+
+// hotName tracks the use of one cached answer.
+type hotName struct {
+	query []byte // Query for this answer, with ID zero
+	hits  int    // Cache hits since the answer was fetched
+	timer stopper
+}
+
+// prefetcher keeps popular answers in a resolver's cache fresh, by fetching
+// them again shortly before they expire.  An answer is only refreshed if it
+// has been used since it was last fetched, so names that fall out of use stop
+// costing queries after one TTL.  It also counts cache hits and misses.
+// prefetcher is safe for concurrent use.
+type prefetcher struct {
+	mu      sync.Mutex
+	names   map[cacheKey]*hotName
+	stats   CacheStats
+	stopped bool
+
+	ctx    context.Context // Canceled by stop
+	cancel context.CancelFunc
+	budget *prefetchBudget
+	// fetch sends q to the server, and must call fetched if the answer is cached.
+	fetch func(ctx context.Context, q []byte)
+	// report receives CacheStats.  It may be nil.
+	report    func(*CacheStats)
+	afterFunc func(time.Duration, func()) stopper
+}
+
+func newPrefetcher(fetch func(context.Context, []byte), report func(*CacheStats)) *prefetcher {
+	ctx, cancel := context.WithCancel(context.Background())
+	return &prefetcher{
+		names:  make(map[cacheKey]*hotName),
+		ctx:    ctx,
+		cancel: cancel,
+		budget: globalPrefetchBudget,
+		fetch:  fetch,
+		report: report,
+		afterFunc: func(d time.Duration, f func()) stopper {
+			return time.AfterFunc(d, f)
+		},
+	}
+}
+
+// hit records that q was answered from the cache.
+func (p *prefetcher) hit(q []byte) {
+	key, err := makeCacheKey(q)
+	if err != nil {
+		return
+	}
+	p.mu.Lock()
+	p.stats.Hits++
+	if n, ok := p.names[key]; ok {
+		n.hits++
+	}
+	stats := p.takeStats(statsInterval)
+	p.mu.Unlock()
+	p.send(stats)
+}
+
+// miss records that q could not be answered from the cache.
+func (p *prefetcher) miss(q []byte) {
+	if _, err := makeCacheKey(q); err != nil {
+		// Not cacheable, so not a miss.
+		return
+	}
+	p.mu.Lock()
+	p.stats.Misses++
+	stats := p.takeStats(statsInterval)
+	p.mu.Unlock()
+	p.send(stats)
+}
+
+// fetched records that the answer to q was just cached for ttl, and schedules
+// its refresh.
+func (p *prefetcher) fetched(q []byte, ttl time.Duration) {
+	key, err := makeCacheKey(q)
+	if err != nil {
+		return
+	}
+	p.mu.Lock()
+	defer p.mu.Unlock()
+	if p.stopped {
+		return
+	}
+	n, ok := p.names[key]
+	if ok && n.timer != nil {
+		n.timer.Stop()
+	}
+	if ttl < prefetchMinTTL {
+		delete(p.names, key)
+		return
+	}
+	if !ok {
+		if len(p.names) >= maxPrefetchNames {
+			return
+		}
+		n = &hotName{query: append([]byte{0, 0}, q[2:]...)}
+		p.names[key] = n
+	}
+	n.hits = 0
+	lead := time.Duration(float64(ttl) * prefetchLead)
+	n.timer = p.afterFunc(ttl-lead, func() { p.expiring(key, n) })
+}
+
+// expiring is called shortly before the cached answer for n expires.
+func (p *prefetcher) expiring(key cacheKey, n *hotName) {
+	p.mu.Lock()
+	if p.stopped || p.names[key] != n {
+		// Superseded by a later fetch.
+		p.mu.Unlock()
+		return
+	}
+	n.timer = nil
+	if n.hits < prefetchMinHits || !p.budget.allow() {
+		// The name is not popular enough, or the budget is spent.  Stop tracking
+		// it until it is fetched again.
+		delete(p.names, key)
+		p.mu.Unlock()
+		return
+	}
+	p.stats.Prefetches++
+	p.mu.Unlock()
+
+	ctx, cancel := context.WithTimeout(p.ctx, prefetchTimeout)
+	defer cancel()
+	p.fetch(ctx, n.query)
+}
+
+// stop cancels all pending refreshes, and reports any remaining stats.
+func (p *prefetcher) stop() {
+	p.mu.Lock()
+	if p.stopped {
+		p.mu.Unlock()
+		return
+	}
+	p.stopped = true
+	for _, n := range p.names {
+		if n.timer != nil {
+			n.timer.Stop()
+		}
+	}
+	p.names = nil
+	stats := p.takeStats(1)
+	p.mu.Unlock()
+	p.cancel()
+	p.send(stats)
+}
+
+// takeStats returns the stats and resets them, if there have been at least
+// minLookups lookups.  Otherwise it returns nil.  It must be called with the lock
+// held.
+func (p *prefetcher) takeStats(minLookups int) *CacheStats {
+	if p.stats.Hits+p.stats.Misses < minLookups {
+		return nil
+	}
+	stats := p.stats
+	p.stats = CacheStats{}
+	return &stats
+}
+
+// send reports stats, if any.  It must be called without the lock, because
+// the listener may block.
+func (p *prefetcher) send(stats *CacheStats) {
+	if stats != nil && p.report != nil {
+		p.report(stats)
+	}
+}
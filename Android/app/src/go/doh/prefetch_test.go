@@ -0,0 +1,257 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"context"
+	"fmt"
+	"sync"
+	"testing"
+	"time"
+
+	"github.com/stretchr/testify/require"
+	"golang.org/x/net/dns/dnsmessage"
+)
+
+// fakeTimers replaces time.AfterFunc in a prefetcher.  Timers only fire when
+// the test says so.
+type fakeTimers struct {
+	timers []*fakeTimer
+}
+
+type fakeTimer struct {
+	d       time.Duration
+	f       func()
+	stopped bool
+}
+
+func (t *fakeTimer) Stop() bool {
+	wasActive := !t.stopped
+	t.stopped = true
+	return wasActive
+}
+
+func (ft *fakeTimers) afterFunc(d time.Duration, f func()) stopper {
+	t := &fakeTimer{d: d, f: f}
+	ft.timers = append(ft.timers, t)
+	return t
+}
+
+// fireAll runs every timer that is still active.
+func (ft *fakeTimers) fireAll() {
+	timers := ft.timers
+	ft.timers = nil
+	for _, t := range timers {
+		if !t.stopped {
+			t.stopped = true
+			t.f()
+		}
+	}
+}
+
+type prefetchTest struct {
+	p       *prefetcher
+	timers  *fakeTimers
+	clock   *fakeClock
+	mu      sync.Mutex
+	fetches [][]byte
+	reports []CacheStats
+}
+
+// newPrefetchTest returns a prefetcher whose refreshes succeed immediately
+// with the given TTL.
+func newPrefetchTest(ttl time.Duration) *prefetchTest {
+	pt := &prefetchTest{
+		timers: &fakeTimers{},
+		clock:  &fakeClock{time.Unix(1700000000, 0)},
+	}
+	var p *prefetcher
+	p = newPrefetcher(func(ctx context.Context, q []byte) {
+		pt.mu.Lock()
+		pt.fetches = append(pt.fetches, q)
+		pt.mu.Unlock()
+		p.fetched(q, ttl)
+	}, func(s *CacheStats) {
+		pt.mu.Lock()
+		defer pt.mu.Unlock()
+		pt.reports = append(pt.reports, *s)
+	})
+	p.afterFunc = pt.timers.afterFunc
+	p.budget = newPrefetchBudget(pt.clock.now)
+	pt.p = p
+	return pt
+}
+
+// Check that a popular answer is refreshed shortly before it expires, and
+// stays fresh for as long as it is used.
+func TestPrefetchHotName(t *testing.T) {
+	pt := newPrefetchTest(300 * time.Second)
+	q := makeQuery(0x1234, "www.example.com.", false)
+	pt.p.fetched(q, 300*time.Second)
+	require.Len(t, pt.timers.timers, 1)
+	require.Equal(t, 270*time.Second, pt.timers.timers[0].d)
+
+	for i := 0; i < prefetchMinHits; i++ {
+		pt.p.hit(q)
+	}
+	pt.timers.fireAll()
+	require.Len(t, pt.fetches, 1)
+	// The refresh is sent with ID zero, like any other DoH query.
+	require.Equal(t, uint16(0), mustUnpack(pt.fetches[0]).ID)
+	require.Equal(t, "www.example.com.", mustUnpack(pt.fetches[0]).Questions[0].Name.String())
+	require.Len(t, pt.timers.timers, 1)
+	require.Equal(t, 1, pt.p.stats.Prefetches)
+
+	// The refreshed answer is not used, so it is allowed to expire.
+	pt.timers.fireAll()
+	require.Len(t, pt.fetches, 1)
+	require.Empty(t, pt.timers.timers)
+	require.Empty(t, pt.p.names)
+}
+
+// Check that answers that are rarely used or short-lived are not refreshed.
+func TestPrefetchColdName(t *testing.T) {
+	pt := newPrefetchTest(300 * time.Second)
+	q := makeQuery(1, "www.example.com.", false)
+	pt.p.fetched(q, 300*time.Second)
+	pt.p.hit(q)
+	pt.timers.fireAll()
+	require.Empty(t, pt.fetches)
+	require.Empty(t, pt.p.names)
+
+	pt.p.fetched(q, prefetchMinTTL-time.Second)
+	require.Empty(t, pt.timers.timers)
+	require.Empty(t, pt.p.names)
+}
+
+// Check that a fresh answer from an ordinary query replaces the scheduled
+// refresh.
+func TestPrefetchRefetched(t *testing.T) {
+	pt := newPrefetchTest(300 * time.Second)
+	q := makeQuery(1, "www.example.com.", false)
+	pt.p.fetched(q, 300*time.Second)
+	first := pt.timers.timers[0]
+	pt.p.hit(q)
+	pt.p.hit(q)
+	pt.p.fetched(q, 600*time.Second)
+	require.True(t, first.stopped)
+	require.Equal(t, 540*time.Second, pt.timers.timers[1].d)
+	// The hits counted toward the old answer.
+	require.Equal(t, 0, pt.p.names[mustCacheKey(t, q)].hits)
+}
+
+func mustCacheKey(t *testing.T, q []byte) cacheKey {
+	key, err := makeCacheKey(q)
+	require.NoError(t, err)
+	return key
+}
+
+// Check that refreshes are limited by the budget.
+func TestPrefetchBudget(t *testing.T) {
+	pt := newPrefetchTest(300 * time.Second)
+	hotNames := func(n int) {
+		for i := 0; i < n; i++ {
+			q := makeQuery(1, fmt.Sprintf("www%d.example.com.", i), false)
+			pt.p.fetched(q, 300*time.Second)
+			pt.p.hit(q)
+			pt.p.hit(q)
+		}
+	}
+	hotNames(3 * prefetchBurst)
+	pt.timers.fireAll()
+	require.Len(t, pt.fetches, prefetchBurst)
+
+	// The budget refills over time, up to the burst size.
+	pt.fetches = nil
+	pt.clock.advance(time.Hour)
+	hotNames(3 * prefetchBurst)
+	pt.timers.fireAll()
+	require.Len(t, pt.fetches, prefetchBurst)
+
+	pt.fetches = nil
+	pt.clock.advance(time.Minute / 10)
+	hotNames(3 * prefetchBurst)
+	pt.timers.fireAll()
+	require.Len(t, pt.fetches, prefetchPerMinute/10)
+}
+
+// Check that hits, misses and refreshes are reported periodically, and when
+// the prefetcher stops.
+func TestPrefetchStats(t *testing.T) {
+	pt := newPrefetchTest(300 * time.Second)
+	q := makeQuery(1, "www.example.com.", false)
+	pt.p.fetched(q, 300*time.Second)
+	pt.p.hit(q)
+	pt.p.hit(q)
+	pt.timers.fireAll()
+
+	// Queries that can't be cached are not misses.
+	pt.p.miss([]byte{1, 2, 3})
+	for i := 0; i < statsInterval-2; i++ {
+		pt.p.miss(q)
+	}
+	require.Equal(t, []CacheStats{{Hits: 2, Misses: statsInterval - 2, Prefetches: 1}}, pt.reports)
+
+	pt.p.hit(q)
+	pt.p.stop()
+	require.Equal(t, CacheStats{Hits: 1}, pt.reports[1])
+	pt.p.stop()
+	require.Len(t, pt.reports, 2)
+}
+
+// Check that stopping cancels scheduled refreshes.
+func TestPrefetchStop(t *testing.T) {
+	pt := newPrefetchTest(300 * time.Second)
+	q := makeQuery(1, "www.example.com.", false)
+	pt.p.fetched(q, 300*time.Second)
+	pt.p.hit(q)
+	pt.p.hit(q)
+	timer := pt.timers.timers[0]
+	pt.p.stop()
+	require.True(t, timer.stopped)
+	require.Error(t, pt.p.ctx.Err())
+
+	// A timer that fires anyway, and later answers, are ignored.
+	timer.f()
+	pt.p.fetched(q, 300*time.Second)
+	require.Empty(t, pt.fetches)
+	require.Len(t, pt.timers.timers, 1)
+}
+
+type cacheStatsListener struct {
+	Listener
+	stats []*CacheStats
+}
+
+func (l *cacheStatsListener) OnCacheStats(s *CacheStats) {
+	l.stats = append(l.stats, s)
+}
+
+// Check that a resolver counts its cache lookups, and reports them to a
+// listener that accepts CacheStats when it is retired.
+func TestResolverCacheStats(t *testing.T) {
+	listener := &cacheStatsListener{Listener: &countingDoHListener{}}
+	r, err := NewResolver(googleDoH.url, googleDoH.ips, nil, nil, listener)
+	require.NoError(t, err)
+	resolver := r.(*resolver)
+
+	q := makeQuery(1, "www.example.com.", false)
+	resolver.cache.put(q, makeResponse(q, dnsmessage.RCodeSuccess,
+		[]dnsmessage.Resource{aRecord("www.example.com.", 300)}, nil))
+	_, err = resolver.Query(context.Background(), q)
+	require.NoError(t, err)
+	Retire(resolver)
+	require.Equal(t, []*CacheStats{{Hits: 1}}, listener.stats)
+}
@@ -0,0 +1,185 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"crypto/tls"
+	"encoding/json"
+	"net"
+	"os"
+	"path/filepath"
+	"sync"
+	"time"
+
+	"localhost/Intra/Android/app/src/go/logging"
+)
+
+// Changes are written out at most this often, because TLS 1.3 servers may
+// issue new session tickets on every connection.
+const warmStartSaveDelay = 5 * time.Second
+
+// storedSession is a serialized tls.ClientSessionState.
+type storedSession struct {
+	Ticket []byte `json:"ticket"`
+	State  []byte `json:"state"`
+}
+
+// warmState is the on-disk format of a warmStart.
+type warmState struct {
+	Confirmed string                   `json:"confirmed,omitempty"`
+	Sessions  map[string]storedSession `json:"sessions,omitempty"`
+}
+
+// warmStart persists the TLS session state and the confirmed IP address of a
+// DoH server in a file, so that a new resolver for the same server can resume
+// a TLS session with a known-good address instead of bootstrapping from
+// scratch.  All methods are safe to call on a nil *warmStart, and do nothing.
+type warmStart struct {
+	path string
+
+	mu      sync.Mutex
+	state   warmState
+	pending bool // True if a save has been scheduled
+}
+
+// loadWarmStart reads the warm-start file for hostname in dir.  A missing or
+// corrupt file yields an empty warmStart, which will overwrite it.
+func loadWarmStart(dir, hostname string) *warmStart {
+	w := &warmStart{path: filepath.Join(dir, hostname+".json")}
+	data, err := os.ReadFile(w.path)
+	if err == nil {
+		err = json.Unmarshal(data, &w.state)
+	}
+	if err != nil && !os.IsNotExist(err) {
+		logging.Warnf("Ignoring warm-start file %s: %v", w.path, err)
+		w.state = warmState{}
+	}
+	if w.state.Sessions == nil {
+		w.state.Sessions = make(map[string]storedSession)
+	}
+	return w
+}
+
+// confirmedIP returns the stored confirmed IP, or nil if there is none.
+func (w *warmStart) confirmedIP() net.IP {
+	if w == nil {
+		return nil
+	}
+	w.mu.Lock()
+	defer w.mu.Unlock()
+	return net.ParseIP(w.state.Confirmed)
+}
+
+// setConfirmedIP records ip as the server's confirmed address.
+func (w *warmStart) setConfirmedIP(ip net.IP) {
+	if w == nil {
+		return
+	}
+	w.mu.Lock()
+	defer w.mu.Unlock()
+	if s := ip.String(); s != w.state.Confirmed {
+		w.state.Confirmed = s
+		w.scheduleSave()
+	}
+}
+
+// sessionCache wraps cache so that sessions stored in it are also persisted,
+// and fills it with the sessions persisted earlier.
+func (w *warmStart) sessionCache(cache tls.ClientSessionCache) tls.ClientSessionCache {
+	if w == nil {
+		return cache
+	}
+	w.mu.Lock()
+	defer w.mu.Unlock()
+	for key, stored := range w.state.Sessions {
+		state, err := tls.ParseSessionState(stored.State)
+		if err != nil {
+			logging.Warnf("Dropping stored TLS session: %v", err)
+			delete(w.state.Sessions, key)
+			continue
+		}
+		session, err := tls.NewResumptionState(stored.Ticket, state)
+		if err != nil {
+			logging.Warnf("Dropping stored TLS session: %v", err)
+			delete(w.state.Sessions, key)
+			continue
+		}
+		cache.Put(key, session)
+	}
+	return &persistentSessionCache{cache, w}
+}
+
+func (w *warmStart) putSession(key string, session *tls.ClientSessionState) {
+	w.mu.Lock()
+	defer w.mu.Unlock()
+	if session == nil {
+		// The session is no longer usable.
+		delete(w.state.Sessions, key)
+		w.scheduleSave()
+		return
+	}
+	ticket, state, err := session.ResumptionState()
+	if err != nil || state == nil {
+		return
+	}
+	stateBytes, err := state.Bytes()
+	if err != nil {
+		logging.Warnf("Failed to serialize TLS session: %v", err)
+		return
+	}
+	w.state.Sessions[key] = storedSession{Ticket: ticket, State: stateBytes}
+	w.scheduleSave()
+}
+
+// scheduleSave arranges for the state to be saved soon.  Must be called under mu.
+func (w *warmStart) scheduleSave() {
+	if w.pending {
+		return
+	}
+	w.pending = true
+	time.AfterFunc(warmStartSaveDelay, w.save)
+}
+
+// save writes the state to disk, replacing the old file atomically.
+func (w *warmStart) save() {
+	w.mu.Lock()
+	w.pending = false
+	data, err := json.Marshal(&w.state)
+	w.mu.Unlock()
+	if err != nil {
+		logging.Warnf("Failed to encode warm-start state: %v", err)
+		return
+	}
+	tmp := w.path + ".tmp"
+	if err := os.WriteFile(tmp, data, 0600); err != nil {
+		logging.Warnf("Failed to write warm-start file: %v", err)
+		return
+	}
+	if err := os.Rename(tmp, w.path); err != nil {
+		logging.Warnf("Failed to replace warm-start file: %v", err)
+	}
+}
+
+// persistentSessionCache is a tls.ClientSessionCache that saves every session
+// it stores to a warmStart.
+type persistentSessionCache struct {
+	tls.ClientSessionCache
+	w *warmStart
+}
+
+func (c *persistentSessionCache) Put(key string, session *tls.ClientSessionState) {
+	c.ClientSessionCache.Put(key, session)
+	c.w.putSession(key, session)
+}
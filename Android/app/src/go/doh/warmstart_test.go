@@ -0,0 +1,88 @@
+// Copyright 2024 Jigsaw Operations LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package doh
+
+import (
+	"crypto/tls"
+	"io"
+	"net"
+	"net/http"
+	"net/http/httptest"
+	"os"
+	"path/filepath"
+	"testing"
+
+	"github.com/stretchr/testify/require"
+)
+
+func TestWarmStartConfirmedIP(t *testing.T) {
+	dir := t.TempDir()
+	w := loadWarmStart(dir, "dns.example")
+	require.Nil(t, w.confirmedIP())
+
+	w.setConfirmedIP(net.ParseIP("192.0.2.1"))
+	w.save()
+	require.Equal(t, "192.0.2.1", loadWarmStart(dir, "dns.example").confirmedIP().String())
+	require.Nil(t, loadWarmStart(dir, "other.example").confirmedIP())
+
+	var nilWarm *warmStart
+	require.Nil(t, nilWarm.confirmedIP())
+	nilWarm.setConfirmedIP(net.ParseIP("192.0.2.1"))
+}
+
+func TestWarmStartCorrupt(t *testing.T) {
+	dir := t.TempDir()
+	require.NoError(t, os.WriteFile(filepath.Join(dir, "dns.example.json"), []byte("{"), 0600))
+	w := loadWarmStart(dir, "dns.example")
+	require.Nil(t, w.confirmedIP())
+	require.Empty(t, w.state.Sessions)
+}
+
+// Returns a client for srv whose session cache is backed by w.
+func warmClient(srv *httptest.Server, w *warmStart) *http.Client {
+	client := srv.Client()
+	config := client.Transport.(*http.Transport).TLSClientConfig
+	config.ClientSessionCache = w.sessionCache(tls.NewLRUClientSessionCache(1))
+	return client
+}
+
+func fetchTLSState(t *testing.T, client *http.Client, url string) *tls.ConnectionState {
+	resp, err := client.Get(url)
+	require.NoError(t, err)
+	// TLS 1.3 session tickets arrive after the handshake, so read the body.
+	_, err = io.ReadAll(resp.Body)
+	require.NoError(t, err)
+	resp.Body.Close()
+	return resp.TLS
+}
+
+// Check that a TLS session saved by one resolver's cache is resumed by the
+// next one.
+func TestWarmStartSessionResumption(t *testing.T) {
+	srv := httptest.NewTLSServer(http.HandlerFunc(func(w http.ResponseWriter, r *http.Request) {
+		w.Write([]byte("ok"))
+	}))
+	defer srv.Close()
+	dir := t.TempDir()
+
+	w := loadWarmStart(dir, "dns.example")
+	state := fetchTLSState(t, warmClient(srv, w), srv.URL)
+	require.False(t, state.DidResume)
+	require.NotEmpty(t, w.state.Sessions)
+	w.save()
+
+	state = fetchTLSState(t, warmClient(srv, loadWarmStart(dir, "dns.example")), srv.URL)
+	require.True(t, state.DidResume)
+}
@@ -26,153 +26,182 @@ import java.util.List;
 /**
  * A representation of a DNS query or response packet.  This class provides read-only access to
  * the relevant contents of a DNS query packet.
+ *
+ * This class is a flyweight over the wire format: the constructor validates the structure of the
+ * packet and records the offset of each section, but it does not decode anything.  Names, types
+ * and record data are only read from the underlying buffer when a getter asks for them, so parsing
+ * a packet allocates nothing beyond this object.  This matters because a packet is parsed for every
+ * DNS query that passes through the VPN.
  */
 public class DnsPacket {
 
-  private byte[] data;
-
   private static final short TYPE_A = 1;
   private static final short TYPE_AAAA = 28;
 
-  private static class DnsQuestion {
+  // Size of the fixed DNS header, which is followed by the question section.
+  private static final int HEADER_SIZE = 12;
+  // Size of the fixed portion of a question after its name: QTYPE and QCLASS.
+  private static final int QUESTION_FIXED_SIZE = 4;
+  // Size of the fixed portion of a resource record after its name: TYPE, CLASS, TTL, RDLENGTH.
+  private static final int RECORD_FIXED_SIZE = 10;
+  // Offset of RDLENGTH within the fixed portion of a resource record.
+  private static final int RDLENGTH_OFFSET = 8;
+
+  // Flag bit positions.  The first flag byte contains QR, Opcode (4 bits), AA, TC, and RD.  The
+  // second contains RA, Z (3 bits) and Rcode (4 bits).
+  private static final int FLAGS1_OFFSET = 2;
+  private static final int FLAGS2_OFFSET = 3;
+  private static final int QR_BIT = 7;
+  private static final int ZEROS_START = 4;
+  private static final int ZEROS_SIZE = 3;
+
+  // The buffer containing the packet, which starts at |base| and ends at |end|.  All other offsets
+  // in this class are relative to |base|, matching the offsets used by DNS name compression.
+  private final ByteBuffer buffer;
+  private final int base;
+  private final int end;
+
+  private final int numQuestions;
+  private final int numAnswers;
+  private final int numAuthorities;
 
-    String name;
-    short qtype;
-    short qclass;
+  // Offset of the QTYPE field of the first question, or -1 if there are no questions.
+  private final int queryTypeOffset;
+  // Offset of the first record in the answer section.  The authority section follows immediately.
+  private final int answerOffset;
+
+  private static boolean getBit(byte src, int index) {
+    return (src & (1 << index)) != 0;
   }
 
-  private static class DnsRecord {
+  private static byte getBits(byte src, int start, int size) {
+    int mask = (1 << size) - 1;
+    return (byte) ((src >>> start) & mask);
+  }
 
-    String name;
-    short rtype;
-    short rclass;
-    int ttl;
-    byte[] data;
+  private byte byteAt(int position) {
+    return buffer.get(base + position);
   }
 
-  private short id;
-  private boolean qr;
-  private byte opcode;
-  private boolean aa;
-  private boolean tc;
-  private boolean rd;
-  private boolean ra;
-  private byte z;
-  private byte rcode;
-  private DnsQuestion[] question;
-  private DnsRecord[] answer;
-  private DnsRecord[] authority;
-  private DnsRecord[] additional;
+  private short shortAt(int position) {
+    return buffer.getShort(base + position);
+  }
 
-  private static String readName(ByteBuffer buffer) throws BufferUnderflowException,
-      ProtocolException {
-    StringBuilder nameBuffer = new StringBuilder();
-    byte labelLength = buffer.get();
-    while (labelLength > 0) {
-      byte[] labelBytes = new byte[labelLength];
-      buffer.get(labelBytes);
-      String label = new String(labelBytes);
-      nameBuffer.append(label);
-      nameBuffer.append(".");
+  // Reads one byte at |position|, treating |limit| as the end of the readable data.
+  private byte get(int position, int limit) {
+    if (position >= limit) {
+      throw new BufferUnderflowException();
+    }
+    return byteAt(position);
+  }
+
+  // Returns |position| + |length|, or throws if that would pass the end of the packet.
+  private int skip(int position, int length) {
+    int next = position + length;
+    if (next > end) {
+      throw new BufferUnderflowException();
+    }
+    return next;
+  }
 
-      labelLength = buffer.get();
+  /**
+   * Walks the name starting at |position|, optionally appending its labels to |name|.
+   * @param limit Reads at or past this offset are disallowed.  This is used as a barrier when
+   *              following compression pointers: a pointer may only refer to a name that ends
+   *              before the pointer itself, which prevents infinite loops.
+   * @return The offset immediately after the end of the name at |position|.  If the name is
+   *         compressed, this is the offset after the pointer, not after the referenced name.
+   */
+  private int readName(int position, int limit, StringBuilder name)
+      throws BufferUnderflowException, ProtocolException {
+    byte labelLength = get(position++, limit);
+    while (labelLength > 0) {
+      if (position + labelLength > limit) {
+        throw new BufferUnderflowException();
+      }
+      if (name != null) {
+        // Hostnames on the wire are ASCII (internationalized names use Punycode), so each byte
+        // maps directly to a char without allocating a String per label.
+        for (int i = 0; i < labelLength; ++i) {
+          name.append((char) (byteAt(position + i) & 0xFF));
+        }
+        name.append('.');
+      }
+      position += labelLength;
+      labelLength = get(position++, limit);
     }
     if (labelLength < 0) {
       // The last byte we read is now a barrier: we should not read past that byte again.
-      final int barrier = buffer.position() - 1;
+      final int barrier = position - 1;
       // This is a compressed label, starting with a 14-bit backwards offset consisting of
       // the lower 6 bits from the first byte and all 8 from the second.
       final int OFFSET_HIGH_BITS_START = 0;
       final int OFFSET_HIGH_BITS_SIZE = 6;
       byte offsetHighBits = getBits(labelLength, OFFSET_HIGH_BITS_START,
           OFFSET_HIGH_BITS_SIZE);
-      byte offsetLowBits = buffer.get();
+      byte offsetLowBits = get(position++, limit);
       int offset = (offsetHighBits << 8) | (offsetLowBits & 0xFF);
-      byte[] data = buffer.array();
       // Only allow references that terminate before the barrier, to avoid stack
       // overflow attacks.
       int delta = barrier - offset;
       if (offset < 0 || delta < 0) {
         throw new ProtocolException("Bad compressed name");
       }
-      ByteBuffer referenceBuffer = ByteBuffer.wrap(data, offset, delta);
-      String suffix = readName(referenceBuffer);
-      nameBuffer.append(suffix);
+      readName(offset, barrier, name);
     }
-    return nameBuffer.toString();
+    return position;
+  }
 
+  // Returns the offset immediately after the name at |position|.
+  private int skipName(int position) throws BufferUnderflowException, ProtocolException {
+    return readName(position, end, null);
   }
 
-  private static DnsRecord[] readRecords(ByteBuffer src, short numRecords)
+  // Returns the offset immediately after the |numRecords| records starting at |position|.
+  private int skipRecords(int position, int numRecords)
       throws BufferUnderflowException, ProtocolException {
-    DnsRecord[] dest = new DnsRecord[numRecords];
-    for (int i = 0; i < dest.length; ++i) {
-      DnsRecord r = new DnsRecord();
-      r.name = readName(src);
-      r.rtype = src.getShort();
-      r.rclass = src.getShort();
-      r.ttl = src.getInt();
-      r.data = new byte[src.getShort()];
-      src.get(r.data);
-      dest[i] = r;
+    for (int i = 0; i < numRecords; ++i) {
+      position = skip(skipName(position), RECORD_FIXED_SIZE);
+      position = skip(position, shortAt(position - RECORD_FIXED_SIZE + RDLENGTH_OFFSET) & 0xFFFF);
     }
-    return dest;
-  }
-
-  private static boolean getBit(byte src, int index) {
-    return (src & (1 << index)) != 0;
+    return position;
   }
 
-  private static byte getBits(byte src, int start, int size) {
-    int mask = (1 << size) - 1;
-    return (byte) ((src >>> start) & mask);
+  public DnsPacket(byte[] data) throws ProtocolException {
+    this(ByteBuffer.wrap(data));
   }
 
-  public DnsPacket(byte[] data) throws ProtocolException {
-    this.data = data;
-    ByteBuffer buffer = ByteBuffer.wrap(data);
+  /**
+   * @param data A buffer whose remaining bytes are the DNS packet.  The buffer is not copied, so
+   *             its contents must not be modified while this object is in use.  This object does
+   *             not modify the buffer's position or limit, and does not depend on its position
+   *             after construction.
+   */
+  public DnsPacket(ByteBuffer data) throws ProtocolException {
+    buffer = data;
+    base = data.position();
+    end = data.remaining();
     try {
-      id = buffer.getShort();
-      // First flag byte: QR, Opcode (4 bits), AA, RD, RA
-      byte flags1 = buffer.get();
-      final int QR_BIT = 7;
-      final int OPCODE_SIZE = 4;
-      final int OPCODE_START = 3;
-      final int AA_BIT = 2;
-      final int TC_BIT = 1;
-      final int RD_BIT = 0;
-      qr = getBit(flags1, QR_BIT);
-      opcode = getBits(flags1, OPCODE_START, OPCODE_SIZE);
-      aa = getBit(flags1, AA_BIT);
-      tc = getBit(flags1, TC_BIT);
-      rd = getBit(flags1, RD_BIT);
-
-      // Second flag byte: RA, 0, 0, 0, Rcode
-      final int RA_BIT = 7;
-      final int ZEROS_START = 4;
-      final int ZEROS_SIZE = 3;
-      final int RCODE_START = 0;
-      final int RCODE_SIZE = 4;
-      byte flags2 = buffer.get();
-      ra = getBit(flags2, RA_BIT);
-      z = getBits(flags2, ZEROS_START, ZEROS_SIZE);
-      rcode = getBits(flags2, RCODE_START, RCODE_SIZE);
-
-      short numQuestions = buffer.getShort();
-      short numAnswers = buffer.getShort();
-      short numAuthorities = buffer.getShort();
-      short numAdditional = buffer.getShort();
-
-      question = new DnsQuestion[numQuestions];
-      for (short i = 0; i < numQuestions; ++i) {
-        question[i] = new DnsQuestion();
-        question[i].name = readName(buffer);
-        question[i].qtype = buffer.getShort();
-        question[i].qclass = buffer.getShort();
+      skip(0, HEADER_SIZE);
+      numQuestions = shortAt(4) & 0xFFFF;
+      numAnswers = shortAt(6) & 0xFFFF;
+      numAuthorities = shortAt(8) & 0xFFFF;
+      int numAdditional = shortAt(10) & 0xFFFF;
+
+      // Walk the whole packet to validate it, so that the getters cannot encounter a malformed
+      // packet later.
+      int position = HEADER_SIZE;
+      int firstQueryTypeOffset = -1;
+      for (int i = 0; i < numQuestions; ++i) {
+        position = skipName(position);
+        if (i == 0) {
+          firstQueryTypeOffset = position;
+        }
+        position = skip(position, QUESTION_FIXED_SIZE);
       }
-      answer = readRecords(buffer, numAnswers);
-      authority = readRecords(buffer, numAuthorities);
-      additional = readRecords(buffer, numAdditional);
+      queryTypeOffset = firstQueryTypeOffset;
+      answerOffset = position;
+      skipRecords(position, numAnswers + numAuthorities + numAdditional);
     } catch (BufferUnderflowException e) {
       ProtocolException p = new ProtocolException("Packet too short");
       p.initCause(e);
@@ -181,43 +210,104 @@ public class DnsPacket {
   }
 
   public short getId() {
-    return id;
+    return shortAt(0);
   }
 
   public boolean isNormalQuery() {
-    return !qr && question.length > 0 && z == 0 && authority.length == 0 && answer.length == 0;
+    byte z = getBits(byteAt(FLAGS2_OFFSET), ZEROS_START, ZEROS_SIZE);
+    return !isResponse() && numQuestions > 0 && z == 0 && numAuthorities == 0 && numAnswers == 0;
   }
 
   public boolean isResponse() {
-    return qr;
+    return getBit(byteAt(FLAGS1_OFFSET), QR_BIT);
   }
 
   public String getQueryName() {
-    if (question.length > 0) {
-      return question[0].name;
+    if (numQuestions == 0) {
+      return null;
     }
-    return null;
+    StringBuilder name = new StringBuilder();
+    try {
+      readName(HEADER_SIZE, end, name);
+    } catch (ProtocolException e) {
+      // Unreachable: the name was validated in the constructor.
+      throw new AssertionError(e);
+    }
+    return name.toString();
   }
 
   public short getQueryType() {
-    if (question.length > 0) {
-      return question[0].qtype;
+    if (queryTypeOffset < 0) {
+      return 0;
+    }
+    return shortAt(queryTypeOffset);
+  }
+
+  // Returns the offset of the fixed portion of the record at |position|.
+  private int recordFixedOffset(int position) {
+    try {
+      return skipName(position);
+    } catch (ProtocolException e) {
+      // Unreachable: all records were validated in the constructor.
+      throw new AssertionError(e);
     }
-    return 0;
+  }
+
+  // Returns the address in the record whose fixed portion starts at |fixedOffset|, or null if
+  // it is not an address record.
+  private InetAddress readAddress(int fixedOffset) {
+    short rtype = shortAt(fixedOffset);
+    if (rtype != TYPE_A && rtype != TYPE_AAAA) {
+      return null;
+    }
+    byte[] rdata = new byte[shortAt(fixedOffset + RDLENGTH_OFFSET) & 0xFFFF];
+    int rdataOffset = fixedOffset + RECORD_FIXED_SIZE;
+    for (int i = 0; i < rdata.length; ++i) {
+      rdata[i] = byteAt(rdataOffset + i);
+    }
+    try {
+      return InetAddress.getByAddress(rdata);
+    } catch (UnknownHostException e) {
+      return null;
+    }
+  }
+
+  // Returns the offset of the record following the record whose fixed portion is at |fixedOffset|.
+  private int nextRecord(int fixedOffset) {
+    return fixedOffset + RECORD_FIXED_SIZE
+        + (shortAt(fixedOffset + RDLENGTH_OFFSET) & 0xFFFF);
   }
 
   public List<InetAddress> getResponseAddresses() {
     List<InetAddress> addresses = new ArrayList<>();
-    for (DnsRecord[] src : new DnsRecord[][]{answer, authority}) {
-      for (DnsRecord r : src) {
-        if (r.rtype == TYPE_A || r.rtype == TYPE_AAAA) {
-          try {
-            addresses.add(InetAddress.getByAddress(r.data));
-          } catch (UnknownHostException e) {
-          }
-        }
+    int position = answerOffset;
+    for (int i = 0; i < numAnswers + numAuthorities; ++i) {
+      int fixedOffset = recordFixedOffset(position);
+      InetAddress address = readAddress(fixedOffset);
+      if (address != null) {
+        addresses.add(address);
       }
+      position = nextRecord(fixedOffset);
     }
     return addresses;
   }
+
+  /**
+   * Equivalent to the first element of getResponseAddresses(), but stops reading the packet as
+   * soon as that address is found.
+   * @return The first A or AAAA address in the answer or authority section, or null if there is
+   *         none.
+   */
+  public InetAddress getFirstResponseAddress() {
+    int position = answerOffset;
+    for (int i = 0; i < numAnswers + numAuthorities; ++i) {
+      int fixedOffset = recordFixedOffset(position);
+      InetAddress address = readAddress(fixedOffset);
+      if (address != null) {
+        return address;
+      }
+      position = nextRecord(fixedOffset);
+    }
+    return null;
+  }
 }
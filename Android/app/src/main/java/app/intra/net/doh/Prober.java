@@ -20,13 +20,30 @@ package app.intra.net.doh;
  */
 public abstract class Prober {
   public interface Callback {
-    void onCompleted(boolean succeeded);
+    /**
+     * @param succeeded True if the server answered the probe query.
+     * @param latencyMs How long the probe took, including connection setup.
+     */
+    void onCompleted(boolean succeeded, long latencyMs);
   }
 
   /**
-   * Called to execute the probe on a new thread.
+   * A probe in progress.
+   */
+  public interface Handle {
+    /**
+     * Stops the probe and releases its resources.  After this call, the callback may not be
+     * called.  Canceling a completed probe has no effect.
+     */
+    void cancel();
+  }
+
+  /**
+   * Called to execute the probe in the background.
    * @param url The DOH server URL to probe.
+   * @param timeoutMs The probe fails if the server hasn't answered within this many milliseconds.
    * @param callback How to report the probe results
+   * @return A handle that can be used to cancel the probe.
    */
-  public abstract void probe(String url, Callback callback);
+  public abstract Handle probe(String url, long timeoutMs, Callback callback);
 }
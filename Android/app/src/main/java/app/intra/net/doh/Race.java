@@ -19,10 +19,15 @@ import android.content.Context;
 import android.util.Log;
 
 import app.intra.net.go.GoProber;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * This class performs parallel probes to all of the specified servers and calls the listener when
  * the fastest probe succeeds or all probes have failed.  Each instance can only be used once.
+ * It can also benchmark the servers with repeated probes, producing a full ranking.
  */
 public class Race {
   private static final String TAG = "DoHProbe";  // tag for logging
@@ -35,42 +40,236 @@ public class Race {
     void onResult(int index);
   }
 
+  /** Number of probes per server in a benchmark. */
+  public static final int DEFAULT_ROUNDS = 5;
+
+  // Deadline for each probe.  A server that takes longer than this is treated as failing.
+  static final long PROBE_TIMEOUT_MS = 10000;
+
+  // Failed probes after which a benchmark gives up on a server that has never answered.  More than
+  // one, so that a single failure on a cold start doesn't rank a working server last.
+  static final int MAX_FAILURES_WITHOUT_ANSWER = 2;
+
+  public interface BenchmarkListener {
+    /**
+     * This method is called once, when every probe in the benchmark has completed.
+     * @param ranking A score for each server, best first.  Servers that failed every probe are
+     *                last.
+     */
+    void onRanking(List<ServerScore> ranking);
+  }
+
   /**
    * Starts a race between different servers.
    * @param context Used to read the IP addresses of the servers from storage.
    * @param urls The URLs for all the DOH servers to compare.
-   * @param listener Called once on an arbitrary thread with the result of the race.
+   * @param listener Called once on an arbitrary thread with the result of the race, unless the
+   *                 race is canceled first.
+   * @return A handle that cancels all the probes in the race.
    */
-  public static void start(Context context, String[] urls, Listener listener) {
+  public static Prober.Handle start(Context context, String[] urls, Listener listener) {
     Prober prober = new GoProber(context);
-    start(prober, urls, listener);
+    return start(prober, urls, listener);
   }
 
   // Exposed for unit testing only.
-  static void start(Prober prober, String[] urls, Listener listener) {
+  static Prober.Handle start(Prober prober, String[] urls, Listener listener) {
     Collector collector = new Collector(urls.length, listener);
     for (int i = 0; i < urls.length; ++i) {
-      prober.probe(urls[i], new Callback(i, collector));
+      collector.setHandle(i, prober.probe(urls[i], PROBE_TIMEOUT_MS, new Callback(i, collector)));
     }
+    return collector;
+  }
+
+  /**
+   * Benchmarks several servers by probing each one repeatedly.  Each server's probes run one after
+   * another, so that they don't compete with each other, but different servers are probed
+   * concurrently.  A server that fails its first MAX_FAILURES_WITHOUT_ANSWER probes is not probed
+   * again, so an unreachable server delays the result by at most that many probe timeouts.  The
+   * result ranks the servers by median latency and failure rate, unlike {@link #start}, which only
+   * reports the first server to answer a single probe.
+   * @param context Used to read the IP addresses of the servers from storage.
+   * @param urls The URLs for all the DOH servers to compare.
+   * @param rounds The number of probes to send to each server.
+   * @param listener Called once on an arbitrary thread with the ranking, unless the benchmark is
+   *                 canceled first.
+   * @return A handle that cancels the benchmark.
+   */
+  public static Prober.Handle benchmark(Context context, String[] urls, int rounds,
+      BenchmarkListener listener) {
+    return benchmark(new GoProber(context), urls, rounds, listener);
   }
 
-  private static class Collector {
+  // Exposed for unit testing only.
+  static Prober.Handle benchmark(Prober prober, String[] urls, int rounds,
+      BenchmarkListener listener) {
+    if (rounds < 1) {
+      throw new IllegalArgumentException("rounds must be positive");
+    }
+    Benchmark benchmark = new Benchmark(prober, urls, rounds, listener);
+    for (int i = 0; i < urls.length; ++i) {
+      benchmark.probe(i);
+    }
+    return benchmark;
+  }
+
+  // Cancels all of |handles|, skipping nulls.
+  private static void cancelAll(Prober.Handle[] handles) {
+    for (Prober.Handle handle : handles) {
+      if (handle != null) {
+        handle.cancel();
+      }
+    }
+  }
+
+  private static class Benchmark implements Prober.Handle {
+    private final Prober prober;
+    private final String[] urls;
+    private final int rounds;
+    private final BenchmarkListener listener;
+    // Latencies of the successful probes for each server.
+    private final long[][] latencies;
+    private final int[] successes;
+    private final int[] failures;
+    // The current probe of each server.
+    private final Prober.Handle[] handles;
+    private int numFinished = 0;
+    private boolean canceled = false;
+
+    Benchmark(Prober prober, String[] urls, int rounds, BenchmarkListener listener) {
+      this.prober = prober;
+      this.urls = urls;
+      this.rounds = rounds;
+      this.listener = listener;
+      latencies = new long[urls.length][rounds];
+      successes = new int[urls.length];
+      failures = new int[urls.length];
+      handles = new Prober.Handle[urls.length];
+      if (urls.length == 0) {
+        listener.onRanking(Collections.<ServerScore>emptyList());
+      }
+    }
+
+    private synchronized int getCompleted(int index) {
+      return successes[index] + failures[index];
+    }
+
+    void probe(final int index) {
+      int round = getCompleted(index);
+      Prober.Handle handle = prober.probe(urls[index], PROBE_TIMEOUT_MS,
+          (boolean succeeded, long latencyMs) -> onCompleted(index, succeeded, latencyMs));
+      boolean cancel;
+      synchronized (this) {
+        cancel = canceled;
+        // If the probe has already completed, handles[index] may belong to the next round.
+        if (getCompleted(index) == round) {
+          handles[index] = handle;
+        }
+      }
+      if (cancel) {
+        handle.cancel();
+      }
+    }
+
+    @Override
+    public void cancel() {
+      Prober.Handle[] current;
+      synchronized (this) {
+        canceled = true;
+        current = handles.clone();
+      }
+      cancelAll(current);
+    }
+
+    private void onCompleted(int index, boolean succeeded, long latencyMs) {
+      boolean more;
+      List<ServerScore> ranking = null;
+      synchronized (this) {
+        if (canceled) {
+          return;
+        }
+        if (succeeded) {
+          latencies[index][successes[index]++] = latencyMs;
+        } else {
+          ++failures[index];
+        }
+        // Don't wait for more timeouts from a server that has never answered.
+        more = (successes[index] > 0 || failures[index] < MAX_FAILURES_WITHOUT_ANSWER)
+            && successes[index] + failures[index] < rounds;
+        if (!more && ++numFinished == urls.length) {
+          ranking = rank();
+        }
+      }
+      // Call out to the prober and listener without holding the lock.
+      if (more) {
+        probe(index);
+      } else if (ranking != null) {
+        listener.onRanking(ranking);
+      }
+    }
+
+    // Must be called with the lock held.
+    private List<ServerScore> rank() {
+      List<ServerScore> ranking = new ArrayList<>(urls.length);
+      for (int i = 0; i < urls.length; ++i) {
+        ServerScore score = ServerScore.fromSamples(urls[i],
+            Arrays.copyOf(latencies[i], successes[i]), failures[i]);
+        Log.i(TAG, "DoH Server No. " + i + ": median " + score.medianMs + " ms, tail "
+            + score.tailMs + " ms, " + score.failures + "/" + (successes[i] + failures[i])
+            + " failed");
+        ranking.add(score);
+      }
+      Collections.sort(ranking);
+      return ranking;
+    }
+  }
+
+  private static class Collector implements Prober.Handle {
     private final int numCallbacks;
     private final Listener listener;
+    private final Prober.Handle[] handles;
     private int numFailed = 0;
     private boolean reportedSuccess = false;
+    private boolean canceled = false;
 
     Collector(int numCallbacks, Listener listener) {
       this.numCallbacks = numCallbacks;
       this.listener = listener;
+      handles = new Prober.Handle[numCallbacks];
+    }
+
+    void setHandle(int index, Prober.Handle handle) {
+      boolean cancel;
+      synchronized (this) {
+        cancel = canceled || reportedSuccess;
+        handles[index] = handle;
+      }
+      if (cancel) {
+        handle.cancel();
+      }
+    }
+
+    @Override
+    public void cancel() {
+      Prober.Handle[] current;
+      synchronized (this) {
+        canceled = true;
+        current = handles.clone();
+      }
+      cancelAll(current);
     }
 
     synchronized void onCompleted(int index, boolean succeeded) {
+      if (canceled) {
+        return;
+      }
       if (succeeded) {
         Log.i(TAG, "DoH Server No. " + index + ": succeeded");
         if (!reportedSuccess) {
-          listener.onResult(index);
           reportedSuccess = true;
+          // The race is over, so the slower probes are no longer needed.
+          cancelAll(handles);
+          listener.onResult(index);
         }
       } else {
         Log.w(TAG, "DoH Server No. " + index + ": failed");
@@ -95,7 +294,7 @@ public class Race {
     }
 
     @Override
-    public void onCompleted(boolean succeeded) {
+    public void onCompleted(boolean succeeded, long latencyMs) {
       collector.onCompleted(index, succeeded);
     }
   }
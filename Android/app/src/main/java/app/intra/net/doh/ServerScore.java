@@ -0,0 +1,104 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * The measured performance of one DoH server over several probes, as produced by
+ * {@link Race#benchmark}.  Scores are immutable, and order from best to worst.
+ */
+public class ServerScore implements Comparable<ServerScore> {
+  // Cost charged for each failed probe when ranking servers, roughly the time a client spends
+  // waiting on a server that doesn't answer.
+  static final long FAILURE_PENALTY_MS = 5000;
+
+  public final String url;
+  public final int successes;
+  public final int failures;
+  // Latency percentiles of the successful probes, or -1 if there were none.
+  public final long medianMs;
+  public final long tailMs;  // 90th percentile
+
+  ServerScore(String url, int successes, int failures, long medianMs, long tailMs) {
+    this.url = url;
+    this.successes = successes;
+    this.failures = failures;
+    this.medianMs = medianMs;
+    this.tailMs = tailMs;
+  }
+
+  /**
+   * @param latenciesMs The latencies of the successful probes.  This array is sorted in place.
+   */
+  static ServerScore fromSamples(String url, long[] latenciesMs, int failures) {
+    int n = latenciesMs.length;
+    if (n == 0) {
+      return new ServerScore(url, 0, failures, -1, -1);
+    }
+    Arrays.sort(latenciesMs);
+    // Nearest-rank percentiles.
+    long median = latenciesMs[(n - 1) / 2];
+    long tail = latenciesMs[(int) Math.ceil(0.9 * n) - 1];
+    return new ServerScore(url, n, failures, median, tail);
+  }
+
+  public boolean hasSucceeded() {
+    return successes > 0;
+  }
+
+  public double getFailureRate() {
+    int total = successes + failures;
+    return total == 0 ? 1 : (double) failures / total;
+  }
+
+  // The expected cost of a query, counting each failure as FAILURE_PENALTY_MS.
+  private double getCost() {
+    return medianMs + getFailureRate() * FAILURE_PENALTY_MS;
+  }
+
+  @Override
+  public int compareTo(@NonNull ServerScore other) {
+    if (hasSucceeded() != other.hasSucceeded()) {
+      return hasSucceeded() ? -1 : 1;
+    }
+    int result = Double.compare(getCost(), other.getCost());
+    if (result == 0 && tailMs != other.tailMs) {
+      result = tailMs < other.tailMs ? -1 : 1;
+    }
+    return result;
+  }
+
+  // Persistent form, used by PersistentState.  The URL comes last because it may contain commas.
+  public String encode() {
+    return successes + "," + failures + "," + medianMs + "," + tailMs + "," + url;
+  }
+
+  public static @Nullable ServerScore decode(String encoded) {
+    String[] parts = encoded.split(",", 5);
+    if (parts.length != 5) {
+      return null;
+    }
+    try {
+      return new ServerScore(parts[4], Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+          Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+}
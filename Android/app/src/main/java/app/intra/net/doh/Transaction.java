@@ -16,21 +16,23 @@ limitations under the License.
 package app.intra.net.doh;
 
 import app.intra.net.dns.DnsPacket;
-import java.io.Serializable;
-import java.util.Calendar;
 
 /**
  * A representation of a complete DNS transaction, whether it succeeded or failed.
+ * Transactions are passed to the UI by reference, so this class holds only primitives and
+ * immutable values.
  */
-public class Transaction implements Serializable {
+public class Transaction {
 
+  // HistoryStore persists these by ordinal, so new values must be added at the end.
   public enum Status {
     COMPLETE,
     SEND_FAIL,
     HTTP_ERROR,
     BAD_RESPONSE,
     INTERNAL_ERROR,
-    CANCELED
+    CANCELED,
+    CACHED  // Answered from the resolver's cache, without contacting the server.
   }
 
   public Transaction(DnsPacket query, long timestamp) {
@@ -45,6 +47,11 @@ public class Transaction implements Serializable {
   public long responseTime;
   public Status status;
   public byte[] response;
-  public Calendar responseCalendar;
+  public long responseWallTime;  // System.currentTimeMillis() at responseTime.
   public String serverIp;
+
+  // True if the transaction produced a response from the server, directly or through the cache.
+  public boolean isAnswered() {
+    return status == Status.COMPLETE || status == Status.CACHED;
+  }
 }
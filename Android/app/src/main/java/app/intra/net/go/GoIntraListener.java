@@ -20,13 +20,13 @@ import androidx.collection.LongSparseArray;
 import com.google.firebase.perf.FirebasePerformance;
 import com.google.firebase.perf.metrics.HttpMetric;
 import java.net.ProtocolException;
-import java.util.Calendar;
 import app.intra.net.dns.DnsPacket;
 import app.intra.net.doh.Transaction;
 import app.intra.net.doh.Transaction.Status;
 import app.intra.sys.IntraVpnService;
 import app.intra.sys.firebase.AnalyticsWrapper;
 import backend.Backend;
+import backend.DoHCacheStats;
 import backend.DoHListener;
 import backend.DoHQuerySumary;
 import backend.DoHQueryToken;
@@ -99,6 +99,7 @@ public class GoIntraListener implements intra.Listener, DoHListener {
     goStatusMap.put(Backend.DoHStatusBadQuery, Status.INTERNAL_ERROR); // TODO: Add a BAD_QUERY Status
     goStatusMap.put(Backend.DoHStatusBadResponse, Status.BAD_RESPONSE);
     goStatusMap.put(Backend.DoHStatusInternalError, Status.INTERNAL_ERROR);
+    goStatusMap.put(Backend.DoHStatusCached, Status.CACHED);
   }
 
   // Wrapping HttpMetric into a DoHQueryToken allows us to get paired query and response notifications
@@ -135,6 +136,11 @@ public class GoIntraListener implements intra.Listener, DoHListener {
       m.metric.stop();  // Finalizes the metric and queues it for upload.
     }
 
+    if (summary.getHedges() > 0 && summary.getStatus() == Backend.DoHStatusComplete) {
+      // This query was slow enough to be hedged.
+      analytics.logHedge(summary.isHedge(), (int)(1000 * summary.getLatency()));
+    }
+
     final DnsPacket query;
     try {
       query = new DnsPacket(summary.getQuery());
@@ -149,8 +155,12 @@ public class GoIntraListener implements intra.Listener, DoHListener {
     transaction.responseTime = (long)(1000 * summary.getLatency());
     transaction.serverIp = summary.getServer();
     transaction.status = goStatusMap.get(summary.getStatus());
-    transaction.responseCalendar = Calendar.getInstance();
 
     vpnService.recordTransaction(transaction);
   }
+
+  @Override
+  public void onCacheStats(DoHCacheStats stats) {
+    analytics.logDnsCache((int)stats.getHits(), (int)stats.getMisses(), (int)stats.getPrefetches());
+  }
 }
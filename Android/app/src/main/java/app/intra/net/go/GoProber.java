@@ -18,16 +18,36 @@ package app.intra.net.go;
 import android.content.Context;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
+import android.os.SystemClock;
 import app.intra.net.doh.Prober;
 import app.intra.sys.VpnController;
-import backend.Backend;
-import backend.DoHServer;
+import backend.DoHProbe;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import protect.Protector;
 
 /**
- * Implements a Probe using the Go-based DoH client.
+ * Implements a Probe using the Go-based DoH client.  Probes from all instances share a small pool
+ * of threads, so concurrent races can't start an unbounded number of threads.
  */
 public class GoProber extends Prober {
+  // Fewer than the builtin servers plus the custom one, so a benchmark of all of them runs in
+  // waves: its total time grows with the number of servers / 8, up to one probe timeout per wave.
+  // Latencies are still accurate, since a probe is timed from when it starts running.
+  private static final int MAX_CONCURRENT_PROBES = 8;
+
+  private static final ThreadPoolExecutor EXECUTOR;
+  static {
+    final AtomicInteger threadCount = new AtomicInteger();
+    EXECUTOR = new ThreadPoolExecutor(MAX_CONCURRENT_PROBES, MAX_CONCURRENT_PROBES,
+        30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+        r -> new Thread(r, "GoProber-" + threadCount.incrementAndGet()));
+    // Don't keep idle threads around between races.
+    EXECUTOR.allowCoreThreadTimeOut(true);
+  }
 
   private final Context context;
 
@@ -36,18 +56,58 @@ public class GoProber extends Prober {
   }
 
   @Override
-  public void probe(String url, Callback callback) {
-    new Thread(() -> {
+  public Handle probe(String url, long timeoutMs, Callback callback) {
+    ProbeTask task = new ProbeTask(url, timeoutMs, callback);
+    task.future = EXECUTOR.submit(task);
+    return task;
+  }
+
+  private class ProbeTask implements Runnable, Handle {
+    private final String url;
+    private final long timeoutMs;
+    private final Callback callback;
+    private volatile boolean canceled = false;
+    // Its deadline and cancellation cover the bootstrap of the server as well as the query.
+    private final DoHProbe doHProbe = new DoHProbe();
+    private volatile Future<?> future = null;
+
+    ProbeTask(String url, long timeoutMs, Callback callback) {
+      this.url = url;
+      this.timeoutMs = timeoutMs;
+      this.callback = callback;
+    }
+
+    @Override
+    public void run() {
+      if (canceled) {
+        return;
+      }
       String dohIPs = GoVpnAdapter.getIpString(context, url);
+      long start = SystemClock.elapsedRealtime();
+      boolean succeeded;
       try {
         // Protection isn't needed for Lollipop+, or if the VPN is not active.
         Protector protector = VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP ? null :
             VpnController.getInstance().getIntraVpnService();
-        Backend.probe(new DoHServer(url, dohIPs, protector, null));
-        callback.onCompleted(true);
+        doHProbe.run(url, dohIPs, protector, timeoutMs);
+        succeeded = true;
       } catch (Exception e) {
-        callback.onCompleted(false);
+        succeeded = false;
+      }
+      if (!canceled) {
+        callback.onCompleted(succeeded, SystemClock.elapsedRealtime() - start);
+      }
+    }
+
+    @Override
+    public void cancel() {
+      canceled = true;
+      Future<?> f = future;
+      if (f != null) {
+        // Prevents the task from running if it hasn't started.
+        f.cancel(false);
       }
-    }).start();
+      doHProbe.cancel();
+    }
   }
 }
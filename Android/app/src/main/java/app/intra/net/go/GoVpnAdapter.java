@@ -29,6 +29,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.List;
 import java.util.Locale;
 import app.intra.R;
 import app.intra.sys.CountryCode;
@@ -40,6 +41,7 @@ import app.intra.sys.firebase.LogWrapper;
 import app.intra.sys.firebase.RemoteConfig;
 import backend.Backend;
 import backend.DoHServer;
+import backend.DoHServerList;
 import backend.Session;
 import protect.Protector;
 
@@ -62,6 +64,13 @@ public class GoVpnAdapter {
   // Choir salt file name
   private static final String CHOIR_FILENAME = "choir-salt";
 
+  // Maximum time to wait for a new DoH server to connect before switching to it.  Until then,
+  // queries still go to the old server, which may be stuck on a network that is gone.
+  private static final long PREWARM_TIMEOUT_MS = 3000;
+
+  // Directory holding DoH warm-start state
+  private static final String WARM_START_DIR = "doh-warm-start";
+
   // The VPN service and tun2socks must agree on the layout of the network.  By convention, we
   // assign the following values to the final byte of an address within a subnet.
   private enum LanIp {
@@ -90,6 +99,8 @@ public class GoVpnAdapter {
   // The Intra session object from go-tun2socks.  Initially null.
   private Session session;
   private GoIntraListener listener;
+  // Incremented by each call to updateDohUrl, so that only the latest update is applied.
+  private int dohGeneration = 0;
 
   public static GoVpnAdapter establish(@NonNull IntraVpnService vpnService) {
     ParcelFileDescriptor tunFd = establishVpn(vpnService);
@@ -202,14 +213,35 @@ public class GoVpnAdapter {
     tunFd = null;
   }
 
+  // Returns a DoHServer for url, pooled with any backup servers the user has selected.
   private DoHServer makeDoHServer(@Nullable String url) throws Exception {
+    DoHServer primary = makeSingleDoHServer(url);
+    List<String> fallbackUrls = PersistentState.getFallbackServerUrls(vpnService);
+    if (fallbackUrls.isEmpty()) {
+      return primary;
+    }
+    DoHServerList servers = Backend.newDoHServerList();
+    servers.add(primary);
+    for (String fallbackUrl : fallbackUrls) {
+      try {
+        servers.add(makeSingleDoHServer(fallbackUrl));
+      } catch (Exception e) {
+        // A broken backup server must not prevent use of the others.
+        LogWrapper.logException(e);
+      }
+    }
+    return Backend.newDoHServerPool(servers, RemoteConfig.getHedgingEnabled());
+  }
+
+  private DoHServer makeSingleDoHServer(@Nullable String url) throws Exception {
     @NonNull String realUrl = PersistentState.expandUrl(vpnService, url);
     String dohIPs = getIpString(vpnService, realUrl);
     String host = new URL(realUrl).getHost();
     long startTime = SystemClock.elapsedRealtime();
     final DoHServer server;
     try {
-      server = new DoHServer(realUrl, dohIPs, getProtector(), listener);
+      server = Backend.newWarmDoHServer(realUrl, dohIPs, getWarmStartDir().getPath(),
+          getProtector(), listener);
     } catch (Exception e) {
       AnalyticsWrapper.get(vpnService).logBootstrapFailed(host);
       throw e;
@@ -219,31 +251,69 @@ public class GoVpnAdapter {
     return server;
   }
 
+  // Returns the app-private directory where DoH servers keep TLS sessions and working IPs, so
+  // that they survive VPN restarts and reboots.
+  private File getWarmStartDir() {
+    return vpnService.getDir(WARM_START_DIR, Context.MODE_PRIVATE);
+  }
+
   /**
    * Updates the DOH server URL for the VPN.  If Go-DoH is enabled, DNS queries will be handled in
    * Go, and will not use the Java DoH implementation.  If Go-DoH is not enabled, this method
    * has no effect.
    */
-  public synchronized void updateDohUrl() {
-    if (tunFd == null) {
-      // Adapter is closed.
-      return;
-    }
-    if (session == null) {
-      // Attempt to re-create the tunnel.  Creation may have failed originally because the DoH
-      // server could not be reached.  This will update the DoH URL as well.
-      connectTunnel();
-      return;
+  public void updateDohUrl() {
+    // The lock is not held while the new server connects, so that the current server can keep
+    // answering queries.
+    final int generation;
+    synchronized (this) {
+      if (tunFd == null) {
+        // Adapter is closed.
+        return;
+      }
+      if (session == null) {
+        // Attempt to re-create the tunnel.  Creation may have failed originally because the DoH
+        // server could not be reached.  This will update the DoH URL as well.
+        connectTunnel();
+        return;
+      }
+      generation = ++dohGeneration;
     }
     // Overwrite the DoH Transport with a new one, even if the URL has not changed.  This function
     // is called on network changes, and it's important to switch to a fresh transport because the
     // old transport may be using sockets on a deleted interface, which may block until they time
-    // out.
+    // out.  The old transport keeps handling queries until the new one has connected (make before
+    // break), and then finishes its in-flight queries in the background.
     String url = PersistentState.getServerUrl(vpnService);
+    DoHServer server = null;
+    Exception error = null;
     try {
-      session.setDoHServer(makeDoHServer(url));
+      server = makeDoHServer(url);
     } catch (Exception e) {
-      LogWrapper.logException(e);
+      error = e;
+    }
+    if (server != null) {
+      try {
+        Backend.prewarm(server, PREWARM_TIMEOUT_MS);
+      } catch (Exception e) {
+        // The new network may not be ready yet.  The server will connect on demand instead.
+        LogWrapper.log(Log.WARN, LOG_TAG, "Failed to prewarm DoH server");
+      }
+    }
+    synchronized (this) {
+      if (session == null || generation != dohGeneration) {
+        // The adapter was closed, or a newer update has superseded this one.  The new server will
+        // never be used, so close the connections it just warmed up.
+        if (server != null) {
+          server.retire();
+        }
+        return;
+      }
+      if (server != null) {
+        session.setDoHServer(server);
+        return;
+      }
+      LogWrapper.logException(error);
       session.disconnect();
       session = null;
       VpnController.getInstance().onConnectionStateChanged(vpnService, IntraVpnService.State.FAILING);
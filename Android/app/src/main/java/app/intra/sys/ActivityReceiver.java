@@ -15,21 +15,24 @@ limitations under the License.
 */
 package app.intra.sys;
 
-import java.util.Collection;
-
 /**
  * Interface for classes that can receive information about when recent events occurred.
  *
  * This class primarily serves to allow HistoryGraph to scan QueryTracker's activity data
- * while QueryTracker holds a lock, without making an extra copy and without QueryTracker
- * having to import HistoryGraph.
+ * without QueryTracker having to import HistoryGraph.
  */
 public interface ActivityReceiver {
+  // Events are counted in intervals of this length.
+  int RESOLUTION_MS = 100;
+  // Number of intervals in the activity history, which covers the last minute.
+  int NUM_BUCKETS = 60 * 1000 / RESOLUTION_MS;
+
   /**
-   * @param activity The SystemClock.elapsedRealtime() timestamps of each event in the recent
-   *                 activity history as an unmodifiable collection.  The implementor must not
-   *                 retain the argument past the end of this call, as it is owned by the caller
-   *                 and may be modified.
+   * @param latest The SystemClock.elapsedRealtime() at the start of the most recent interval.
+   * @param counts The number of events in each of the last NUM_BUCKETS intervals, most recent
+   *               first, so counts[i] covers [latest - i * RESOLUTION_MS, latest -
+   *               (i - 1) * RESOLUTION_MS).  The implementor must not modify or retain the array
+   *               past the end of this call, as it is owned by the caller.
    */
-  void receive(Collection<Long> activity);
+  void receive(long latest, int[] counts);
 }
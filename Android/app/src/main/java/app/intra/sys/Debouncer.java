@@ -0,0 +1,91 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.sys;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces bursts of triggers into a single run of an action.  The action runs once no trigger
+ * has arrived for delayMs, or maxDelayMs after the first trigger of the burst, whichever comes
+ * first.  Runs of the action never overlap, and a trigger that arrives while the action is
+ * running starts a new burst.
+ */
+class Debouncer {
+  private final ScheduledExecutorService executor;
+  private final long delayMs;
+  private final long maxDelayMs;
+  private final Runnable action;
+
+  // All fields below are guarded by this.
+  private boolean scheduled = false;
+  private long burstStartMs;
+  private long deadlineMs;
+
+  /**
+   * @param executor Runs the action.  It should be single-threaded, so that runs never overlap.
+   */
+  Debouncer(ScheduledExecutorService executor, long delayMs, long maxDelayMs, Runnable action) {
+    this.executor = executor;
+    this.delayMs = delayMs;
+    this.maxDelayMs = maxDelayMs;
+    this.action = action;
+  }
+
+  private static long nowMs() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+  }
+
+  /**
+   * Starts or extends a burst.  Triggers are ignored once the executor has been shut down.
+   */
+  synchronized void trigger() {
+    long now = nowMs();
+    if (!scheduled) {
+      if (!schedule(delayMs)) {
+        return;
+      }
+      scheduled = true;
+      burstStartMs = now;
+    }
+    deadlineMs = Math.min(now + delayMs, burstStartMs + maxDelayMs);
+  }
+
+  // Returns false if the executor has been shut down.
+  private boolean schedule(long delayMs) {
+    try {
+      executor.schedule(this::check, delayMs, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+  }
+
+  // Runs the action if the deadline has passed, or checks again at the deadline.
+  private void check() {
+    synchronized (this) {
+      long remaining = deadlineMs - nowMs();
+      if (remaining > 0) {
+        // If the executor has been shut down, the burst is abandoned.
+        scheduled = schedule(remaining);
+        return;
+      }
+      scheduled = false;
+    }
+    action.run();
+  }
+}
@@ -0,0 +1,547 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.sys;
+
+import app.intra.net.dns.DnsPacket;
+import app.intra.net.doh.Transaction;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Persistent history of DNS transactions, stored as an append-only log of compact binary records.
+ * The log is split into segment files in a private directory.  When the newest segment reaches
+ * segmentBytes, a new one is started, and the oldest segment is deleted once there are more than
+ * maxSegments, so the history's disk usage is bounded.
+ *
+ * Each record has an index, starting at zero and increasing by one for each transaction.  Records
+ * are read a page of PAGE_SIZE at a time, so only the location of each page is held in memory.
+ *
+ * This class does no work on its own.  The owner calls flush() on a background thread to write
+ * the transactions that have been appended; until then, they are held in memory.  append(),
+ * getStart() and getEnd() never block on I/O.  The other methods may, and should not be called
+ * on the main thread.
+ *
+ * Thread-safe.
+ */
+public class HistoryStore {
+
+  public static final int PAGE_SIZE = 64;
+
+  // A new segment starts with an 8-byte header.
+  private static final int MAGIC = 0x49485354;  // "IHST"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final String SUFFIX = ".log";
+
+  // Each record starts with a 2-byte length, followed by:
+  //   wallTime (8), latencyMs (4), type (2), status (1),
+  //   address length (1) and address, name length (1) and name, server length (1) and server.
+  private static final int FIXED_SIZE = 8 + 4 + 2 + 1 + 3;
+  private static final int MAX_STRING = 255;
+  private static final int MAX_RECORD_SIZE = 2 + FIXED_SIZE + 16 + 2 * MAX_STRING;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  // Status values are stored by ordinal, so Transaction.Status must only be extended at the end.
+  private static final Transaction.Status[] STATUSES = Transaction.Status.values();
+
+  /**
+   * The part of a Transaction that is kept in the history.
+   */
+  public static final class Record {
+    public final long wallTime;    // System.currentTimeMillis() when the response arrived
+    public final int latencyMs;
+    public final short type;
+    public final Transaction.Status status;
+    public final byte[] address;   // The first address in the response, or null if none.
+    public final String name;
+    public final String serverIp;  // Null if unknown
+
+    Record(long wallTime, int latencyMs, short type, Transaction.Status status, byte[] address,
+        String name, String serverIp) {
+      this.wallTime = wallTime;
+      this.latencyMs = latencyMs;
+      this.type = type;
+      this.status = status;
+      this.address = address;
+      this.name = name;
+      this.serverIp = serverIp;
+    }
+
+    // Extracts the Record from a transaction.  A complete transaction whose response can't be
+    // parsed is recorded as BAD_RESPONSE.
+    static Record from(Transaction transaction) {
+      Transaction.Status status = transaction.status;
+      byte[] address = null;
+      if (transaction.isAnswered()) {
+        try {
+          InetAddress first = new DnsPacket(transaction.response).getFirstResponseAddress();
+          if (first != null) {
+            address = first.getAddress();
+          }
+        } catch (ProtocolException e) {
+          status = Transaction.Status.BAD_RESPONSE;
+        }
+      }
+      int latency = (int) (transaction.responseTime - transaction.queryTime);
+      return new Record(transaction.responseWallTime, latency, transaction.type, status, address,
+          transaction.name, transaction.serverIp);
+    }
+  }
+
+  private static final class Segment {
+    final File file;
+    final long firstIndex;  // Always a multiple of PAGE_SIZE.
+    int count = 0;
+    int size = HEADER_SIZE;
+    // Offset of the first record of each page in this segment.
+    int[] pageOffsets = new int[8];
+
+    Segment(File file, long firstIndex) {
+      this.file = file;
+      this.firstIndex = firstIndex;
+    }
+
+    long end() {
+      return firstIndex + count;
+    }
+
+    // Notes that a record of |recordSize| bytes has been added.
+    void add(int recordSize) {
+      int page = count / PAGE_SIZE;
+      if (count % PAGE_SIZE == 0) {
+        if (page == pageOffsets.length) {
+          pageOffsets = Arrays.copyOf(pageOffsets, 2 * page);
+        }
+        pageOffsets[page] = size;
+      }
+      ++count;
+      size += recordSize;
+    }
+
+    int pageEnd(int page) {
+      return (page + 1) * PAGE_SIZE < count ? pageOffsets[page + 1] : size;
+    }
+  }
+
+  private final File dir;
+  private final int segmentBytes;
+  private final int maxSegments;
+
+  // Guarded by this.  Oldest first.  Only flush() and clear() write to disk.
+  private final List<Segment> segments = new ArrayList<>();
+  // Only written while holding both locks, so either one is sufficient for reading.
+  private boolean loaded = false;
+  // Reused by flush(), guarded by this.
+  private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+  // Transactions that have not been written yet.  Guarded by itself, along with the fields below.
+  // Records below |start| have been deleted.  Records in [start, flushed) are on disk, and
+  // pending[i] will be record flushed + i.  |flushed| is always on a page boundary when there are
+  // no segments, so that each segment starts on a page boundary and each page is in one segment.
+  private final List<Transaction> pending = new ArrayList<>();
+  private long start = 0;
+  private long flushed = 0;
+  private boolean enabled = false;
+
+  HistoryStore(File dir, int segmentBytes, int maxSegments) {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = maxSegments;
+  }
+
+  /**
+   * @param dir A private directory that holds nothing but this history.
+   */
+  public HistoryStore(File dir) {
+    // At about 60 bytes per record, this holds over 100,000 transactions in at most 8 MB.
+    this(dir, 256 * 1024, 32);
+  }
+
+  public void setEnabled(boolean enabled) {
+    synchronized (pending) {
+      this.enabled = enabled;
+    }
+  }
+
+  public boolean isEnabled() {
+    synchronized (pending) {
+      return enabled;
+    }
+  }
+
+  /**
+   * Adds a transaction to the end of the history, if the history is enabled.  The transaction
+   * must not be modified afterward.
+   * @return True if this is the first transaction since the last flush, so a flush should be
+   *     scheduled.
+   */
+  public boolean append(Transaction transaction) {
+    synchronized (pending) {
+      if (!enabled) {
+        return false;
+      }
+      pending.add(transaction);
+      return pending.size() == 1;
+    }
+  }
+
+  /**
+   * @return The index of the oldest record, or 0 before the history has been loaded.
+   */
+  public long getStart() {
+    synchronized (pending) {
+      return start;
+    }
+  }
+
+  /**
+   * @return One more than the index of the newest record, or 0 before the history has been
+   *     loaded.  New records are visible as soon as they are appended.
+   */
+  public long getEnd() {
+    synchronized (pending) {
+      return loaded ? flushed + pending.size() : 0;
+    }
+  }
+
+  /**
+   * Reads the existing history from disk, if that hasn't been done yet.  Damaged or unrecognized
+   * segments are deleted.
+   */
+  public synchronized void load() throws IOException {
+    if (loaded) {
+      return;
+    }
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create " + dir);
+    }
+    List<Segment> found = new ArrayList<>();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        Segment segment = scan(file);
+        if (segment != null) {
+          found.add(segment);
+        }
+      }
+    }
+    // Keep the newest run of consecutive segments.
+    Collections.sort(found,
+        (a, b) -> a.firstIndex < b.firstIndex ? -1 : a.firstIndex > b.firstIndex ? 1 : 0);
+    int first = 0;
+    for (int i = 1; i < found.size(); ++i) {
+      if (found.get(i).firstIndex != found.get(i - 1).end()) {
+        first = i;
+      }
+    }
+    for (int i = 0; i < first; ++i) {
+      found.get(i).file.delete();
+    }
+    segments.addAll(found.subList(first, found.size()));
+    synchronized (pending) {
+      if (!segments.isEmpty()) {
+        start = segments.get(0).firstIndex;
+        flushed = segments.get(segments.size() - 1).end();
+      }
+      loaded = true;
+    }
+  }
+
+  // Reads a segment's metadata, or deletes it and returns null if it isn't usable.  A partial
+  // record at the end, left by an interrupted write, is truncated.
+  private Segment scan(File file) throws IOException {
+    String name = file.getName();
+    long firstIndex = -1;
+    if (name.endsWith(SUFFIX)) {
+      try {
+        firstIndex = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        // Not a segment.
+      }
+    }
+    byte[] data = readFile(file);
+    ByteBuffer in = ByteBuffer.wrap(data);
+    if (firstIndex < 0 || firstIndex % PAGE_SIZE != 0 || data.length < HEADER_SIZE
+        || in.getInt() != MAGIC || in.getInt() != VERSION) {
+      file.delete();
+      return null;
+    }
+    Segment segment = new Segment(file, firstIndex);
+    while (in.remaining() >= 2) {
+      int length = in.getShort() & 0xffff;
+      if (length > in.remaining()) {
+        break;
+      }
+      in.position(in.position() + length);
+      segment.add(2 + length);
+    }
+    if (segment.size < data.length) {
+      RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+      try {
+        truncate.setLength(segment.size);
+      } finally {
+        truncate.close();
+      }
+    }
+    return segment;
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      byte[] data = new byte[(int) file.length()];
+      int n = 0;
+      while (n < data.length) {
+        int read = in.read(data, n, data.length - n);
+        if (read < 0) {
+          return Arrays.copyOf(data, n);
+        }
+        n += read;
+      }
+      return data;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes all appended transactions to disk.
+   */
+  public synchronized void flush() throws IOException {
+    load();
+    final List<Transaction> batch;
+    synchronized (pending) {
+      batch = new ArrayList<>(pending);
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    // The batch stays in |pending| until it is on disk, so that readers can always find it.  If
+    // a write fails, the rest of the batch is dropped, so that a persistent error can't cause
+    // unbounded memory use.
+    int written = 0;
+    try {
+      while (written < batch.size()) {
+        written += writeSome(batch, written);
+      }
+    } finally {
+      synchronized (pending) {
+        pending.subList(0, batch.size()).clear();
+        flushed += written;
+      }
+    }
+  }
+
+  // Writes as many transactions from batch[offset:] as fit in the current segment, and returns
+  // the number written.
+  private int writeSome(List<Transaction> batch, int offset) throws IOException {
+    Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    if (segment == null || (segment.size >= segmentBytes && segment.count % PAGE_SIZE == 0)) {
+      segment = startSegment();
+    }
+    buffer.clear();
+    int n = 0;
+    while (offset + n < batch.size()) {
+      if (segment.size + buffer.position() >= segmentBytes && (segment.count + n) % PAGE_SIZE == 0
+          && n > 0) {
+        break;
+      }
+      if (buffer.remaining() < MAX_RECORD_SIZE) {
+        break;
+      }
+      encode(Record.from(batch.get(offset + n)), buffer);
+      ++n;
+    }
+    try {
+      FileOutputStream out = new FileOutputStream(segment.file, true);
+      try {
+        out.write(buffer.array(), 0, buffer.position());
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      // Remove any partial write, which would corrupt the following records.
+      RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+      try {
+        file.setLength(segment.size);
+      } finally {
+        file.close();
+      }
+      throw e;
+    }
+    // Update the metadata only after the write succeeds.
+    ByteBuffer written = ByteBuffer.wrap(buffer.array(), 0, buffer.position());
+    while (written.hasRemaining()) {
+      int length = written.getShort() & 0xffff;
+      written.position(written.position() + length);
+      segment.add(2 + length);
+    }
+    return n;
+  }
+
+  private Segment startSegment() throws IOException {
+    // A segment is only started when there are none, or the last one ends on a page boundary.
+    long firstIndex;
+    if (segments.isEmpty()) {
+      synchronized (pending) {
+        firstIndex = flushed;
+      }
+    } else {
+      firstIndex = segments.get(segments.size() - 1).end();
+    }
+    Segment segment = new Segment(new File(dir, firstIndex + SUFFIX), firstIndex);
+    FileOutputStream out = new FileOutputStream(segment.file);
+    try {
+      out.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).array());
+    } finally {
+      out.close();
+    }
+    segments.add(segment);
+    while (segments.size() > maxSegments) {
+      segments.remove(0).file.delete();
+    }
+    synchronized (pending) {
+      start = segments.get(0).firstIndex;
+    }
+    return segment;
+  }
+
+  private void deleteSegments() {
+    for (Segment segment : segments) {
+      segment.file.delete();
+    }
+    segments.clear();
+  }
+
+  /**
+   * Deletes all records, including any that haven't been written yet.  Indices are not reused.
+   */
+  public synchronized void clear() throws IOException {
+    load();
+    deleteSegments();
+    synchronized (pending) {
+      flushed = roundUp(flushed + pending.size());
+      pending.clear();
+      start = flushed;
+    }
+  }
+
+  /**
+   * @return The records in page |page|, i.e. with indices [page * PAGE_SIZE, (page + 1) *
+   *     PAGE_SIZE).  Entries for records that don't exist are null.
+   */
+  public synchronized Record[] readPage(long page) throws IOException {
+    load();
+    Record[] records = new Record[PAGE_SIZE];
+    long first = page * PAGE_SIZE;
+    for (Segment segment : segments) {
+      if (segment.firstIndex <= first && first < segment.end()) {
+        int localPage = (int) ((first - segment.firstIndex) / PAGE_SIZE);
+        int offset = segment.pageOffsets[localPage];
+        byte[] data = new byte[segment.pageEnd(localPage) - offset];
+        RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+        try {
+          file.seek(offset);
+          file.readFully(data);
+        } finally {
+          file.close();
+        }
+        ByteBuffer in = ByteBuffer.wrap(data);
+        for (int i = 0; in.hasRemaining(); ++i) {
+          records[i] = decode(in);
+        }
+        break;
+      }
+    }
+    // Copy the pending transactions in this page, to avoid parsing them while holding the lock.
+    Transaction[] unwritten = new Transaction[PAGE_SIZE];
+    synchronized (pending) {
+      for (int i = 0; i < PAGE_SIZE; ++i) {
+        long index = first + i;
+        if (index >= flushed && index < flushed + pending.size()) {
+          unwritten[i] = pending.get((int) (index - flushed));
+        }
+      }
+    }
+    for (int i = 0; i < PAGE_SIZE; ++i) {
+      if (unwritten[i] != null) {
+        records[i] = Record.from(unwritten[i]);
+      }
+    }
+    return records;
+  }
+
+  private static long roundUp(long index) {
+    return (index + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+  }
+
+  private static void encode(Record record, ByteBuffer out) {
+    int lengthPosition = out.position();
+    out.putShort((short) 0);  // Placeholder
+    out.putLong(record.wallTime);
+    out.putInt(record.latencyMs);
+    out.putShort(record.type);
+    out.put((byte) record.status.ordinal());
+    putBytes(record.address, out);
+    putBytes(record.name == null ? null : record.name.getBytes(UTF_8), out);
+    putBytes(record.serverIp == null ? null : record.serverIp.getBytes(UTF_8), out);
+    out.putShort(lengthPosition, (short) (out.position() - lengthPosition - 2));
+  }
+
+  // Writes a length-prefixed byte array, truncated to MAX_STRING bytes.  Null is written as empty.
+  private static void putBytes(byte[] bytes, ByteBuffer out) {
+    int length = bytes == null ? 0 : Math.min(bytes.length, MAX_STRING);
+    out.put((byte) length);
+    if (length > 0) {
+      out.put(bytes, 0, length);
+    }
+  }
+
+  private static byte[] getBytes(ByteBuffer in) {
+    byte[] bytes = new byte[in.get() & 0xff];
+    in.get(bytes);
+    return bytes;
+  }
+
+  private static Record decode(ByteBuffer in) {
+    int length = in.getShort() & 0xffff;
+    int end = in.position() + length;
+    long wallTime = in.getLong();
+    int latencyMs = in.getInt();
+    short type = in.getShort();
+    int status = in.get() & 0xff;
+    byte[] address = getBytes(in);
+    String name = new String(getBytes(in), UTF_8);
+    byte[] server = getBytes(in);
+    // Skip any fields added by later versions.
+    in.position(end);
+    return new Record(wallTime, latencyMs, type,
+        status < STATUSES.length ? STATUSES[status] : Transaction.Status.INTERNAL_ERROR,
+        address.length > 0 ? address : null, name,
+        server.length > 0 ? new String(server, UTF_8) : null);
+  }
+}
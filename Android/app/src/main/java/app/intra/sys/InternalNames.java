@@ -20,6 +20,4 @@ package app.intra.sys;
 public enum InternalNames {
   CUSTOM_SERVER,
   DNS_STATUS,
-  RESULT,
-  TRANSACTION,
 }
@@ -39,7 +39,6 @@ import android.text.TextUtils;
 import android.util.Log;
 import androidx.annotation.GuardedBy;
 import androidx.annotation.WorkerThread;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import app.intra.R;
 import app.intra.net.doh.Transaction;
 import app.intra.net.go.GoVpnAdapter;
@@ -49,8 +48,8 @@ import app.intra.sys.firebase.LogWrapper;
 import app.intra.ui.MainActivity;
 import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.Executors;
 import protect.Protector;
 
 public class IntraVpnService extends VpnService implements NetworkListener,
@@ -74,22 +73,25 @@ public class IntraVpnService extends VpnService implements NetworkListener,
   private static final VpnController vpnController = VpnController.getInstance();
 
   // The network manager is populated in onStartCommand.  Its main function is to enable delayed
-  // initialization if the network is initially disconnected.
-  @GuardedBy("vpnController")
-  private NetworkManager networkManager;
+  // initialization if the network is initially disconnected.  Only accessed on the main thread,
+  // except for reads by getResolvers().
+  private volatile NetworkManager networkManager;
 
   // The state of the device's network access, recording the latest update from networkManager.
-  private boolean networkConnected = false;
+  private volatile boolean networkConnected = false;
+
+  // Serializes starting, restarting, updating, and stopping the VPN on a single control thread, so
+  // that none of them needs a lock, and collapses bursts of requests.  Created in onCreate.
+  private VpnLifecycle lifecycle;
 
   // The VPN adapter runs within this service and is responsible for establishing the VPN and
   // passing packets to the network.  vpnAdapter is only null before startup and after shutdown,
-  // but it may be atomically replaced by restartVpn().
-  @GuardedBy("vpnController")
-  private GoVpnAdapter vpnAdapter = null;
+  // but it may be atomically replaced by restartVpn().  Only modified on the control thread.
+  private volatile GoVpnAdapter vpnAdapter = null;
 
   // The URL of the DNS server.  null and "" are special values indicating the default server.
   // This value can change if the user changes their configuration after starting the VPN.
-  @GuardedBy("vpnController")
+  // Only accessed on the main thread.
   private String url = null;
 
   // The URL of a pending connection attempt, or a special value if there is no pending connection
@@ -110,149 +112,156 @@ public class IntraVpnService extends VpnService implements NetworkListener,
   public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
     if (PersistentState.APPS_KEY.equals(key) && vpnAdapter != null) {
       // Restart the VPN so the new app exclusion choices take effect immediately.
-      restartVpn();
+      lifecycle.requestRestart();
     }
     if (PersistentState.URL_KEY.equals(key)) {
       url = PersistentState.getServerUrl(this);
-      spawnServerUpdate();
+      lifecycle.requestUpdate();
     }
-  }
-
-  private void spawnServerUpdate() {
-    synchronized (vpnController) {
-      if (networkManager != null) {
-        new Thread(
-            new Runnable() {
-              public void run() {
-                updateServerConnection();
-              }
-            }, "updateServerConnection-onStartCommand")
-            .start();
-      }
+    if (PersistentState.FALLBACK_URLS_KEY.equals(key)) {
+      lifecycle.requestUpdate();
     }
   }
 
   @Override
   public int onStartCommand(Intent intent, int flags, int startId) {
-    synchronized (vpnController) {
-      Log.i(LOG_TAG, String.format("Starting DNS VPN service, url=%s", url));
-      url = PersistentState.getServerUrl(this);
+    Log.i(LOG_TAG, String.format("Starting DNS VPN service, url=%s", url));
+    url = PersistentState.getServerUrl(this);
 
-      // Registers this class as a listener for user preference changes.
-      PreferenceManager.getDefaultSharedPreferences(this).
-          registerOnSharedPreferenceChangeListener(this);
+    // Registers this class as a listener for user preference changes.
+    PreferenceManager.getDefaultSharedPreferences(this).
+        registerOnSharedPreferenceChangeListener(this);
 
-      if (networkManager != null) {
-        spawnServerUpdate();
-        return START_REDELIVER_INTENT;
-      }
+    if (networkManager != null) {
+      lifecycle.requestUpdate();
+      return START_REDELIVER_INTENT;
+    }
 
-      // If we're online, |networkManager| immediately calls this.onNetworkConnected(), which in turn
-      // calls startVpn() to actually start.  If we're offline, the startup actions will be delayed
-      // until we come online.
-      networkManager = new NetworkManager(IntraVpnService.this, IntraVpnService.this);
+    // If we're online, |networkManager| immediately calls this.onNetworkConnected(), which in turn
+    // calls startVpn() to actually start.  If we're offline, the startup actions will be delayed
+    // until we come online.
+    networkManager = new NetworkManager(IntraVpnService.this, IntraVpnService.this);
+
+    // Mark this as a foreground service.  This is normally done to ensure that the service
+    // survives under memory pressure.  Since this is a VPN service, it is presumably protected
+    // anyway, but the foreground service mechanism allows us to set a persistent notification,
+    // which helps users understand what's going on, and return to the app if they want.
+    PendingIntent mainActivityIntent = PendingIntent.getActivity(
+            this,
+            0,
+            new Intent(this, MainActivity.class),
+            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+
+    Notification.Builder builder;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+      CharSequence name = getString(R.string.channel_name);
+      String description = getString(R.string.channel_description);
+      // LOW is the lowest importance that is allowed with startForeground in Android O.
+      int importance = NotificationManager.IMPORTANCE_LOW;
+      NotificationChannel channel = new NotificationChannel(MAIN_CHANNEL_ID, name, importance);
+      channel.setDescription(description);
+
+      NotificationManager notificationManager = getSystemService(NotificationManager.class);
+      notificationManager.createNotificationChannel(channel);
+      builder = new Notification.Builder(this, MAIN_CHANNEL_ID);
+    } else {
+      builder = new Notification.Builder(this);
+      // Min-priority notifications don't show an icon in the notification bar, reducing clutter.
+      builder = builder.setPriority(Notification.PRIORITY_MIN);
+    }
 
-      // Mark this as a foreground service.  This is normally done to ensure that the service
-      // survives under memory pressure.  Since this is a VPN service, it is presumably protected
-      // anyway, but the foreground service mechanism allows us to set a persistent notification,
-      // which helps users understand what's going on, and return to the app if they want.
-      PendingIntent mainActivityIntent = PendingIntent.getActivity(
-              this,
-              0,
-              new Intent(this, MainActivity.class),
-              PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    builder.setSmallIcon(R.drawable.ic_status_bar)
+        .setContentTitle(getResources().getText(R.string.notification_title))
+        .setContentText(getResources().getText(R.string.notification_content))
+        .setContentIntent(mainActivityIntent);
 
-      Notification.Builder builder;
-      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-        CharSequence name = getString(R.string.channel_name);
-        String description = getString(R.string.channel_description);
-        // LOW is the lowest importance that is allowed with startForeground in Android O.
-        int importance = NotificationManager.IMPORTANCE_LOW;
-        NotificationChannel channel = new NotificationChannel(MAIN_CHANNEL_ID, name, importance);
-        channel.setDescription(description);
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+      // Secret notifications are not shown on the lock screen.  No need for this app to show there.
+      // Only available in API >= 21
+      builder = builder.setVisibility(Notification.VISIBILITY_SECRET);
+    }
 
-        NotificationManager notificationManager = getSystemService(NotificationManager.class);
-        notificationManager.createNotificationChannel(channel);
-        builder = new Notification.Builder(this, MAIN_CHANNEL_ID);
-      } else {
-        builder = new Notification.Builder(this);
-        // Min-priority notifications don't show an icon in the notification bar, reducing clutter.
-        builder = builder.setPriority(Notification.PRIORITY_MIN);
-      }
+    if (Build.VERSION.SDK_INT >= VERSION_CODES.TIRAMISU) {
+      // https://developer.android.com/about/versions/14/changes/fgs-types-required
+      startForeground(SERVICE_ID, builder.build(),
+          ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
+    } else {
+      startForeground(SERVICE_ID, builder.build());
+    }
 
-      builder.setSmallIcon(R.drawable.ic_status_bar)
-          .setContentTitle(getResources().getText(R.string.notification_title))
-          .setContentText(getResources().getText(R.string.notification_content))
-          .setContentIntent(mainActivityIntent);
+    updateQuickSettingsTile();
 
-      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-        // Secret notifications are not shown on the lock screen.  No need for this app to show there.
-        // Only available in API >= 21
-        builder = builder.setVisibility(Notification.VISIBILITY_SECRET);
-      }
+    return START_REDELIVER_INTENT;
+  }
 
-      if (Build.VERSION.SDK_INT >= VERSION_CODES.TIRAMISU) {
-        // https://developer.android.com/about/versions/14/changes/fgs-types-required
-        startForeground(SERVICE_ID, builder.build(),
-            ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
-      } else {
-        startForeground(SERVICE_ID, builder.build());
-      }
+  // The lifecycle operations below run on the control thread, in the order that they were
+  // requested, so they never run concurrently.
+  private final VpnLifecycle.Actions lifecycleActions = new VpnLifecycle.Actions() {
+    @Override
+    public boolean start() {
+      return startVpn();
+    }
 
-      updateQuickSettingsTile();
+    @Override
+    public void restart() {
+      restartVpn();
+    }
 
-      return START_REDELIVER_INTENT;
+    @Override
+    public void updateServer() {
+      updateServerConnection();
     }
-  }
+
+    @Override
+    public void stop() {
+      stopVpnAdapter();
+    }
+  };
 
   @WorkerThread
   private void updateServerConnection() {
-    synchronized (vpnController) {
-      if (vpnAdapter != null) {
-        vpnAdapter.updateDohUrl();
-      }
+    if (vpnAdapter != null) {
+      vpnAdapter.updateDohUrl();
     }
   }
 
   /**
    * Starts the VPN. This method performs network activity, so it must not run on the main thread.
-   * This method is idempotent, and is synchronized so that it can safely be called from a
-   * freshly spawned thread.
+   * @return true if the VPN is running.
    */
   @WorkerThread
-  private void startVpn() {
-    synchronized (vpnController) {
-      if (vpnAdapter != null) {
-        return;
-      }
-
-      startVpnAdapter();
-
-      vpnController.onStartComplete(this, vpnAdapter != null);
-      if (vpnAdapter == null) {
-        LogWrapper.log(Log.WARN, LOG_TAG, "Failed to startVpn VPN adapter");
-        stopSelf();
-      }
+  private boolean startVpn() {
+    startVpnAdapter();
+
+    boolean started = vpnAdapter != null;
+    vpnController.onStartComplete(this, started);
+    if (!started) {
+      LogWrapper.log(Log.WARN, LOG_TAG, "Failed to startVpn VPN adapter");
+      stopSelf();
     }
+    return started;
   }
 
+  @WorkerThread
   private void restartVpn() {
-    synchronized (vpnController) {
-      // Attempt seamless handoff as described in the docs for VpnService.Builder.establish().
-      final GoVpnAdapter oldAdapter = vpnAdapter;
-      vpnAdapter = makeVpnAdapter();
+    // Attempt seamless handoff as described in the docs for VpnService.Builder.establish().
+    final GoVpnAdapter oldAdapter = vpnAdapter;
+    vpnAdapter = makeVpnAdapter();
+    if (oldAdapter != null) {
       oldAdapter.close();
-      if (vpnAdapter != null) {
-        vpnAdapter.start();
-      } else {
-        LogWrapper.log(Log.WARN, LOG_TAG, "Restart failed");
-      }
+    }
+    if (vpnAdapter != null) {
+      vpnAdapter.start();
+    } else {
+      LogWrapper.log(Log.WARN, LOG_TAG, "Restart failed");
     }
   }
 
   @Override
   public void onCreate() {
     LogWrapper.log(Log.INFO, LOG_TAG, "Creating DNS VPN service");
+    lifecycle = new VpnLifecycle(lifecycleActions, Executors.newSingleThreadExecutor(
+        runnable -> new Thread(runnable, "IntraVpnControl")));
     vpnController.setIntraVpnService(this);
 
     analytics = AnalyticsWrapper.get(this);
@@ -306,7 +315,9 @@ public class IntraVpnService extends VpnService implements NetworkListener,
       notificationManager.notify(0, builder.getNotification());
     }
 
-    stopVpnAdapter();
+    // The VPN adapter is closed asynchronously on the control thread, so this method never blocks,
+    // and callers can hold locks that DNS responses need while the adapter shuts down.
+    lifecycle.requestStop();
     stopSelf();
 
     updateQuickSettingsTile();
@@ -316,28 +327,27 @@ public class IntraVpnService extends VpnService implements NetworkListener,
     return GoVpnAdapter.establish(this);
   }
 
+  @WorkerThread
   private void startVpnAdapter() {
-    synchronized (vpnController) {
-      if (vpnAdapter == null) {
-        LogWrapper.log(Log.INFO, LOG_TAG, "Starting VPN adapter");
-        vpnAdapter = makeVpnAdapter();
-        if (vpnAdapter != null) {
-          vpnAdapter.start();
-          analytics.logStartVPN(vpnAdapter.getClass().getSimpleName());
-        } else {
-          LogWrapper.log(Log.ERROR, LOG_TAG, "Failed to start VPN adapter!");
-        }
+    if (vpnAdapter == null) {
+      LogWrapper.log(Log.INFO, LOG_TAG, "Starting VPN adapter");
+      GoVpnAdapter adapter = makeVpnAdapter();
+      if (adapter != null) {
+        adapter.start();
+        vpnAdapter = adapter;
+        analytics.logStartVPN(adapter.getClass().getSimpleName());
+      } else {
+        LogWrapper.log(Log.ERROR, LOG_TAG, "Failed to start VPN adapter!");
       }
     }
   }
 
+  @WorkerThread
   private void stopVpnAdapter() {
-    synchronized (vpnController) {
-      if (vpnAdapter != null) {
-        vpnAdapter.close();
-        vpnAdapter = null;
-        vpnController.onConnectionStateChanged(this, null);
-      }
+    if (vpnAdapter != null) {
+      vpnAdapter.close();
+      vpnAdapter = null;
+      vpnController.onConnectionStateChanged(this, null);
     }
   }
 
@@ -356,25 +366,25 @@ public class IntraVpnService extends VpnService implements NetworkListener,
 
   @Override
   public void onDestroy() {
-    synchronized (vpnController) {
-      LogWrapper.log(Log.INFO, LOG_TAG, "Destroying DNS VPN service");
+    LogWrapper.log(Log.INFO, LOG_TAG, "Destroying DNS VPN service");
 
-      PreferenceManager.getDefaultSharedPreferences(this).
-          unregisterOnSharedPreferenceChangeListener(this);
+    PreferenceManager.getDefaultSharedPreferences(this).
+        unregisterOnSharedPreferenceChangeListener(this);
 
-      if (networkManager != null) {
-        networkManager.destroy();
-      }
+    if (networkManager != null) {
+      networkManager.destroy();
+    }
 
-      syncNumRequests();
+    syncNumRequests();
 
-      vpnController.setIntraVpnService(null);
+    vpnController.setIntraVpnService(null);
 
-      stopForeground(true);
-      if (vpnAdapter != null) {
-        signalStopService(false);
-      }
+    stopForeground(true);
+    if (vpnAdapter != null) {
+      signalStopService(false);
     }
+    // Release the control thread once any remaining operations are done.
+    lifecycle.requestStop();
   }
 
   @Override
@@ -410,14 +420,10 @@ public class IntraVpnService extends VpnService implements NetworkListener,
 
   public void recordTransaction(Transaction transaction) {
     transaction.responseTime = SystemClock.elapsedRealtime();
-    transaction.responseCalendar = Calendar.getInstance();
+    transaction.responseWallTime = System.currentTimeMillis();
 
     getTracker().recordTransaction(this, transaction);
 
-    Intent intent = new Intent(InternalNames.RESULT.name());
-    intent.putExtra(InternalNames.TRANSACTION.name(), transaction);
-    LocalBroadcastManager.getInstance(IntraVpnService.this).sendBroadcast(intent);
-
     if (!networkConnected) {
       // No need to update the user-visible connection state while there is no network.
       return;
@@ -425,11 +431,12 @@ public class IntraVpnService extends VpnService implements NetworkListener,
 
     // Update the connection state.  If the transaction succeeded, then the connection is working.
     // If the transaction failed, then the connection is not working.
-    // If the transaction was canceled, then we don't have any new information about the status
-    // of the connection, so we don't send an update.
+    // If the transaction was canceled or answered from the cache, then we don't have any new
+    // information about the status of the connection, so we don't send an update.
     if (transaction.status == Transaction.Status.COMPLETE) {
       vpnController.onConnectionStateChanged(this, State.WORKING);
-    } else if (transaction.status != Transaction.Status.CANCELED) {
+    } else if (transaction.status != Transaction.Status.CANCELED
+        && transaction.status != Transaction.Status.CACHED) {
       vpnController.onConnectionStateChanged(this, State.FAILING);
     }
   }
@@ -457,16 +464,10 @@ public class IntraVpnService extends VpnService implements NetworkListener,
   public void onNetworkConnected(NetworkInfo networkInfo) {
     LogWrapper.log(Log.INFO, LOG_TAG, "Connected event.");
     setNetworkConnected(true);
-    // This code is used to start the VPN for the first time, but startVpn is idempotent, so we can
-    // call it every time. startVpn performs network activity so it has to run on a separate thread.
-    new Thread(
-        new Runnable() {
-          public void run() {
-            updateServerConnection();
-            startVpn();
-          }
-        }, "startVpn-onNetworkConnected")
-        .start();
+    // This event starts the VPN for the first time, and switches it to a fresh DoH transport
+    // afterwards.  Whichever of these requests does not apply in the current phase is dropped.
+    lifecycle.requestStart();
+    lifecycle.requestUpdate();
   }
 
   @Override
@@ -20,24 +20,41 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
 import android.util.Log;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 import app.intra.sys.firebase.LogWrapper;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 // This class listens for network connectivity changes and notifies a NetworkListener of
-// connected/disconnected events.
+// connected/disconnected events.  Bursts of events are coalesced, so that the listener hears
+// about each settled network state once.
 public class NetworkManager {
 
   private static final String LOG_TAG = "NetworkManager";
   private static final String EXTRA_NETWORK_INFO = "networkInfo";
 
+  // Network changes often arrive as a burst of events, e.g. during a Wi-Fi to cellular handover or
+  // on a flapping link.  The listener is notified once no event has arrived for SETTLE_DELAY_MS,
+  // and at most MAX_SETTLE_DELAY_MS after the first event of a burst.
+  private static final long SETTLE_DELAY_MS = 1000;
+  private static final long MAX_SETTLE_DELAY_MS = 5000;
+
   public interface NetworkListener {
 
     void onNetworkConnected(NetworkInfo networkInfo);
@@ -45,73 +62,237 @@ public class NetworkManager {
     void onNetworkDisconnected();
   }
 
+  // The latest capabilities and link properties reported for a network.
+  private static class NetworkState {
+    @Nullable NetworkCapabilities capabilities;
+    @Nullable LinkProperties linkProperties;
+  }
+
   private ConnectivityManager connectivityManager;
   private BroadcastReceiver broadcastReceiver;
+  private DefaultNetworkCallback networkCallback;
   private Context applicationContext;
   private NetworkListener networkListener;
 
+  // Runs settle(), which notifies networkListener.
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  private final Debouncer debouncer =
+      new Debouncer(executor, SETTLE_DELAY_MS, MAX_SETTLE_DELAY_MS, this::settle);
+
+  // State of the networks reported by networkCallback, and which of them is the default.
+  // Guarded by networks.
+  private final Map<Network, NetworkState> networks = new HashMap<>();
+  private @Nullable Network defaultNetwork = null;
+
+  // Identifies the network state most recently reported to networkListener, or null if the
+  // listener was last told that there is no network.  Only accessed on executor, after the
+  // constructor returns.
+  private @Nullable String reportedKey = null;
+
   public NetworkManager(Context context, NetworkListener networkListener) {
     applicationContext = context.getApplicationContext();
     connectivityManager =
         (ConnectivityManager) applicationContext.getSystemService(Context.CONNECTIVITY_SERVICE);
     this.networkListener = networkListener;
 
-    IntentFilter intentFilter = new IntentFilter();
-    intentFilter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
-    broadcastReceiver =
-        new BroadcastReceiver() {
-          @Override
-          public void onReceive(Context context, Intent intent) {
-            connectivityChanged(intent);
-          }
-        };
-    applicationContext.registerReceiver(this.broadcastReceiver, intentFilter);
+    NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+    boolean connected = networkInfo != null && networkInfo.isConnected();
+    if (VERSION.SDK_INT >= VERSION_CODES.N) {
+      // The callback reports the current default network immediately.  Its key will match the
+      // one computed here, so the listener is not notified of the same network twice.
+      Network active = connectivityManager.getActiveNetwork();
+      if (connected && active != null) {
+        reportedKey = makeKey(active, connectivityManager.getLinkProperties(active));
+      }
+      networkCallback = new DefaultNetworkCallback();
+      connectivityManager.registerDefaultNetworkCallback(networkCallback);
+    } else {
+      if (connected) {
+        reportedKey = makeLegacyKey(networkInfo);
+      }
+      IntentFilter intentFilter = new IntentFilter();
+      intentFilter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+      broadcastReceiver =
+          new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+              connectivityChanged(intent);
+            }
+          };
+      applicationContext.registerReceiver(this.broadcastReceiver, intentFilter);
+    }
 
     // Fire onNetworkConnected listener immediately if we are online.
-    NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
-    if (networkInfo != null && networkInfo.isConnected()) {
+    if (connected) {
       this.networkListener.onNetworkConnected(networkInfo);
     }
   }
 
   // Destroys the network receiver.
   void destroy() {
-    if (broadcastReceiver == null) {
-      return;
+    // Unregister first, so that no callback can trigger the debouncer after its executor has shut
+    // down.
+    if (networkCallback != null) {
+      try {
+        connectivityManager.unregisterNetworkCallback(networkCallback);
+      } catch (Exception e) {
+        Log.e(LOG_TAG, "Error unregistering network callback: " + e.getMessage(), e);
+      } finally {
+        networkCallback = null;
+      }
     }
-    try {
-      applicationContext.unregisterReceiver(broadcastReceiver);
-    } catch (Exception e) {
-      Log.e(LOG_TAG, "Error unregistering network receiver: " + e.getMessage(), e);
-    } finally {
-      broadcastReceiver = null;
+    if (broadcastReceiver != null) {
+      try {
+        applicationContext.unregisterReceiver(broadcastReceiver);
+      } catch (Exception e) {
+        Log.e(LOG_TAG, "Error unregistering network receiver: " + e.getMessage(), e);
+      } finally {
+        broadcastReceiver = null;
+      }
+    }
+    executor.shutdownNow();
+  }
+
+  // Tracks the capabilities and link properties of the default network.
+  @RequiresApi(api = VERSION_CODES.N)
+  private class DefaultNetworkCallback extends ConnectivityManager.NetworkCallback {
+    @Override
+    public void onAvailable(@NonNull Network network) {
+      synchronized (networks) {
+        // A previous default network is not reported as lost if it is still connected, so forget
+        // about it here.
+        NetworkState state = networks.get(network);
+        networks.clear();
+        networks.put(network, state != null ? state : new NetworkState());
+        defaultNetwork = network;
+      }
+      debouncer.trigger();
+    }
+
+    @Override
+    public void onCapabilitiesChanged(
+        @NonNull Network network, @NonNull NetworkCapabilities capabilities) {
+      synchronized (networks) {
+        NetworkState state = networks.get(network);
+        if (state == null) {
+          return;
+        }
+        state.capabilities = capabilities;
+      }
+      debouncer.trigger();
+    }
+
+    @Override
+    public void onLinkPropertiesChanged(
+        @NonNull Network network, @NonNull LinkProperties linkProperties) {
+      synchronized (networks) {
+        NetworkState state = networks.get(network);
+        if (state == null) {
+          return;
+        }
+        state.linkProperties = linkProperties;
+      }
+      debouncer.trigger();
+    }
+
+    @Override
+    public void onLost(@NonNull Network network) {
+      synchronized (networks) {
+        networks.remove(network);
+        if (network.equals(defaultNetwork)) {
+          defaultNetwork = null;
+        }
+      }
+      debouncer.trigger();
     }
   }
 
-  // Handles changes in connectivity by binding the process to the latest
-  // connected network.
+  // Handles changes in connectivity reported by the legacy broadcast.  VPN changes are ignored,
+  // and anything else is handled once the network settles.
   private void connectivityChanged(Intent intent) {
     NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
     NetworkInfo intentNetworkInfo = intent.getParcelableExtra(EXTRA_NETWORK_INFO);
 
     Log.v(LOG_TAG, "ACTIVE NETWORK " + activeNetworkInfo);
     Log.v(LOG_TAG, "INTENT NETWORK " + intentNetworkInfo);
-    if (networkListener == null) {
-      return;
-    }
-
     if (isConnectedNetwork(activeNetworkInfo)
         && intentNetworkInfo != null
         && intentNetworkInfo.getType() == ConnectivityManager.TYPE_VPN) {
       // VPN state changed, we have connectivity, ignore.
       return;
-    } else if (!isConnectedNetwork(activeNetworkInfo)) {
-      // No active network, signal disconnect event.
+    }
+    debouncer.trigger();
+  }
+
+  // Notifies the listener of the current network state, unless it has already been reported.
+  private void settle() {
+    if (networkListener == null) {
+      return;
+    }
+    final String key;
+    final NetworkInfo info;
+    if (VERSION.SDK_INT >= VERSION_CODES.N) {
+      Network network;
+      NetworkCapabilities capabilities;
+      LinkProperties linkProperties;
+      synchronized (networks) {
+        network = defaultNetwork;
+        NetworkState state = network != null ? networks.get(network) : null;
+        capabilities = state != null ? state.capabilities : null;
+        linkProperties = state != null ? state.linkProperties : null;
+      }
+      if (capabilities != null && capabilities.hasTransport(NetworkCapabilities.TRANSPORT_VPN)) {
+        // Only a VPN changed, and we still have connectivity.
+        return;
+      }
+      key = network != null ? makeKey(network, linkProperties) : null;
+      NetworkInfo networkInfo =
+          network != null ? connectivityManager.getNetworkInfo(network) : null;
+      info = networkInfo != null ? networkInfo : connectivityManager.getActiveNetworkInfo();
+    } else {
+      NetworkInfo activeNetworkInfo = connectivityManager.getActiveNetworkInfo();
+      if (!isConnectedNetwork(activeNetworkInfo)) {
+        key = null;
+        info = null;
+      } else if (activeNetworkInfo.getType() == ConnectivityManager.TYPE_VPN) {
+        // Only a VPN changed, and we still have connectivity.
+        return;
+      } else {
+        key = makeLegacyKey(activeNetworkInfo);
+        info = activeNetworkInfo;
+      }
+    }
+
+    if (key == null ? reportedKey == null : key.equals(reportedKey)) {
+      // The burst of events ended where it started.
+      return;
+    }
+    reportedKey = key;
+    if (key == null || info == null) {
+      LogWrapper.log(Log.INFO, LOG_TAG, "Network settled: disconnected");
       networkListener.onNetworkDisconnected();
-    } else if (activeNetworkInfo.getType() != ConnectivityManager.TYPE_VPN) {
-      // We have an active network, make sure it is not a VPN to signal a connected event.
-      networkListener.onNetworkConnected(activeNetworkInfo);
+    } else {
+      LogWrapper.log(Log.INFO, LOG_TAG, "Network settled: connected");
+      networkListener.onNetworkConnected(info);
+    }
+  }
+
+  // Returns a string that changes whenever the network or its addressing changes.  Changes in
+  // anything else, such as signal strength or bandwidth estimates, don't require reconnecting.
+  @RequiresApi(api = VERSION_CODES.LOLLIPOP)
+  private static String makeKey(Network network, @Nullable LinkProperties linkProperties) {
+    StringBuilder key = new StringBuilder(network.toString());
+    if (linkProperties != null) {
+      key.append('|').append(linkProperties.getInterfaceName())
+          .append('|').append(linkProperties.getLinkAddresses())
+          .append('|').append(linkProperties.getDnsServers());
     }
+    return key.toString();
+  }
+
+  private static String makeLegacyKey(NetworkInfo networkInfo) {
+    return networkInfo.getType() + "|" + networkInfo.getSubtype() + "|"
+        + networkInfo.getExtraInfo();
   }
 
   // Returns true if the supplied network is connected and available
@@ -23,12 +23,15 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import app.intra.R;
+import app.intra.net.doh.ServerScore;
 import app.intra.sys.firebase.LogWrapper;
 import app.intra.ui.settings.Untemplate;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -41,10 +44,12 @@ public class PersistentState {
 
   public static final String APPS_KEY = "pref_apps";
   public static final String URL_KEY = "pref_server_url";
+  public static final String FALLBACK_URLS_KEY = "pref_fallback_servers";
 
   private static final String APPROVED_KEY = "approved";
   private static final String ENABLED_KEY = "enabled";
   private static final String SERVER_KEY = "server";
+  private static final String RANKING_KEY = "serverRanking";
 
   private static final String INTERNAL_STATE_NAME = "MainActivity";
 
@@ -164,6 +169,63 @@ public class PersistentState {
     return InternalNames.CUSTOM_SERVER.name();
   }
 
+  /**
+   * Stores the result of the latest server benchmark.
+   * @param ranking Server scores, best first.
+   */
+  public static void setServerRanking(Context context, List<ServerScore> ranking) {
+    StringBuilder encoded = new StringBuilder();
+    for (ServerScore score : ranking) {
+      encoded.append(score.encode()).append('\n');
+    }
+    SharedPreferences.Editor editor = getInternalState(context).edit();
+    editor.putString(RANKING_KEY, encoded.toString());
+    editor.apply();
+  }
+
+  /**
+   * @return The result of the latest server benchmark, best first, or an empty list if no
+   * benchmark has completed.
+   */
+  public static List<ServerScore> getServerRanking(Context context) {
+    List<ServerScore> ranking = new ArrayList<>();
+    String encoded = getInternalState(context).getString(RANKING_KEY, "");
+    for (String line : encoded.split("\n")) {
+      ServerScore score = line.isEmpty() ? null : ServerScore.decode(line);
+      if (score != null) {
+        ranking.add(score);
+      }
+    }
+    return ranking;
+  }
+
+  /**
+   * @return The backup servers selected by the user, excluding the current server.  Servers
+   * are ordered by the latest benchmark ranking, then by their order in the builtin server table.
+   */
+  public static List<String> getFallbackServerUrls(Context context) {
+    Set<String> selected =
+        getUserPreferences(context).getStringSet(FALLBACK_URLS_KEY, new HashSet<String>());
+    List<String> ordered = new ArrayList<>();
+    for (ServerScore score : getServerRanking(context)) {
+      addIfSelected(ordered, selected, score.url);
+    }
+    for (String url : context.getResources().getStringArray(R.array.urls)) {
+      addIfSelected(ordered, selected, url);
+    }
+    for (String url : selected) {
+      addIfSelected(ordered, selected, url);
+    }
+    ordered.remove(expandUrl(context, getServerUrl(context)));
+    return ordered;
+  }
+
+  private static void addIfSelected(List<String> ordered, Set<String> selected, String url) {
+    if (selected.contains(url) && !ordered.contains(url)) {
+      ordered.add(url);
+    }
+  }
+
   private static SharedPreferences getApprovalSettings(Context context) {
     return context.getSharedPreferences(APPROVAL_PREFS_NAME, Context.MODE_PRIVATE);
   }
@@ -0,0 +1,128 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.sys;
+
+import app.intra.net.doh.Transaction;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory record of recent DNS transactions: a histogram of the last minute of queries.  This is
+ * the part of QueryTracker that runs on every query.  It does not depend on the Android framework,
+ * so it can be benchmarked on a plain JVM.
+ *
+ * The histogram has a fixed size, regardless of the query rate, and has a single writer and any
+ * number of readers.  Recording never allocates or takes a lock, so the thread that records
+ * queries never waits for the UI.
+ *
+ * Calls to record() must be serialized by the caller.  All other methods are thread-safe.
+ */
+class QueryLog {
+
+  private static final int RESOLUTION_MS = ActivityReceiver.RESOLUTION_MS;
+  private static final int NUM_BUCKETS = ActivityReceiver.NUM_BUCKETS;
+
+  // The activity histogram.  Interval number b (starting at time b * RESOLUTION_MS) is counted in
+  // slot b % NUM_BUCKETS.  Each slot holds the interval number in its upper bits and the count in
+  // its lower COUNT_BITS, so the writer can reuse a slot for a new interval with a single store,
+  // and readers can tell which interval each slot describes.
+  private static final int COUNT_BITS = 24;  // Up to 16 million queries per interval.
+  private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+  private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+  // Per-thread buffers for showActivity(), which is called on every animation frame.
+  private final ThreadLocal<int[]> activityCounts = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[NUM_BUCKETS];
+    }
+  };
+  private final ThreadLocal<long[]> activitySlots = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[NUM_BUCKETS];
+    }
+  };
+
+  private static long interval(long slot) {
+    return slot >>> COUNT_BITS;
+  }
+
+  private static int count(long slot) {
+    return (int) (slot & COUNT_MASK);
+  }
+
+  /**
+   * Provide the receiver with temporary read-only access to the recent activity histogram.  The
+   * histogram covers the minute that ends with the most recent query.
+   */
+  void showActivity(ActivityReceiver receiver) {
+    // Take a snapshot, so that the counts are consistent with the latest interval.
+    long[] slots = activitySlots.get();
+    long latest = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      slots[i] = buckets.get(i);
+      latest = Math.max(latest, interval(slots[i]));
+    }
+    int[] counts = activityCounts.get();
+    Arrays.fill(counts, 0);
+    for (long slot : slots) {
+      long age = latest - interval(slot);
+      if (age < NUM_BUCKETS) {
+        // Add instead of assigning because unused slots also look like interval 0.
+        counts[(int) age] += count(slot);
+      }
+    }
+    receiver.receive(latest * RESOLUTION_MS, counts);
+  }
+
+  /**
+   * @return The number of queries recorded since |startTime|, to within RESOLUTION_MS, and at
+   *     most a minute before the most recent query.
+   */
+  int countQueriesSince(long startTime) {
+    long latest = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      latest = Math.max(latest, interval(buckets.get(i)));
+    }
+    long first = Math.max(latest - NUM_BUCKETS + 1, startTime / RESOLUTION_MS);
+    int queries = 0;
+    for (int i = 0; i < NUM_BUCKETS; ++i) {
+      long slot = buckets.get(i);
+      if (interval(slot) >= first) {
+        queries += count(slot);
+      }
+    }
+    return queries;
+  }
+
+  void record(Transaction transaction) {
+    // lazySet() publishes each slot without the cost of a full memory barrier.
+    long interval = transaction.queryTime / RESOLUTION_MS;
+    int i = (int) (interval % NUM_BUCKETS);
+    long slot = buckets.get(i);
+    if (interval(slot) == interval) {
+      if (count(slot) < COUNT_MASK) {
+        buckets.lazySet(i, slot + 1);
+      }
+    } else if (interval(slot) < interval) {
+      // This slot holds an interval that is more than a minute old.
+      buckets.lazySet(i, (interval << COUNT_BITS) + 1);
+    }
+    // Otherwise, this query is more than a minute older than other recorded queries, so it isn't
+    // counted.
+  }
+}
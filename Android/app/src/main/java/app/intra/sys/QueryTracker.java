@@ -19,103 +19,155 @@ import static android.content.Context.MODE_PRIVATE;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import androidx.core.content.ContextCompat;
 import app.intra.net.doh.Transaction;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.Queue;
+import app.intra.sys.firebase.LogWrapper;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A class for tracking DNS transactions.  This class counts the number of successful transactions,
- * records the last minute of query timestamps, and optionally maintains a history of recent
- * transactions.
- * Thread-safe.
+ * keeps a histogram of the last minute of queries, and optionally maintains a persistent history
+ * of transactions.  The histogram is kept by QueryLog, and the history by HistoryStore; this class
+ * adds the persistent request counter, writes the history in the background, and notifies any
+ * TransactionListeners.
+ * Thread-safe.  Readers never block recordTransaction().
  */
 public class QueryTracker {
 
   private static final String NUM_REQUESTS = "numRequests";
-
-  private static final int HISTORY_SIZE = 100;
-  private static final int ACTIVITY_MEMORY_MS = 60 * 1000;  // One minute
-
-  private long numRequests = 0;
-  private Queue<Transaction> recentTransactions = new LinkedList<>();
-  private Queue<Long> recentActivity = new LinkedList<>();
-  private boolean historyEnabled = false;
+  private static final String HISTORY_ENABLED = "historyEnabled";
+  private static final String HISTORY_DIR = "history";
+  // Number of requests between saves of the request counter.
+  private static final int SYNC_INTERVAL = 100;
+  // New history is written in batches, at most this long after it is recorded.
+  private static final long HISTORY_FLUSH_DELAY_MS = 1000;
+
+  // Only written while holding the lock, which also serializes calls to QueryLog.record(), but
+  // read without it.
+  private volatile long numRequests = 0;
+  private final QueryLog log = new QueryLog();
+  private final HistoryStore history;
+  // Does all of the history's disk I/O.
+  private final ScheduledExecutorService historyWriter =
+      Executors.newSingleThreadScheduledExecutor();
+  private final List<TransactionListener> listeners = new CopyOnWriteArrayList<>();
 
   QueryTracker(Context context) {
     sync(context);
+    // The history is private, so it must not be included in backups.
+    history = new HistoryStore(new File(ContextCompat.getNoBackupFilesDir(context), HISTORY_DIR));
+    boolean historyEnabled = getSettings(context).getBoolean(HISTORY_ENABLED, false);
+    history.setEnabled(historyEnabled);
+    // Read the existing history, or make sure that it's gone.
+    historyWriter.execute(historyEnabled ? this::loadHistory : this::clearHistory);
   }
 
-  public synchronized long getNumRequests() {
+  public long getNumRequests() {
     return numRequests;
   }
 
-  public synchronized Queue<Transaction> getRecentTransactions() {
-    return new LinkedList<>(recentTransactions);
+  /**
+   * @return The persistent history.  Only its getStart() and getEnd() may be called on the main
+   *     thread.
+   */
+  public HistoryStore getHistory() {
+    return history;
   }
 
   /**
-   * Provide the receiver with temporary read-only access to the recent activity time-sequence.
+   * Provide the receiver with temporary read-only access to the recent activity histogram.
    */
-  public synchronized void showActivity(ActivityReceiver receiver) {
-    receiver.receive(Collections.unmodifiableCollection(recentActivity));
+  public void showActivity(ActivityReceiver receiver) {
+    log.showActivity(receiver);
   }
 
-  public synchronized int countQueriesSince(long startTime) {
-    // Linearly scan recent activity.  Due to the small scale (N ~ 300), a more efficient algorithm
-    // does not appear to be necessary.
-    int queries = recentActivity.size();
-    for (long time : recentActivity) {
-      if (time < startTime) {
-        --queries;
-      } else {
-        break;
-      }
-    }
-    return queries;
+  public int countQueriesSince(long startTime) {
+    return log.countQueriesSince(startTime);
   }
 
-  public synchronized void setHistoryEnabled(boolean enabled) {
-    historyEnabled = enabled;
+  public void setHistoryEnabled(Context context, boolean enabled) {
+    history.setEnabled(enabled);
+    getSettings(context).edit().putBoolean(HISTORY_ENABLED, enabled).apply();
     if (!enabled) {
-      recentTransactions.clear();
+      historyWriter.execute(this::clearHistory);
     }
   }
 
   public boolean isHistoryEnabled() {
-    // No synchronization needed because booleans are atomic in Java.
-    return historyEnabled;
+    return history.isEnabled();
   }
 
-  synchronized void recordTransaction(Context context, Transaction transaction) {
-    // Increment request counter on each successful resolution
-    if (transaction.status == Transaction.Status.COMPLETE) {
-      ++numRequests;
+  public void addTransactionListener(TransactionListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeTransactionListener(TransactionListener listener) {
+    listeners.remove(listener);
+  }
+
+  void recordTransaction(Context context, Transaction transaction) {
+    synchronized (this) {
+      // Increment request counter on each successful resolution
+      if (transaction.isAnswered()) {
+        ++numRequests;
+
+        if (numRequests % SYNC_INTERVAL == 0) {
+          // Avoid losing too many requests in case of an unclean shutdown, but also avoid
+          // excessive disk I/O from syncing the counter to disk after every request.
+          sync(context);
+        }
+      }
 
-      if (numRequests % HISTORY_SIZE == 0) {
-        // Avoid losing too many requests in case of an unclean shutdown, but also avoid
-        // excessive disk I/O from syncing the counter to disk after every request.
-        sync(context);
+      log.record(transaction);
+      if (history.append(transaction)) {
+        historyWriter.schedule(this::flushHistory, HISTORY_FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
       }
     }
 
-    recentActivity.add(transaction.queryTime);
-    while (recentActivity.peek() + ACTIVITY_MEMORY_MS < transaction.queryTime) {
-      recentActivity.remove();
+    // Listeners are called without the lock, so that they can read the updated state.
+    for (TransactionListener listener : listeners) {
+      listener.onTransaction(transaction);
     }
+  }
 
-    if (historyEnabled) {
-      recentTransactions.add(transaction);
-      if (recentTransactions.size() > HISTORY_SIZE) {
-        recentTransactions.remove();
-      }
+  // The following methods run on historyWriter.
+  private void loadHistory() {
+    try {
+      history.load();
+    } catch (IOException e) {
+      LogWrapper.logException(e);
+    }
+  }
+
+  private void flushHistory() {
+    try {
+      history.flush();
+    } catch (IOException e) {
+      LogWrapper.logException(e);
     }
   }
 
+  private void clearHistory() {
+    try {
+      history.clear();
+    } catch (IOException e) {
+      LogWrapper.logException(e);
+    }
+  }
+
+  private static SharedPreferences getSettings(Context context) {
+    return context.getSharedPreferences(QueryTracker.class.getSimpleName(), MODE_PRIVATE);
+  }
+
   public synchronized void sync(Context context) {
     // Restore number of requests from storage, or 0 if it isn't defined yet.
-    SharedPreferences settings =
-        context.getSharedPreferences(QueryTracker.class.getSimpleName(), MODE_PRIVATE);
+    SharedPreferences settings = getSettings(context);
     long storedNumRequests = settings.getLong(NUM_REQUESTS, 0);
     if (storedNumRequests >= numRequests) {
       numRequests = storedNumRequests;
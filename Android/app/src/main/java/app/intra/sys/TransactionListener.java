@@ -0,0 +1,33 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.sys;
+
+import app.intra.net.doh.Transaction;
+
+/**
+ * Interface for classes that want to be told about each DNS transaction as it is recorded.
+ *
+ * This replaces a per-query broadcast, so that the transaction can be handed to the UI by
+ * reference, without an Intent or any serialization.
+ */
+public interface TransactionListener {
+  /**
+   * Called on the thread that recorded the transaction, after QueryTracker has counted it.  This
+   * can happen thousands of times per minute, so implementations must be brief and must not block.
+   * The transaction must not be modified.
+   */
+  void onTransaction(Transaction transaction);
+}
@@ -37,26 +37,35 @@ public class VpnController {
     return dnsVpnServiceState;
   }
 
-  private IntraVpnService intraVpnService = null;
-  private IntraVpnService.State connectionState = null;
-  private QueryTracker tracker = null;
+  // Callbacks from the DNS resolver arrive on Go threads, so they must not contend for this
+  // object's monitor, which only serializes user-initiated start and stop.  Instead, updates to
+  // intraVpnService and connectionState are guarded by stateLock, which is never held while
+  // calling out of this class.  Reads need no lock.
+  private final Object stateLock = new Object();
+  private volatile IntraVpnService intraVpnService = null;
+  private volatile IntraVpnService.State connectionState = null;
+  private volatile QueryTracker tracker = null;
 
   private VpnController() {}
 
   void setIntraVpnService(IntraVpnService intraVpnService) {
-    this.intraVpnService = intraVpnService;
+    synchronized (stateLock) {
+      this.intraVpnService = intraVpnService;
+    }
   }
 
   public @Nullable IntraVpnService getIntraVpnService() {
     return this.intraVpnService;
   }
 
-  public synchronized void onConnectionStateChanged(Context context, IntraVpnService.State state) {
-    if (intraVpnService == null) {
-      // User clicked disable while the connection state was changing.
-      return;
+  public void onConnectionStateChanged(Context context, IntraVpnService.State state) {
+    synchronized (stateLock) {
+      if (intraVpnService == null) {
+        // User clicked disable while the connection state was changing.
+        return;
+      }
+      connectionState = state;
     }
-    connectionState = state;
     stateChanged(context);
   }
 
@@ -65,11 +74,17 @@ public class VpnController {
     LocalBroadcastManager.getInstance(context).sendBroadcast(broadcast);
   }
 
-  public synchronized QueryTracker getTracker(Context context) {
-    if (tracker == null) {
-      tracker = new QueryTracker(context);
+  public QueryTracker getTracker(Context context) {
+    QueryTracker result = tracker;
+    if (result == null) {
+      synchronized (this) {
+        result = tracker;
+        if (result == null) {
+          result = tracker = new QueryTracker(context);
+        }
+      }
     }
-    return tracker;
+    return result;
   }
 
   public synchronized void start(Context context) {
@@ -98,11 +113,16 @@ public class VpnController {
 
   public synchronized void stop(Context context) {
     PersistentState.setVpnEnabled(context, false);
-    connectionState = null;
-    if (intraVpnService != null) {
-      intraVpnService.signalStopService(true);
+    IntraVpnService service;
+    synchronized (stateLock) {
+      service = intraVpnService;
+      connectionState = null;
+      intraVpnService = null;
+    }
+    if (service != null) {
+      // Returns immediately.  The service shuts down the VPN on its own control thread.
+      service.signalStopService(true);
     }
-    intraVpnService = null;
     stateChanged(context);
   }
 
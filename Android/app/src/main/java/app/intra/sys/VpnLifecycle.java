@@ -0,0 +1,175 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.sys;
+
+import app.intra.sys.firebase.LogWrapper;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs the lifecycle operations of the VPN (start, restart, server update, and stop) one at a
+ * time on a single control thread.  Requests can be made from any thread, never block, and are
+ * coalesced: any number of requests of the same kind made while an operation is running result in
+ * at most one further run of that operation.
+ *
+ * <pre>
+ *   IDLE ---start succeeds---> RUNNING ---restart, update---> RUNNING
+ *     |                           |
+ *     +----------stop-------------+-------> STOPPING ------> STOPPED
+ * </pre>
+ *
+ * Requests that do not apply in the current phase are dropped.  A start uses the latest settings,
+ * so it satisfies any pending restart or update, and a restart likewise satisfies an update.  Stop
+ * takes priority over all other requests, and once it begins, all further requests are dropped.
+ */
+class VpnLifecycle {
+  enum Phase { IDLE, RUNNING, STOPPING, STOPPED }
+
+  /** The operations, which all run on the control thread. */
+  interface Actions {
+    /** @return true if the VPN is now running. */
+    boolean start();
+    void restart();
+    void updateServer();
+    void stop();
+  }
+
+  private enum Op { START, RESTART, UPDATE, STOP }
+
+  private final Actions actions;
+  private final ExecutorService executor;
+
+  // All fields below are guarded by this.
+  private Phase phase = Phase.IDLE;
+  private boolean startRequested = false;
+  private boolean restartRequested = false;
+  private boolean updateRequested = false;
+  private boolean stopRequested = false;
+  private boolean draining = false;
+
+  /**
+   * @param executor The control thread.  It must be single-threaded, and is shut down once the
+   *     lifecycle has stopped.
+   */
+  VpnLifecycle(Actions actions, ExecutorService executor) {
+    this.actions = actions;
+    this.executor = executor;
+  }
+
+  synchronized Phase getPhase() {
+    return phase;
+  }
+
+  synchronized void requestStart() {
+    startRequested = true;
+    schedule();
+  }
+
+  synchronized void requestRestart() {
+    restartRequested = true;
+    schedule();
+  }
+
+  synchronized void requestUpdate() {
+    updateRequested = true;
+    schedule();
+  }
+
+  synchronized void requestStop() {
+    stopRequested = true;
+    schedule();
+  }
+
+  // Must be called while holding the lock.
+  private void schedule() {
+    if (!draining && phase != Phase.STOPPING && phase != Phase.STOPPED) {
+      draining = true;
+      executor.execute(this::drain);
+    }
+  }
+
+  private void drain() {
+    Op op;
+    while ((op = next()) != null) {
+      boolean running = false;
+      try {
+        running = run(op);
+      } catch (RuntimeException e) {
+        // Keep serving requests.  A failed operation leaves the phase unchanged.
+        LogWrapper.logException(e);
+        running = getPhase() == Phase.RUNNING;
+      }
+      finish(op, running);
+    }
+  }
+
+  // Returns the next operation to run, clearing every request that it satisfies, or null if there
+  // is nothing to do.
+  private synchronized Op next() {
+    Op op = null;
+    if (phase == Phase.STOPPING || phase == Phase.STOPPED) {
+      // Nothing more to do.
+    } else if (stopRequested) {
+      op = Op.STOP;
+      phase = Phase.STOPPING;
+    } else if (phase == Phase.IDLE && startRequested) {
+      op = Op.START;
+    } else if (phase == Phase.RUNNING && restartRequested) {
+      op = Op.RESTART;
+    } else if (phase == Phase.RUNNING && updateRequested) {
+      op = Op.UPDATE;
+    }
+
+    if (op == null || op == Op.STOP || op == Op.START) {
+      // Nothing applies, or every pending request is satisfied or moot.
+      startRequested = restartRequested = updateRequested = stopRequested = false;
+    } else if (op == Op.RESTART) {
+      startRequested = restartRequested = updateRequested = false;
+    } else {
+      startRequested = updateRequested = false;
+    }
+
+    if (op == null) {
+      draining = false;
+    }
+    return op;
+  }
+
+  private boolean run(Op op) {
+    switch (op) {
+      case START:
+        return actions.start();
+      case RESTART:
+        actions.restart();
+        return true;
+      case UPDATE:
+        actions.updateServer();
+        return true;
+      case STOP:
+        actions.stop();
+        return false;
+    }
+    return false;
+  }
+
+  private synchronized void finish(Op op, boolean running) {
+    if (op == Op.STOP) {
+      phase = Phase.STOPPED;
+      executor.shutdown();
+    } else {
+      phase = running ? Phase.RUNNING : Phase.IDLE;
+    }
+  }
+}
@@ -40,7 +40,9 @@ public class AnalyticsWrapper implements NetworkListener {
     BOOTSTRAP,
     BOOTSTRAP_FAILED,
     BYTES,
+    DNS_CACHE,
     EARLY_RESET,
+    HEDGE,
     STARTVPN,
     TRY_ALL_ACCEPTED,
     TRY_ALL_CANCELLED,
@@ -155,6 +157,19 @@ public class AnalyticsWrapper implements NetworkListener {
         .put(Params.DURATION, duration));
   }
 
+  /**
+   * Periodic statistics of the DNS answer cache for one DOH server.
+   * @param hits Queries answered from the cache
+   * @param misses Cacheable queries that were sent to the server
+   * @param prefetches Queries sent to refresh popular answers before they expired
+   */
+  public void logDnsCache(int hits, int misses, int prefetches) {
+    log(Events.DNS_CACHE, new BundleBuilder()
+        .put(Params.HITS, hits)
+        .put(Params.MISSES, misses)
+        .put(Params.PREFETCHES, prefetches));
+  }
+
   /**
    * A TCP socket connected, but then failed after some bytes were uploaded, without receiving any
    * downstream data, triggering a retry.
@@ -173,6 +188,18 @@ public class AnalyticsWrapper implements NetworkListener {
         .put(Params.RETRY, success ? 1 : 0));
   }
 
+  /**
+   * A DNS query was answered after a duplicate was sent to another server because it was slow.
+   * @param hedgeAnswered Whether the answer came from the duplicate
+   * @param latencyMs Latency of the request that produced the answer, which is measured from when
+   *     the duplicate was sent if hedgeAnswered is true
+   */
+  public void logHedge(boolean hedgeAnswered, int latencyMs) {
+    log(Events.HEDGE, new BundleBuilder()
+        .put(Params.RESULT, hedgeAnswered ? 1 : 0)
+        .put(Params.LATENCY, latencyMs));
+  }
+
   /**
    * The VPN was established.
    * @param mode The VpnAdapter implementation in use.
@@ -30,11 +30,14 @@ class BundleBuilder {
     DEVICE_COUNTRY,
     DOWNLOAD,
     DURATION,
+    HITS,
     LATENCY,
+    MISSES,
     MODE,
     NETWORK_COUNTRY,
     NETWORK_TYPE,
     PORT,
+    PREFETCHES,
     RESULT,
     RETRY,
     SERVER,
@@ -62,4 +62,13 @@ public class RemoteConfig {
       return false;
     }
   }
+
+  public static boolean getHedgingEnabled() {
+    try {
+      return FirebaseRemoteConfig.getInstance().getBoolean("hedging");
+    } catch (IllegalStateException e) {
+      LogWrapper.logException(e);
+      return false;
+    }
+  }
 }
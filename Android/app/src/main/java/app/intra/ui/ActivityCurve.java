@@ -0,0 +1,194 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.ui;
+
+import app.intra.sys.ActivityReceiver;
+import java.util.Arrays;
+
+/**
+ * The QPS curve displayed by HistoryGraph.  The histogram of events is rendered using a gradually
+ * diffusing gaussian convolution, reflecting the idea that the more recent an event is, the more
+ * we care about the fine temporal detail.
+ *
+ * The curve is updated incrementally.  Because the width of each gaussian grows as the square
+ * root of its age, aging the whole curve is the same as solving the diffusion equation: every
+ * RESOLUTION_MS, the curve shifts by one sample and is blurred with the kernel [1/4, 1/2, 1/4],
+ * which adds exactly the variance that each gaussian gains in that time.  New events are added
+ * with precomputed kernels.  Each frame therefore costs time proportional to the curve length and
+ * the number of new events, rather than to the number of events in the window.
+ *
+ * This class is separate from HistoryGraph so that it doesn't depend on the Android framework,
+ * which allows it to be benchmarked on a plain JVM.
+ */
+class ActivityCurve implements ActivityReceiver {
+
+  static final int WINDOW_MS = 60 * 1000;  // Show the last minute of activity
+  // Compute the QPS curve with the same granularity as the activity histogram.
+  static final int RESOLUTION_MS = ActivityReceiver.RESOLUTION_MS;
+
+  // Minimum width of the gaussian, in units of RESOLUTION_MS.  This matches the stroke width of
+  // the graph, and also avoids dividing by zero.
+  private static final int MIN_VARIANCE = 4;
+
+  // Optimization: truncate the Gaussian at +/- 2.7 sigma.  Beyond 2.7 sigma, a gaussian is less
+  // than 1/1000 of its peak value, which is not visible on our graph.
+  private static final float SUPPORT_SIGMAS = 2.7f;
+
+  // Values smaller than this are not visible, and are set to zero so that the tails of old events
+  // don't linger as denormals.
+  private static final float EPSILON = 1e-5f;
+
+  // Number of ages for which the kernels are precomputed.  Events are nearly always added within
+  // a sample or two of their occurrence.  Older events, which only appear when the curve is reset,
+  // are computed directly.
+  private static final int NUM_KERNELS = 8;
+  // KERNELS[k] is the gaussian for an event of age k samples, centered in the array.
+  private static final float[][] KERNELS = new float[NUM_KERNELS][];
+  static {
+    for (int k = 0; k < NUM_KERNELS; ++k) {
+      KERNELS[k] = kernel(k);
+    }
+  }
+
+  // Preallocate the curve to reduce garbage collection pressure.  Index 0 is the present.
+  private final int range = WINDOW_MS / RESOLUTION_MS;
+  final float[] values = new float[range];
+
+  // The diffusing curve.  grid[LEAD + i] is the curve at the start of interval gridInterval - i.
+  // It extends into the future by LEAD samples, which hold the leading edges of the newest
+  // gaussians until they come into view, and past the visible range, so that events from just
+  // before the window still diffuse into view.
+  private static final int LEAD = 1 + (int) (SUPPORT_SIGMAS * Math.sqrt(MIN_VARIANCE));
+  private final float[] grid =
+      new float[LEAD + range + 2 + (int) (SUPPORT_SIGMAS * Math.sqrt(range + MIN_VARIANCE))];
+  // The interval number (time / RESOLUTION_MS) of grid[0], or -1 if the grid is empty.
+  private long gridInterval = -1;
+
+  // The count that has already been added to the grid for each recent interval.  Interval n is
+  // recorded in slot n % NUM_BUCKETS.
+  private final long[] addedIntervals = new long[NUM_BUCKETS];
+  private final int[] addedCounts = new int[NUM_BUCKETS];
+
+  // Indicate whether the current curve is all zero, which allows an optimization.
+  private boolean empty = true;
+
+  // Value of SystemClock.elapsedRealtime() for the current frame.
+  private long now;
+
+  /**
+   * Sets the time of the next call to receive().
+   */
+  void setNow(long now) {
+    this.now = now;
+  }
+
+  boolean isEmpty() {
+    return empty;
+  }
+
+  // Gaussian curve formula.  (Not normalized.)
+  private static float gaussian(float mu, float inverseSigma, int x) {
+    float z = (x - mu) * inverseSigma;
+    return ((float) Math.exp(-z * z)) * inverseSigma;
+  }
+
+  // Returns the gaussian for an event of age |age| samples, truncated to its support.
+  private static float[] kernel(int age) {
+    // Diffusion equation: sigma grows as sqrt(time).
+    float sigma = (float) Math.sqrt(age + MIN_VARIANCE);
+    int halfWidth = (int) (SUPPORT_SIGMAS * sigma);
+    float inverseSigma = 1.0f / sigma;
+    float[] kernel = new float[2 * halfWidth + 1];
+    for (int i = 0; i < kernel.length; ++i) {
+      kernel[i] = gaussian(halfWidth, inverseSigma, i);
+    }
+    return kernel;
+  }
+
+  // Adds |count| events of age |age| samples to the grid.
+  private void add(int age, int count) {
+    float[] kernel = age < NUM_KERNELS ? KERNELS[age] : kernel(age);
+    // The index in the grid of kernel[0].
+    int start = LEAD + age - kernel.length / 2;
+    int left = Math.max(0, -start);
+    int right = Math.min(kernel.length, grid.length - start);
+    for (int i = left; i < right; ++i) {
+      grid[start + i] += count * kernel[i];
+    }
+  }
+
+  // Ages the grid by one sample.
+  private void step() {
+    for (int i = grid.length - 1; i >= 0; --i) {
+      float v = 0.5f * (i >= 1 ? grid[i - 1] : 0) + 0.25f * (grid[i] + (i >= 2 ? grid[i - 2] : 0));
+      grid[i] = Math.abs(v) < EPSILON ? 0 : v;
+    }
+    ++gridInterval;
+  }
+
+  private void reset(long interval) {
+    Arrays.fill(grid, 0);
+    Arrays.fill(addedIntervals, -1);
+    gridInterval = interval;
+  }
+
+  @Override
+  public void receive(long latest, int[] counts) {
+    // Bring the grid up to date.  Each grid sample is at the start of an interval.
+    long interval = now / RESOLUTION_MS;
+    long steps = interval - gridInterval;
+    if (gridInterval < 0 || steps < 0 || steps > grid.length) {
+      // The grid is empty, or everything in it has aged out, or the clock went backwards.
+      reset(interval);
+    } else {
+      for (long i = 0; i < steps; ++i) {
+        step();
+      }
+    }
+
+    // Add any events that aren't in the grid yet.
+    long latestInterval = latest / RESOLUTION_MS;
+    for (int b = 0; b < counts.length && b <= latestInterval; ++b) {
+      long n = latestInterval - b;
+      int slot = (int) (n % NUM_BUCKETS);
+      int added = addedIntervals[slot] == n ? addedCounts[slot] : 0;
+      int count = counts[b];
+      if (count == added) {
+        continue;
+      }
+      addedIntervals[slot] = n;
+      addedCounts[slot] = count;
+      // Treat the events in each interval as if they occurred at its start.  Events in the future
+      // indicate clock skew, so treat them as the present.
+      long age = Math.max(0, gridInterval - n);
+      if (age < grid.length - LEAD) {
+        add((int) age, count - added);
+      }
+    }
+
+    // Sample the grid at the current time, interpolating between its samples.  The grid was
+    // computed |phase| samples ago, so age i now corresponds to age i - phase in the grid.
+    float phase = (float) (now - gridInterval * RESOLUTION_MS) / RESOLUTION_MS;
+    empty = true;
+    for (int i = 0; i < range; ++i) {
+      float v = phase * grid[LEAD + i - 1] + (1 - phase) * grid[LEAD + i];
+      values[i] = v;
+      if (v != 0) {
+        empty = false;
+      }
+    }
+  }
+}
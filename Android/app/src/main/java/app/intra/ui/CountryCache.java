@@ -0,0 +1,97 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.ui;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of CountryMap lookups.  The history typically shows the same few resolver
+ * addresses and popular destinations over and over, so this avoids repeating the search for each
+ * row.  Each country is represented by a single Country object, which also holds its flag, so
+ * cached lookups don't allocate any strings.
+ * Thread-safe.
+ */
+class CountryCache {
+
+  /**
+   * A country code and its flag.  There is one instance per country code.
+   */
+  static final class Country {
+    final String code;  // Two-letter ISO country code
+    final String flag;  // The country's flag, as an emoji
+
+    private Country(String code) {
+      this.code = code;
+      this.flag = getFlag(code);
+    }
+  }
+
+  static final int DEFAULT_CAPACITY = 256;
+
+  private final CountryMap countryMap;
+  // Keyed by the packed address bytes, which distinguishes IPv4 from IPv6 by length.
+  private final Map<ByteBuffer, Country> cache;
+  private final Map<String, Country> countries = new HashMap<>();
+
+  CountryCache(CountryMap countryMap, final int capacity) {
+    this.countryMap = countryMap;
+    // An access-ordered LinkedHashMap is an LRU cache.
+    cache = new LinkedHashMap<ByteBuffer, Country>(capacity, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Country> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  CountryCache(CountryMap countryMap) {
+    this(countryMap, DEFAULT_CAPACITY);
+  }
+
+  synchronized Country get(InetAddress address) {
+    ByteBuffer key = ByteBuffer.wrap(address.getAddress());
+    Country country = cache.get(key);
+    if (country == null) {
+      String code = countryMap.getCountryCode(address);
+      country = countries.get(code);
+      if (country == null) {
+        country = new Country(code);
+        countries.put(code, country);
+      }
+      cache.put(key, country);
+    }
+    return country;
+  }
+
+  // Converts a two-character ISO country code into a flag emoji.
+  static String getFlag(String countryCode) {
+    // Flag emoji consist of two "regional indicator symbol letters", which are
+    // Unicode characters that correspond to the English alphabet and are arranged in the same
+    // order.  Therefore, to convert from a country code to a flag, we simply need to apply an
+    // offset to each character, shifting it from the normal A-Z range into the region indicator
+    // symbol letter range.
+    int alphaBase = 'A';  // Start of alphabetic country code characters.
+    int flagBase = 0x1F1E6;  // Start of regional indicator symbol letters.
+    int offset = flagBase - alphaBase;
+    int firstHalf = Character.codePointAt(countryCode, 0) + offset;
+    int secondHalf = Character.codePointAt(countryCode, 1) + offset;
+    return new String(Character.toChars(firstHalf)) + new String(Character.toChars(secondHalf));
+  }
+}
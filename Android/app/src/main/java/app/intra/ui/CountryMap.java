@@ -15,84 +15,169 @@ limitations under the License.
 */
 package app.intra.ui;
 
-import android.content.res.AssetManager;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.InetAddress;
-import java.nio.charset.Charset;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
- * Map IP addresses to country codes, using a fixed-width sorted database.
- * Lookups are performed using a binary search.
- * The database requires about 5 MB of RAM, 2 MB compressed in the APK.  A carefully designed
- * tree-based representation could probably save a factor of 4.
+ * Map IP addresses to country codes, using the compact interval tables produced by
+ * scripts/dbip_shrink.py.  See that script for a description of the format.
+ * Lookups are performed using a binary search over an index of blocks, followed by a linear scan
+ * of a single block, comparing addresses as unsigned integers.
+ * The tables are read in place, so when they are memory-mapped from the APK, they don't occupy
+ * the Java heap, and only the pages touched by lookups are loaded.
  * Note that this class is not used by the service, so it should only contribute to RAM usage when
  * the UI is visible.
+ * This class does not depend on the Android framework, so it can be benchmarked on a plain JVM.
  */
 class CountryMap {
 
-  // Number of bytes used to store each country string.
-  private static final int COUNTRY_SIZE = 2;
+  // Names of the databases in the app's assets.
+  static final String V4_ASSET = "dbip.v4";
+  static final String V6_ASSET = "dbip.v6";
 
-  // TODO: Reintroduce IPv6 support when Intra supports IPv6 again.
-  private final byte[] db;
+  private static final String UNKNOWN = "ZZ";
 
-  CountryMap(AssetManager assetManager) throws IOException {
-    db = read(assetManager.open("dbip.v4"));
+  private final Table v4;
+  private final Table v6;
+
+  /**
+   * @param v4 The IPv4 database, from its position to its limit, typically a MappedByteBuffer.
+   * @param v6 The IPv6 database, or null if it is not available.
+   * The buffers are not copied, and must not be modified.
+   */
+  CountryMap(ByteBuffer v4, ByteBuffer v6) throws IOException {
+    this.v4 = new Table(v4);
+    this.v6 = v6 == null ? null : new Table(v6);
   }
 
-  private static byte[] read(InputStream input) throws IOException {
-    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-    int n;
-    byte[] temp = new byte[4096];
-    while ((n = input.read(temp, 0, temp.length)) != -1) {
-      buffer.write(temp, 0, n);
+  String getCountryCode(InetAddress address) {
+    byte[] ip = address.getAddress();
+    Table table = ip.length == 4 ? v4 : v6;
+    if (table == null) {
+      return UNKNOWN;
+    }
+    // Keys are the first 4 or 8 bytes of the address, as an unsigned integer.
+    long key = 0;
+    for (int i = 0; i < table.keySize; ++i) {
+      key = (key << 8) | (ip[i] & 0xFF);
     }
-    return buffer.toByteArray();
+    return table.lookup(key);
   }
 
   /**
-   * Compares two arrays of equal length.  The first is an entry in a database, specified by the
-   * index of its first byte.  The second is a standalone array.
-   * @return The lexicographic comparison of the two arrays.
+   * A single table, for IPv4 or IPv6, read in place from a buffer.
    */
-  private static boolean lessEqual(byte[] db, int position, byte[] key) {
-    for (int i = 0; i < key.length; ++i) {
-      int ai = db[position + i] & 0xFF;
-      int bi = key[i] & 0xFF;
+  private static class Table {
+    private static final int MAGIC = 0x434d4150;  // "CMAP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 14;
 
-      if (ai < bi) {
-        return true;
+    private final ByteBuffer buffer;
+    final int keySize;
+    private final int blockSize;
+    private final int numIntervals;
+    // Country codes, in the order used by the data.  These are shared by all lookups, so
+    // lookups don't allocate.
+    private final String[] countries;
+    private final int numBlocks;
+    // Position of the index, where each entry is a key followed by a 4-byte offset.
+    private final int indexStart;
+    private final int indexEntrySize;
+    // Position of the block data.
+    private final int dataStart;
+
+    Table(ByteBuffer data) throws IOException {
+      // Use a big-endian view whose position 0 is the start of the table.
+      buffer = data.slice();
+      if (buffer.limit() < HEADER_SIZE) {
+        throw new IOException("Truncated database");
+      }
+      if (buffer.getInt(0) != MAGIC || buffer.get(4) != VERSION) {
+        throw new IOException("Unrecognized database format");
+      }
+      keySize = buffer.get(5);
+      if (keySize != 4 && keySize != 8) {
+        throw new IOException("Bad key size: " + keySize);
+      }
+      blockSize = buffer.getShort(6) & 0xFFFF;
+      numIntervals = buffer.getInt(8);
+      int numCountries = buffer.getShort(12) & 0xFFFF;
+      if (blockSize == 0 || numIntervals <= 0) {
+        throw new IOException("Empty database");
+      }
+      if (HEADER_SIZE + 2 * numCountries > buffer.limit()) {
+        throw new IOException("Truncated database");
       }
-      if (ai > bi) {
-        return false;
+      countries = new String[numCountries];
+      int position = HEADER_SIZE;
+      for (int i = 0; i < numCountries; ++i) {
+        char[] code = {(char) buffer.get(position), (char) buffer.get(position + 1)};
+        countries[i] = new String(code);
+        position += 2;
+      }
+      indexStart = position;
+      indexEntrySize = keySize + 4;
+      numBlocks = (numIntervals + blockSize - 1) / blockSize;
+      dataStart = indexStart + numBlocks * indexEntrySize;
+      if (dataStart > buffer.limit()) {
+        throw new IOException("Truncated database");
       }
     }
-    return true;
-  }
 
-  String getCountryCode(InetAddress address) {
-    byte[] key = address.getAddress();
-    if (key.length != 4) {
-      // Only IPv4 is supported
-      return "ZZ";
+    // Flips the sign bit, so that signed comparison of the results is unsigned comparison of the
+    // arguments.
+    private static long unsigned(long x) {
+      return x + Long.MIN_VALUE;
+    }
+
+    // Returns the first key in |block|, in unsigned() form.
+    private long blockKey(int block) {
+      int position = indexStart + block * indexEntrySize;
+      return unsigned(
+          keySize == 4 ? buffer.getInt(position) & 0xFFFFFFFFL : buffer.getLong(position));
     }
-    int recordSize = key.length + COUNTRY_SIZE;
-    int low = 0;
-    int high = db.length / recordSize;
-    while (high - low > 1) {
-      int mid = (low + high) / 2;
-      int position = mid * recordSize;
-      if (lessEqual(db, position, key)) {
-        low = mid;
-      } else {
-        high = mid;
+
+    String lookup(long key) {
+      // Find the last block that starts at or before the key.
+      long target = unsigned(key);
+      int low = 0;
+      int high = numBlocks;
+      while (high - low > 1) {
+        int mid = (low + high) >>> 1;
+        if (blockKey(mid) <= target) {
+          low = mid;
+        } else {
+          high = mid;
+        }
+      }
+      long start = blockKey(low);
+      if (start > target) {
+        // The key precedes the first interval.
+        return UNKNOWN;
+      }
+
+      // Scan the block for the last interval that starts at or before the key.  Deltas are
+      // unaffected by the unsigned() transformation.
+      int position = dataStart + buffer.getInt(indexStart + low * indexEntrySize + keySize);
+      int country = buffer.get(position++) & 0xFF;
+      int remaining = Math.min(blockSize, numIntervals - low * blockSize) - 1;
+      for (int i = 0; i < remaining; ++i) {
+        long delta = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = buffer.get(position++);
+          delta |= (long) (b & 0x7F) << shift;
+          shift += 7;
+        } while (b < 0);
+        start += delta;
+        if (start > target) {
+          break;
+        }
+        country = buffer.get(position++) & 0xFF;
       }
+      return countries[country];
     }
-    int position = low * recordSize + key.length;
-    byte[] countryCode = Arrays.copyOfRange(db, position, position + COUNTRY_SIZE);
-    return new String(countryCode, Charset.forName("UTF-8"));
   }
 }
@@ -28,24 +28,22 @@ import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.View;
 import app.intra.R;
-import app.intra.sys.ActivityReceiver;
 import app.intra.sys.QueryTracker;
 import app.intra.sys.VpnController;
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.Random;
 
 
 /**
  * A graph showing the DNS query activity over the past minute.  The sequence of events is
- * rendered as a QPS graph using a gradually diffusing gaussian convolution, reflecting the idea
- * that the more recent an event is, the more we care about the fine temporal detail.
+ * rendered as a QPS graph using a gradually diffusing gaussian convolution (see ActivityCurve).
  */
-public class HistoryGraph extends View implements ActivityReceiver {
+public class HistoryGraph extends View {
 
-  private static final int WINDOW_MS = 60 * 1000;  // Show the last minute of activity
-  private static final int RESOLUTION_MS = 100;  // Compute the QPS curve with 100ms granularity.
+  private static final int WINDOW_MS = ActivityCurve.WINDOW_MS;
   private static final int PULSE_INTERVAL_MS = 10 * 1000;  // Mark a pulse every 10 seconds
+  // While the curve is empty, only the pulses move, and they move slowly, so redraw at 10 fps.
+  // This also limits the delay before new activity appears.
+  private static final int IDLE_FRAME_INTERVAL_MS = 100;
 
   private static final int DATA_STROKE_WIDTH = 4;  // Display pixels
   private static final float BOTTOM_MARGIN_FRACTION = 0.05f;  // Space to reserve below y=0.
@@ -59,9 +57,12 @@ public class HistoryGraph extends View implements ActivityReceiver {
   private Paint particlePaint; // Paint for particles
   private Paint sparklePaint; // Paint for sparkle effects
 
-  // Preallocate the curve to reduce garbage collection pressure.
-  private int range = WINDOW_MS / RESOLUTION_MS;
-  private float[] curve = new float[range];
+  // Path for the filled area, which is reused on each frame.
+  private final Path fillPath = new Path();
+
+  // The QPS curve, and its values, which are updated in place on each frame.
+  private final ActivityCurve activityCurve = new ActivityCurve();
+  private final float[] curve = activityCurve.values;
   private float[] lines = new float[(curve.length - 1) * 4];
 
   // Indicate whether the current curve is all zero, which allows an optimization.
@@ -139,6 +140,10 @@ public class HistoryGraph extends View implements ActivityReceiver {
    * @param color ARGB color to use for the lines in subsequent frames
    */
   public void setColor(int color) {
+    if (color == dataPaint.getColor()) {
+      // Avoid rebuilding the shaders.
+      return;
+    }
     dataPaint.setColor(color);
     glowPaint.setColor(color);
     pulsePaint.setColor(color);
@@ -147,52 +152,11 @@ public class HistoryGraph extends View implements ActivityReceiver {
     updateFillShader(getWidth(), getHeight());
   }
 
-  // Gaussian curve formula.  (Not normalized.)
-  private static float gaussian(float mu, float inverseSigma, int x) {
-    float z = (x - mu) * inverseSigma;
-    return ((float) Math.exp(-z * z)) * inverseSigma;
-  }
-
-  @Override
-  public void receive(Collection<Long> activity) {
-    // Reset the curve, and populate it if there are any events in the window.
-    curveIsEmpty = true;
-    float scale = 1.0f / RESOLUTION_MS;
-    for (long t : activity) {
-      long age = now - t;
-      if (age < 0) {
-        // Possible clock skew mishap.
-        continue;
-      }
-      float e = age * scale;
-
-      // Diffusion equation: sigma grows as sqrt(time).
-      // Add a constant to avoid dividing by zero.
-      float sigma = (float) Math.sqrt(e + DATA_STROKE_WIDTH);
-
-      // Optimization: truncate the Gaussian at +/- 2.7 sigma.  Beyond 2.7 sigma, a gaussian is less
-      // than 1/1000 of its peak value, which is not visible on our graph.
-      float support = 2.7f * sigma;
-      int left = Math.max(0, (int) (e - support));
-      if (left > range) {
-        // This event is offscreen.
-        continue;
-      }
-      if (curveIsEmpty) {
-        curveIsEmpty = false;
-        Arrays.fill(curve, 0.0f);
-      }
-      int right = Math.min(range, (int) (e + support));
-      float inverseSigma = 1.0f / sigma;  // Optimization: only compute division once per event.
-      for (int i = left; i < right; ++i) {
-        curve[i] += gaussian(e, inverseSigma, i);
-      }
-    }
-  }
-
   // Updates the curve contents or returns false if there are no contents.
   private boolean updateCurve() {
-    tracker.showActivity(this);
+    activityCurve.setNow(now);
+    tracker.showActivity(activityCurve);
+    curveIsEmpty = activityCurve.isEmpty();
     return !curveIsEmpty;
   }
 
@@ -261,7 +225,8 @@ public class HistoryGraph extends View implements ActivityReceiver {
                             float xscale, float yscale) {
     if (curveIsEmpty) return;
 
-    Path path = new Path();
+    Path path = fillPath;
+    path.rewind();
     path.moveTo(xoffset, yoffset); // Start at bottom left
     
     for (int i = 0; i < curve.length; i++) {
@@ -465,8 +430,12 @@ public class HistoryGraph extends View implements ActivityReceiver {
       canvas.drawCircle(tagX, yoffset, radius, pulsePaint);
     }
 
-    // Draw the next frame at the UI's preferred update frequency.
-    postInvalidateOnAnimation();
+    if (curveIsEmpty) {
+      postInvalidateDelayed(IDLE_FRAME_INTERVAL_MS);
+    } else {
+      // Draw the next frame at the UI's preferred update frequency.
+      postInvalidateOnAnimation();
+    }
   }
 
   // Particle class for particle system
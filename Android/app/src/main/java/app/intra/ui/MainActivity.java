@@ -37,6 +37,7 @@ import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.text.method.LinkMovementMethod;
 import android.util.Log;
@@ -53,6 +54,7 @@ import android.widget.TextView;
 import android.widget.Toast;
 import androidx.annotation.DrawableRes;
 import androidx.annotation.IdRes;
+import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.ActionBarDrawerToggle;
@@ -68,14 +70,17 @@ import androidx.preference.PreferenceManager;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import app.intra.R;
+import app.intra.net.doh.Prober;
 import app.intra.net.doh.Race;
-import app.intra.net.doh.Transaction;
+import app.intra.net.doh.ServerScore;
+import app.intra.sys.HistoryStore;
 import app.intra.sys.IntraVpnService;
 import app.intra.sys.firebase.AnalyticsWrapper;
 import app.intra.sys.firebase.LogWrapper;
 import app.intra.sys.InternalNames;
 import app.intra.sys.PersistentState;
 import app.intra.sys.QueryTracker;
+import app.intra.sys.TransactionListener;
 import app.intra.sys.VpnController;
 import app.intra.sys.VpnState;
 import app.intra.sys.firebase.RemoteConfig;
@@ -87,11 +92,14 @@ import com.google.android.material.switchmaterial.SwitchMaterial;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Locale;
-import java.util.Queue;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends AppCompatActivity
     implements SharedPreferences.OnSharedPreferenceChangeListener {
@@ -107,6 +115,8 @@ public class MainActivity extends AppCompatActivity
   private RecyclerView.LayoutManager layoutManager;
   private View controlView = null;
   private Timer activityTimer;
+  // The try-all-servers benchmark in progress, if any.  Only accessed on the main thread.
+  private @Nullable Prober.Handle serverCheck = null;
 
   private SettingsFragment settingsFragment = null;
 
@@ -114,24 +124,32 @@ public class MainActivity extends AppCompatActivity
       new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-          if (InternalNames.RESULT.name().equals(intent.getAction())) {
-            updateStatsDisplay(getNumRequests(),
-                (Transaction) intent.getSerializableExtra(InternalNames.TRANSACTION.name()));
-          } else if (InternalNames.DNS_STATUS.name().equals(intent.getAction())) {
+          if (InternalNames.DNS_STATUS.name().equals(intent.getAction())) {
             syncDnsStatus();
           }
         }
       };
 
-  private void updateStatsDisplay(long numRequests, Transaction transaction) {
-    showNumRequests(numRequests);
-    showTransaction(transaction);
-  }
+  // New transactions are shown in batches, at most once per BATCH_INTERVAL_MS, so that a burst of
+  // queries (e.g. when an app launches) results in a few UI updates instead of hundreds.
+  private static final long BATCH_INTERVAL_MS = 150;
+  private final Handler batchHandler = new Handler(Looper.getMainLooper());
+  private final Runnable showPendingTransactions = this::showPendingTransactions;
+  // True if showPendingTransactions is scheduled.
+  private final AtomicBoolean batchScheduled = new AtomicBoolean(false);
 
-  private void showTransaction(Transaction transaction) {
-    if (isHistoryEnabled()) {
-      adapter.add(transaction);
+  // Called on the thread that recorded the transaction.  The transactions themselves are read
+  // back from the history.
+  private final TransactionListener transactionListener = transaction -> {
+    if (batchScheduled.compareAndSet(false, true)) {
+      batchHandler.postDelayed(showPendingTransactions, BATCH_INTERVAL_MS);
     }
+  };
+
+  private void showPendingTransactions() {
+    batchScheduled.set(false);
+    showNumRequests(getNumRequests());
+    adapter.refresh();
   }
 
   private void showNumRequests(long numRequests) {
@@ -243,9 +261,9 @@ public class MainActivity extends AppCompatActivity
     recyclerView.setAdapter(adapter);
 
     // Register broadcast receiver
-    IntentFilter intentFilter = new IntentFilter(InternalNames.RESULT.name());
-    intentFilter.addAction(InternalNames.DNS_STATUS.name());
+    IntentFilter intentFilter = new IntentFilter(InternalNames.DNS_STATUS.name());
     LocalBroadcastManager.getInstance(this).registerReceiver(messageReceiver, intentFilter);
+    VpnController.getInstance().getTracker(this).addTransactionListener(transactionListener);
 
     prepareHyperlinks(this, findViewById(R.id.activity_main));
 
@@ -288,42 +306,60 @@ public class MainActivity extends AppCompatActivity
         new CompoundButton.OnCheckedChangeListener() {
           @Override
           public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
-            tracker.setHistoryEnabled(isChecked);
+            tracker.setHistoryEnabled(MainActivity.this, isChecked);
 
-            if (!isChecked) {
-              // Clear the visual state immediately
-              adapter.reset(null);
-            }
+            // Update the visual state immediately
+            adapter.reset(getHistory());
           }
         });
 
     // The try-all-servers button is normally hidden, and only becomes visible in the failing state.
     final Button tryAllButton = controlView.findViewById(R.id.try_all_servers_button);
-    // Clicking tryAllButton starts a connection race in a new thread.  This status is
+    // Clicking tryAllButton starts a server benchmark in the background.  This status is
     // not recorded in persistent state, so if the activity is destroyed and recreated while
-    // the race is running, the race will be lost and the user will have to click the
-    // button again.
+    // the benchmark is running, it is canceled and the user will have to click the
+    // button again.  The resulting ranking is saved for the server chooser.
     tryAllButton.setOnClickListener((View view) -> {
       tryAllButton.setEnabled(false);
       tryAllButton.setText(R.string.checking_servers);
-      String[] urls = getResources().getStringArray(R.array.urls);
+      final List<String> builtins = Arrays.asList(getResources().getStringArray(R.array.urls));
+      List<String> urls = new ArrayList<>(builtins);
+      String current = PersistentState.expandUrl(this, PersistentState.getServerUrl(this));
+      if (!urls.contains(current)) {
+        // Measure the custom server too, so that the saved ranking covers every known server.
+        urls.add(current);
+      }
       AnalyticsWrapper.get(this).logTryAllRequested();
-      // The result needs to be posted to the UI thread before we can make UI changes.
-      Race.start(this, urls, (int index) -> view.post(() -> {
-        if (index >= 0) {
-          // By the time this callback runs, MainActivity may have been stopped.  In this situation
-          // showing a DialogFragment directly causes an IllegalStateException.  Using
-          // commitAllowingStateLoss() avoids this problem.
-          getSupportFragmentManager().beginTransaction()
-              .add(new ServerApprovalDialogFragment(index), "dialog")
-              .commitAllowingStateLoss();
-        } else {
-          Toast.makeText(this, R.string.all_servers_failed, Toast.LENGTH_LONG).show();
-          AnalyticsWrapper.get(this).logTryAllFailed();
+      serverCheck = Race.benchmark(this, urls.toArray(new String[0]), Race.DEFAULT_ROUNDS,
+          ranking -> {
+        PersistentState.setServerRanking(this, ranking);
+        // Recommend the best working server that the approval dialog can offer.
+        int best = -1;
+        for (ServerScore score : ranking) {
+          if (score.hasSucceeded() && builtins.contains(score.url)) {
+            best = builtins.indexOf(score.url);
+            break;
+          }
         }
-        tryAllButton.setText(R.string.try_all_servers);
-        tryAllButton.setEnabled(true);
-      }));
+        final int index = best;
+        // The result needs to be posted to the UI thread before we can make UI changes.
+        view.post(() -> {
+          serverCheck = null;
+          if (index >= 0) {
+            // By the time this callback runs, MainActivity may have been stopped.  In this
+            // situation showing a DialogFragment directly causes an IllegalStateException.  Using
+            // commitAllowingStateLoss() avoids this problem.
+            getSupportFragmentManager().beginTransaction()
+                .add(new ServerApprovalDialogFragment(index), "dialog")
+                .commitAllowingStateLoss();
+          } else {
+            Toast.makeText(this, R.string.all_servers_failed, Toast.LENGTH_LONG).show();
+            AnalyticsWrapper.get(this).logTryAllFailed();
+          }
+          tryAllButton.setText(R.string.try_all_servers);
+          tryAllButton.setEnabled(true);
+        });
+      });
     });
 
     // Set up click listeners for the info boxes.
@@ -425,6 +461,12 @@ public class MainActivity extends AppCompatActivity
   @Override
   protected void onDestroy() {
     LocalBroadcastManager.getInstance(this).unregisterReceiver(messageReceiver);
+    VpnController.getInstance().getTracker(this).removeTransactionListener(transactionListener);
+    batchHandler.removeCallbacks(showPendingTransactions);
+    if (serverCheck != null) {
+      serverCheck.cancel();
+      serverCheck = null;
+    }
     PreferenceManager.getDefaultSharedPreferences(this).
         unregisterOnSharedPreferenceChangeListener(this);
 
@@ -448,9 +490,13 @@ public class MainActivity extends AppCompatActivity
     VpnController.getInstance().stop(this);
   }
 
-  private Queue<Transaction> getHistory() {
+  // Returns the history to display, or null if the history is disabled.
+  private HistoryStore getHistory() {
+    if (!isHistoryEnabled()) {
+      return null;
+    }
     VpnController controller = VpnController.getInstance();
-    return controller.getTracker(this).getRecentTransactions();
+    return controller.getTracker(this).getHistory();
   }
 
   private long getNumRequests() {
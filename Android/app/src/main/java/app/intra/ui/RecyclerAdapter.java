@@ -15,8 +15,13 @@ limitations under the License.
 */
 package app.intra.ui;
 
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -27,35 +32,38 @@ import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 import androidx.recyclerview.widget.RecyclerView;
 import app.intra.R;
-import app.intra.net.dns.DnsPacket;
+import app.intra.sys.HistoryStore;
 import app.intra.sys.firebase.LogWrapper;
 import com.google.common.net.InternetDomainName;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.ProtocolException;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Queue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * The main screen of the app is implemented as a Recycler, allowing quasi-infinite scrolling.
  * This scrolling is used to display the DNS query history, if enabled by the user.
  *
- * Showing history creates a resource utilization challenge.  Keeping an unbounded amount of history
- * would result in unbounded memory usage, a major problem for a long-lived service.  However,
- * erasing history at some limit would likely cause transactions to disappear from the screen while
- * the user is looking at them, a surprising and frustrating experience.
+ * Showing history creates a resource utilization challenge.  The history is kept on disk by
+ * HistoryStore, which can hold hours of queries, so it can't all be kept in memory.  Instead, this
+ * adapter loads pages of HistoryStore.PAGE_SIZE rows as they are scrolled into view, and keeps only
+ * the most recently used pages.  Rows that haven't been loaded yet are shown blank.
  *
- * This design balances these requirements by recording unbounded history during the lifetime of
- * the activity, and discarding it when the activity is destroyed.  This ensures that data does not
- * disappear while the user is looking at it, and allows Android to recover the memory when it's
- * needed.
- *
- * When the activity is recreated, it retrieves bounded history (the last 100 queries) from the
- * IntraVpnService.
+ * Pages are loaded on a background thread, which also computes the strings shown in each
+ * condensed row, so scrolling never waits for disk I/O or for parsing.  The remaining details are
+ * only computed when a row is first expanded.
  */
 public class RecyclerAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
@@ -64,9 +72,28 @@ public class RecyclerAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
   private static final int TYPE_CONTROLS = 0;
   private static final int TYPE_TRANSACTION = 1;
 
+  // Number of pages to keep in memory.
+  private static final int MAX_PAGES = 16;
+
+  // Payload for notifyItemRangeChanged, indicating that a page of rows has been loaded.  This
+  // allows the rows to be updated in place, without a change animation.
+  private static final Object LOADED_PAYLOAD = new Object();
+
+  // Loads pages at background priority, so that this work doesn't compete with rendering.
+  private static final Executor LOADER = Executors.newSingleThreadExecutor(
+      r -> new Thread(() -> {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        r.run();
+      }, "RecyclerAdapter"));
+
   // Hold a reference to the main activity class, which provides the control view.
   private MainActivity activity;
-  private CountryMap countryMap = null;
+  // Guarded by this, since it is used from the loader thread.
+  private CountryCache countryCache = null;
+
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  // Used on the loader thread to format row times.
+  private final Calendar calendar = Calendar.getInstance();
 
   // ARGB colors to use as the background for condensed and expanded transaction rows.
   private final int condensedColor, expandedColor;
@@ -80,15 +107,42 @@ public class RecyclerAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
     expandedColor = activity.getResources().getColor(R.color.floating);
   }
 
-  private void activateCountryMap() {
-    if (countryMap != null) {
-      return;
+  // Returns the country cache, or null if the database could not be loaded.
+  private synchronized @Nullable CountryCache getCountryCache() {
+    if (countryCache != null) {
+      return countryCache;
     }
+    AssetManager assets = activity.getAssets();
     try {
-      countryMap = new CountryMap(activity.getAssets());
+      MappedByteBuffer v6 = null;
+      try {
+        v6 = map(assets, CountryMap.V6_ASSET);
+      } catch (FileNotFoundException e) {
+        // The IPv6 database is optional.
+      }
+      countryCache = new CountryCache(new CountryMap(map(assets, CountryMap.V4_ASSET), v6));
     } catch (IOException e) {
       LogWrapper.logException(e);
     }
+    return countryCache;
+  }
+
+  private synchronized void releaseCountryCache() {
+    countryCache = null;
+  }
+
+  // Maps an asset directly from the APK, which requires it to be stored uncompressed.  The mapping
+  // remains valid after the file is closed.
+  private static MappedByteBuffer map(AssetManager assets, String name) throws IOException {
+    // AssetFileDescriptor is only Closeable on API 19+, so close it explicitly.  The stream
+    // doesn't own the file descriptor, so there's nothing else to close.
+    AssetFileDescriptor fd = assets.openFd(name);
+    try {
+      FileChannel channel = new FileInputStream(fd.getFileDescriptor()).getChannel();
+      return channel.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength());
+    } finally {
+      fd.close();
+    }
   }
 
   // Exposes the control view to the Recycler.  This class is trivial because MainActivity is
@@ -155,11 +209,12 @@ public class RecyclerAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
 
       if (expanded) {
         // Make sure the details are up to date.
+        Details details = transaction.getDetails();
         fqdnView.setText(transaction.fqdn);
-        typeView.setText(transaction.typename);
-        latencyView.setText(transaction.latency);
-        if (transaction.resolver != null) {
-          resolverView.setText(transaction.resolver);
+        typeView.setText(details.typename);
+        latencyView.setText(details.latency);
+        if (details.resolver != null) {
+          resolverView.setText(details.resolver);
         } else {
           resolverView.setText(R.string.unknown_server);
         }
@@ -167,62 +222,125 @@ public class RecyclerAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
       }
     }
 
-    public void update(RecyclerAdapter.Transaction transaction) {
+    // |transaction| is null if the row hasn't been loaded yet.
+    public void update(@Nullable RecyclerAdapter.Transaction transaction) {
       // This function can be run up to a dozen times while blocking rendering, so it needs to be
       // as brief as possible.
       this.transaction = transaction;
+      if (transaction == null) {
+        hostnameView.setText("");
+        timeView.setText("");
+        flagView.setText("");
+        setExpanded(false);
+        return;
+      }
       hostnameView.setText(transaction.hostname);
       timeView.setText(transaction.time);
       flagView.setText(transaction.flag);
 
-      setExpanded(transaction.expanded);
+      setExpanded(expandedRows.contains(transaction.index));
     }
 
     @Override
     public void onClick(View view) {
       int position = this.getAdapterPosition();
       RecyclerAdapter.Transaction transaction = getItem(position);
-      transaction.expanded = !transaction.expanded;
+      if (transaction == null) {
+        return;
+      }
+      if (!expandedRows.remove(transaction.index)) {
+        expandedRows.add(transaction.index);
+      }
       notifyItemChanged(position);
     }
   }
 
+  // The strings that are only shown when a row is expanded.
+  private static final class Details {
+    final String latency;   // The latency of the response, e.g. "150 ms"
+    final String typename;  // Typically "A" or "AAAA"
+    final String resolver;  // The resolver IP address and country code
+
+    Details(String latency, String typename, String resolver) {
+      this.latency = latency;
+      this.typename = typename;
+      this.resolver = resolver;
+    }
+  }
+
   // Class representing a view of a Transaction.  Computing the value of all these strings can
   // take over 10 ms, so this class ensures they're only computed once per transaction, instead of
-  // being recomputed every time a transaction row becomes visible during scrolling.
+  // being recomputed every time a transaction row becomes visible during scrolling.  The
+  // constructor runs on the loader thread, and computes the strings for the condensed row.
   private final class Transaction {
-    // If true, the panel is expanded to show details.
-    boolean expanded = false;
+    // Index of this transaction in the HistoryStore.
+    final long index;
 
     // Human-readable representation of this transaction.
     final String fqdn;      // Fully qualified domain name of the query
     final String hostname;  // Truncated hostname for short display
     final String time;      // The time of the response, e.g. 10:32:15
-    final String latency;   // The latency of the response, e.g. "150 ms"
-    final String typename;  // Typically "A" or "AAAA"
-    final String resolver;  // The resolver IP address and country code
     final String response;  // The first response IP in the RRset, for an A or AAAA response.
     final String flag;      // The flag of the response IP, as an emoji.
 
-    Transaction(@NonNull app.intra.net.doh.Transaction transaction) {
-      fqdn = transaction.name;
-      hostname = getETldPlus1(transaction.name);
+    // Computed by getDetails() on the main thread.
+    private @Nullable Details details = null;
+
+    private final HistoryStore.Record record;
+
+    Transaction(long index, @NonNull HistoryStore.Record record) {
+      this.index = index;
+      this.record = record;
+      fqdn = record.name;
+      hostname = getETldPlus1(record.name);
+      time = formatTime(record.wallTime);
+
+      if (record.status == app.intra.net.doh.Transaction.Status.COMPLETE
+          || record.status == app.intra.net.doh.Transaction.Status.CACHED) {
+        @Nullable InetAddress destination = null;
+        if (record.address != null) {
+          try {
+            destination = InetAddress.getByAddress(record.address);
+          } catch (UnknownHostException e) {
+            // Unreachable, since the record only holds IPv4 and IPv6 addresses.
+          }
+        }
+        if (destination != null) {
+          @Nullable CountryCache.Country country = getCountry(destination);
+          response = makeAddressPair(country, destination.getHostAddress());
+          flag = country == null ? "" : country.flag;
+        } else {
+          response = "NXDOMAIN";
+          flag = "\u2754";  // White question mark
+        }
+      } else {
+        response = record.status.name();
+        if (record.status == app.intra.net.doh.Transaction.Status.CANCELED) {
+          flag = "\u274c";  // "X" mark
+        } else {
+          flag = "\u26a0";  // Warning sign
+        }
+      }
+    }
 
-      int hour = transaction.responseCalendar.get(Calendar.HOUR_OF_DAY);
-      int minute = transaction.responseCalendar.get(Calendar.MINUTE);
-      int second = transaction.responseCalendar.get(Calendar.SECOND);
-      time = String.format(Locale.ROOT, "%02d:%02d:%02d", hour, minute, second);
+    Details getDetails() {
+      if (details == null) {
+        details = computeDetails();
+      }
+      return details;
+    }
 
+    private Details computeDetails() {
       String template = activity.getResources().getString(R.string.latency_ms);
-      latency = String.format(template, transaction.responseTime - transaction.queryTime);
+      String latency = String.format(template, record.latencyMs);
 
-      typename = getTypeName(transaction.type);
+      String typename = getTypeName(record.type);
 
       InetAddress serverAddress;
       try {
         // InetAddress.getByName(null) returns IPv6 localhost, not an error indication.
-        if (transaction.serverIp != null) {
-          serverAddress = InetAddress.getByName(transaction.serverIp);
+        if (record.serverIp != null) {
+          serverAddress = InetAddress.getByName(record.serverIp);
         } else {
           serverAddress = null;
         }
@@ -230,44 +348,32 @@ public class RecyclerAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
         serverAddress = null;
       }
 
+      String resolver;
       if (serverAddress != null) {
-        @Nullable String countryCode = getCountryCode(serverAddress);
-        resolver = makeAddressPair(countryCode, serverAddress.getHostAddress());
+        @Nullable CountryCache.Country country = getCountry(serverAddress);
+        resolver = makeAddressPair(country, serverAddress.getHostAddress());
       } else {
-        resolver = transaction.serverIp;
+        resolver = record.serverIp;
       }
+      return new Details(latency, typename, resolver);
+    }
 
-      if (transaction.status == app.intra.net.doh.Transaction.Status.COMPLETE) {
-        DnsPacket packet = null;
-        String err = null;
-        try {
-          packet = new DnsPacket(transaction.response);
-        } catch (ProtocolException e) {
-          err = e.getMessage();
-        }
-        if (packet != null) {
-          List<InetAddress> addresses = packet.getResponseAddresses();
-          if (addresses.size() > 0) {
-            InetAddress destination = addresses.get(0);
-            @Nullable String countryCode = getCountryCode(destination);
-            response = makeAddressPair(countryCode, destination.getHostAddress());
-            flag = getFlag(countryCode);
-          } else {
-            response = "NXDOMAIN";
-            flag = "\u2754";  // White question mark
-          }
-        } else {
-          response = err;
-          flag = "\u26a0";  // Warning sign
-        }
-      } else {
-        response = transaction.status.name();
-        if (transaction.status == app.intra.net.doh.Transaction.Status.CANCELED) {
-          flag = "\u274c";  // "X" mark
-        } else {
-          flag = "\u26a0";  // Warning sign
-        }
-      }
+    // Formats the local time as e.g. 10:32:15.  This is equivalent to "%02d:%02d:%02d", without
+    // the cost of String.format.
+    private String formatTime(long wallTime) {
+      calendar.setTimeInMillis(wallTime);
+      char[] chars = new char[8];
+      putTwoDigits(chars, 0, calendar.get(Calendar.HOUR_OF_DAY));
+      chars[2] = ':';
+      putTwoDigits(chars, 3, calendar.get(Calendar.MINUTE));
+      chars[5] = ':';
+      putTwoDigits(chars, 6, calendar.get(Calendar.SECOND));
+      return new String(chars);
+    }
+
+    private void putTwoDigits(char[] chars, int offset, int value) {
+      chars[offset] = (char) ('0' + value / 10);
+      chars[offset + 1] = (char) ('0' + value % 10);
     }
 
     private String getTypeName(int type) {
@@ -334,24 +440,6 @@ public class RecyclerAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
       return String.format(Locale.ROOT, "%d", type);
     }
 
-    // Converts a two-character ISO country code into a flag emoji.
-    private String getFlag(@Nullable String countryCode) {
-      if (countryCode == null) {
-        return "";
-      }
-      // Flag emoji consist of two "regional indicator symbol letters", which are
-      // Unicode characters that correspond to the English alphabet and are arranged in the same
-      // order.  Therefore, to convert from a country code to a flag, we simply need to apply an
-      // offset to each character, shifting it from the normal A-Z range into the region indicator
-      // symbol letter range.
-      int alphaBase = 'A';  // Start of alphabetic country code characters.
-      int flagBase = 0x1F1E6;  // Start of regional indicator symbol letters.
-      int offset = flagBase - alphaBase;
-      int firstHalf = Character.codePointAt(countryCode, 0) + offset;
-      int secondHalf = Character.codePointAt(countryCode, 1) + offset;
-      return new String(Character.toChars(firstHalf)) + new String(Character.toChars(secondHalf));
-    }
-
     // Convert an FQDN like "www.example.co.uk." to an eTLD + 1 like "example.co.uk".
     private String getETldPlus1(String fqdn) {
       try {
@@ -380,52 +468,159 @@ public class RecyclerAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
       }
     }
 
-    // Return a two-letter ISO country code, or null if that fails.
-    private @Nullable String getCountryCode(InetAddress address) {
-      activateCountryMap();
-      if (countryMap == null) {
+    // Return the country of this address, or null if that fails.
+    private @Nullable CountryCache.Country getCountry(InetAddress address) {
+      @Nullable CountryCache cache = getCountryCache();
+      if (cache == null) {
         return null;
       }
-      return countryMap.getCountryCode(address);
+      return cache.get(address);
     }
 
-    private String makeAddressPair(@Nullable String countryCode, String ipAddress) {
-      if (countryCode == null) {
+    private String makeAddressPair(@Nullable CountryCache.Country country, String ipAddress) {
+      if (country == null) {
         return ipAddress;
       }
-      return String.format("%s (%s)", countryCode, ipAddress);
+      return String.format("%s (%s)", country.code, ipAddress);
     }
   }
 
-  // Store of transactions, used for appending and lookup by index.
-  private List<Transaction> transactions = new ArrayList<>();
+  // The displayed history, or null if history is disabled.
+  private @Nullable HistoryStore history = null;
+  // The range of HistoryStore indices that is displayed, as of the last refresh().  The newest
+  // transaction, at index end - 1, is shown at position 1, just below the controls.
+  private long start = 0;
+  private long end = 0;
+  // Recently used pages of rows, by page number.  Rows that weren't available when the page was
+  // loaded are null.
+  private final Map<Long, Transaction[]> pages =
+      new LinkedHashMap<Long, Transaction[]>(MAX_PAGES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Transaction[]> eldest) {
+          return size() > MAX_PAGES;
+        }
+      };
+  // Pages that are being loaded.
+  private final Set<Long> loadingPages = new HashSet<>();
+  // Indices of the rows that are expanded to show details.
+  private final Set<Long> expandedRows = new HashSet<>();
 
   /**
-   * Replace the current list of transactions with these.
-   * A null argument is treated as an empty list.
+   * Show this history, which is loaded in the background if necessary.  A null argument hides the
+   * history.
    */
-  public void reset(Queue<app.intra.net.doh.Transaction> transactions) {
-    this.transactions.clear();
-    if (transactions != null) {
-      for (app.intra.net.doh.Transaction t : transactions) {
-        this.transactions.add(new Transaction(t));
-      }
+  public void reset(@Nullable HistoryStore history) {
+    this.history = history;
+    start = 0;
+    end = 0;
+    pages.clear();
+    loadingPages.clear();
+    expandedRows.clear();
+    if (history != null) {
+      LOADER.execute(() -> {
+        try {
+          history.load();
+        } catch (IOException e) {
+          LogWrapper.logException(e);
+        }
+        mainHandler.post(this::refresh);
+      });
     } else {
-      countryMap = null;
+      releaseCountryCache();
     }
     this.notifyDataSetChanged();
   }
 
   /**
-   * Add a new transaction to the top of the displayed list
+   * Show any changes to the history since the last refresh: new transactions are added to the top
+   * of the displayed list, and deleted ones are removed from the bottom.
    */
-  public void add(app.intra.net.doh.Transaction transaction) {
-    transactions.add(new Transaction(transaction));
-    this.notifyItemInserted(1);
+  public void refresh() {
+    if (history == null) {
+      return;
+    }
+    long newStart = history.getStart();
+    long newEnd = history.getEnd();
+    if (newStart > end || newEnd < end || newStart < start) {
+      // The history was cleared, or this is the first refresh since it was loaded.
+      pages.clear();
+      loadingPages.clear();
+      expandedRows.clear();
+      start = newStart;
+      end = newEnd;
+      this.notifyDataSetChanged();
+      return;
+    }
+    if (newEnd > end) {
+      long oldEnd = end;
+      end = newEnd;
+      this.notifyItemRangeInserted(1, (int) (newEnd - oldEnd));
+    }
+    if (newStart > start) {
+      // Indices [start, newStart) are displayed at the end of the list.
+      long oldStart = start;
+      start = newStart;
+      this.notifyItemRangeRemoved((int) (end - newStart + 1), (int) (newStart - oldStart));
+    }
   }
 
-  private Transaction getItem(int position) {
-    return transactions.get(transactions.size() - position);
+  // Returns the row at |position|, or null if it hasn't been loaded yet, in which case it will be
+  // loaded in the background.
+  private @Nullable Transaction getItem(int position) {
+    long index = end - position;
+    final long page = index / HistoryStore.PAGE_SIZE;
+    @Nullable Transaction[] rows = pages.get(page);
+    if (rows != null && rows[(int) (index % HistoryStore.PAGE_SIZE)] != null) {
+      return rows[(int) (index % HistoryStore.PAGE_SIZE)];
+    }
+    // Either the page isn't loaded, or this row was added after the page was loaded.
+    if (history != null && loadingPages.add(page)) {
+      final HistoryStore source = history;
+      LOADER.execute(() -> loadPage(source, page));
+    }
+    return null;
+  }
+
+  // Runs on the loader thread.
+  private void loadPage(HistoryStore source, long page) {
+    final Transaction[] rows = new Transaction[HistoryStore.PAGE_SIZE];
+    try {
+      HistoryStore.Record[] records = source.readPage(page);
+      for (int i = 0; i < rows.length; ++i) {
+        if (records[i] != null) {
+          rows[i] = new Transaction(page * HistoryStore.PAGE_SIZE + i, records[i]);
+        }
+      }
+    } catch (IOException e) {
+      LogWrapper.logException(e);
+    }
+    mainHandler.post(() -> onPageLoaded(source, page, rows));
+  }
+
+  private void onPageLoaded(HistoryStore source, long page, Transaction[] rows) {
+    if (source != history || !loadingPages.remove(page)) {
+      // The adapter was reset while this page was loading.
+      return;
+    }
+    @Nullable Transaction[] previous = pages.get(page);
+    long first = Long.MAX_VALUE;
+    long last = -1;
+    for (int i = 0; i < rows.length; ++i) {
+      long index = page * HistoryStore.PAGE_SIZE + i;
+      if (previous != null && previous[i] != null) {
+        // Keep the existing row, which may already have computed its details.
+        rows[i] = previous[i];
+      } else if (rows[i] != null && index >= start && index < end) {
+        first = Math.min(first, index);
+        last = Math.max(last, index);
+      }
+    }
+    pages.put(page, rows);
+    // Refresh the newly loaded rows.  Rows that failed to load are left blank, rather than
+    // retried repeatedly.
+    if (last >= 0) {
+      this.notifyItemRangeChanged((int) (end - last), (int) (last - first + 1), LOADED_PAYLOAD);
+    }
   }
 
   @Override
@@ -467,7 +662,7 @@ public class RecyclerAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolde
 
   @Override
   public int getItemCount() {
-    return transactions.size() + 1;
+    return (int) (end - start) + 1;
   }
 
   @Override
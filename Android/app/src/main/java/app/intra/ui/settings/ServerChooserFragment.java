@@ -34,10 +34,13 @@ import android.widget.TextView;
 import androidx.appcompat.app.AlertDialog;
 import androidx.preference.PreferenceDialogFragmentCompat;
 import app.intra.R;
+import app.intra.net.doh.ServerScore;
 import app.intra.sys.PersistentState;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * User interface for a the server URL selection.
@@ -62,6 +65,9 @@ public class ServerChooserFragment extends PreferenceDialogFragmentCompat
     private String[] descriptions = null;
     private String[] websiteLinks = null;
 
+    // Results of the latest server benchmark, by URL.
+    private final Map<String, ServerScore> scores = new HashMap<>();
+
     static ServerChooserFragment newInstance(String key) {
         final ServerChooserFragment fragment = new ServerChooserFragment();
         final Bundle bundle = new Bundle(1);
@@ -146,7 +152,12 @@ public class ServerChooserFragment extends PreferenceDialogFragmentCompat
     }
 
     private void onBuiltinServerSelected(int i) {
-        description.setText(descriptions[i]);
+        ServerScore score = scores.get(urls[i]);
+        if (score == null) {
+            description.setText(descriptions[i]);
+        } else {
+            description.setText(descriptions[i] + "\n\n" + describeScore(score));
+        }
 
         // Update website text with a link pointing to the correct website.
         // The string resource contains a dummy hyperlink that must be replaced with a new link to
@@ -170,6 +181,14 @@ public class ServerChooserFragment extends PreferenceDialogFragmentCompat
         serverWebsite.setText(websiteMessage);
     }
 
+    private String describeScore(ServerScore score) {
+        if (!score.hasSucceeded()) {
+            return getString(R.string.server_benchmark_failed);
+        }
+        return getString(R.string.server_benchmark, score.medianMs, score.tailMs, score.failures,
+            score.successes + score.failures);
+    }
+
     @Override
     public void onNothingSelected(AdapterView<?> adapterView) {
         updateUI();
@@ -184,6 +203,10 @@ public class ServerChooserFragment extends PreferenceDialogFragmentCompat
         urls = getResources().getStringArray(R.array.urls);
         descriptions = getResources().getStringArray(R.array.descriptions);
         websiteLinks = getResources().getStringArray(R.array.server_websites);
+        scores.clear();
+        for (ServerScore score : PersistentState.getServerRanking(getContext())) {
+            scores.put(score.url, score);
+        }
 
         buttons = view.findViewById(R.id.pref_server_radio_group);
         spinner = view.findViewById(R.id.builtin_server_spinner);
@@ -16,6 +16,7 @@ limitations under the License.
 package app.intra.net.dns;
 
 import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import org.junit.Test;
 
 import java.net.ProtocolException;
@@ -92,6 +93,17 @@ public class DnsPacketTest {
     assertEquals(1, p.getQueryType());
     assertEquals(1, p.getResponseAddresses().size());
     assertEquals("173.194.204.188", p.getResponseAddresses().get(0).getHostAddress());
+    assertEquals("173.194.204.188", p.getFirstResponseAddress().getHostAddress());
+
+    // Compression offsets are relative to the start of the packet, not the start of the buffer.
+    byte[] prefixed = new byte[data.length + 3];
+    System.arraycopy(data, 0, prefixed, 3, data.length);
+    ByteBuffer buffer = ByteBuffer.wrap(prefixed);
+    buffer.position(3);
+    DnsPacket q = new DnsPacket(buffer);
+    assertEquals(3, buffer.position());
+    assertEquals("mtalk.google.com.", q.getQueryName());
+    assertEquals("173.194.204.188", q.getFirstResponseAddress().getHostAddress());
   }
 
   @Test
@@ -137,6 +149,7 @@ public class DnsPacketTest {
     assertEquals("zzqubeqclggz.", p.getQueryName());
     assertEquals(28, p.getQueryType());
     assertEquals(0, p.getResponseAddresses().size());
+    assertNull(p.getFirstResponseAddress());
   }
 
   @Test
@@ -16,15 +16,23 @@ limitations under the License.
 package app.intra.net.doh;
 
 import static org.junit.Assert.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.Test;
 
 public class RaceTest {
 
+  private static final Prober.Handle NOT_CANCELABLE = () -> {};
+
   private class SuccessProber extends Prober {
     @Override
-    public void probe(String url, Callback callback) {
-      new Thread(() -> callback.onCompleted(true)).start();
+    public Handle probe(String url, long timeoutMs, Callback callback) {
+      new Thread(() -> callback.onCompleted(true, 0)).start();
+      return NOT_CANCELABLE;
 
     }
   }
@@ -49,8 +57,9 @@ public class RaceTest {
 
   private class FailProber extends Prober {
     @Override
-    public void probe(String url, Callback callback) {
-      new Thread(() -> callback.onCompleted(false)).start();
+    public Handle probe(String url, long timeoutMs, Callback callback) {
+      new Thread(() -> callback.onCompleted(false, 0)).start();
+      return NOT_CANCELABLE;
     }
   }
 
@@ -71,11 +80,12 @@ public class RaceTest {
 
   private class HalfProber extends Prober {
     @Override
-    public void probe(String url, Callback callback) {
+    public Handle probe(String url, long timeoutMs, Callback callback) {
       int i = Integer.parseInt(url);
       // Even-number servers succeed.
       boolean succeed = (i % 2 == 0);
-      new Thread(() -> callback.onCompleted(succeed)).start();
+      new Thread(() -> callback.onCompleted(succeed, 0)).start();
+      return NOT_CANCELABLE;
     }
   }
 
@@ -97,5 +107,186 @@ public class RaceTest {
     done.acquire();
   }
 
-}
+  // Server i answers in 10 * (i + 1) ms on every round, except that odd-numbered servers fail
+  // every other probe.
+  private class LatencyProber extends Prober {
+    final AtomicInteger[] counts;
+    final AtomicInteger[] inFlight;
+    // Set if two probes of the same server overlapped.
+    volatile boolean overlapped = false;
+
+    LatencyProber(int n) {
+      counts = new AtomicInteger[n];
+      inFlight = new AtomicInteger[n];
+      for (int i = 0; i < n; ++i) {
+        counts[i] = new AtomicInteger();
+        inFlight[i] = new AtomicInteger();
+      }
+    }
+
+    @Override
+    public Handle probe(String url, long timeoutMs, Callback callback) {
+      int i = Integer.parseInt(url);
+      if (inFlight[i].incrementAndGet() > 1) {
+        overlapped = true;
+      }
+      int round = counts[i].getAndIncrement();
+      boolean succeed = i % 2 == 0 || round % 2 == 0;
+      new Thread(() -> {
+        inFlight[i].decrementAndGet();
+        callback.onCompleted(succeed, 10 * (i + 1));
+      }).start();
+      return NOT_CANCELABLE;
+    }
+  }
+
+  private List<ServerScore> benchmark(Prober prober, String[] urls, int rounds)
+      throws InterruptedException {
+    Semaphore done = new Semaphore(0);
+    AtomicReference<List<ServerScore>> result = new AtomicReference<>();
+    Race.benchmark(prober, urls, rounds, ranking -> {
+      assertTrue(result.compareAndSet(null, ranking));
+      done.release();
+    });
+    done.acquire();
+    return result.get();
+  }
+
+  @Test
+  public void Benchmark() throws Exception {
+    final int N = 4;
+    final int ROUNDS = 4;
+    String[] urls = new String[N];
+    for (int i = 0; i < N; ++i) {
+      urls[i] = String.format("%d", i);
+    }
+    LatencyProber prober = new LatencyProber(N);
+    List<ServerScore> ranking = benchmark(prober, urls, ROUNDS);
+    for (int i = 0; i < N; ++i) {
+      assertEquals(ROUNDS, prober.counts[i].get());
+    }
+    assertFalse(prober.overlapped);
+
+    // Even-numbered servers never fail, so they rank first, fastest first.
+    assertEquals(N, ranking.size());
+    assertEquals("0", ranking.get(0).url);
+    assertEquals("2", ranking.get(1).url);
+    assertEquals("1", ranking.get(2).url);
+    assertEquals("3", ranking.get(3).url);
+    assertEquals(30, ranking.get(1).medianMs);
+    assertEquals(2, ranking.get(2).failures);
+    assertEquals(2, ranking.get(2).successes);
+  }
+
+  @Test
+  public void BenchmarkAllFail() throws Exception {
+    String[] urls = {"server0", "server1"};
+    List<ServerScore> ranking = benchmark(new FailProber(), urls, 3);
+    assertEquals(2, ranking.size());
+    for (ServerScore score : ranking) {
+      assertFalse(score.hasSucceeded());
+      // A server that never answers is given up on.
+      assertEquals(Race.MAX_FAILURES_WITHOUT_ANSWER, score.failures);
+    }
+  }
+
+  @Test
+  public void BenchmarkSkipsFailedServer() throws Exception {
+    // Server 0 always answers, and server 1 never does.
+    final AtomicInteger[] counts = {new AtomicInteger(), new AtomicInteger()};
+    Prober prober = new Prober() {
+      @Override
+      public Handle probe(String url, long timeoutMs, Callback callback) {
+        int i = Integer.parseInt(url);
+        counts[i].incrementAndGet();
+        new Thread(() -> callback.onCompleted(i == 0, 10)).start();
+        return NOT_CANCELABLE;
+      }
+    };
+    List<ServerScore> ranking = benchmark(prober, new String[]{"0", "1"}, 3);
+    assertEquals(3, counts[0].get());
+    assertEquals(Race.MAX_FAILURES_WITHOUT_ANSWER, counts[1].get());
+    assertEquals("0", ranking.get(0).url);
+    assertFalse(ranking.get(1).hasSucceeded());
+  }
+
+  @Test
+  public void BenchmarkRetriesFirstFailure() throws Exception {
+    // The server's first probe fails, as on a cold start, and the rest succeed.
+    final AtomicInteger count = new AtomicInteger();
+    Prober prober = new Prober() {
+      @Override
+      public Handle probe(String url, long timeoutMs, Callback callback) {
+        boolean succeed = count.incrementAndGet() > 1;
+        new Thread(() -> callback.onCompleted(succeed, 10)).start();
+        return NOT_CANCELABLE;
+      }
+    };
+    List<ServerScore> ranking = benchmark(prober, new String[]{"0"}, 3);
+    assertEquals(3, count.get());
+    assertEquals(1, ranking.get(0).failures);
+  }
+
+  @Test
+  public void BenchmarkEmpty() throws Exception {
+    assertTrue(benchmark(new FailProber(), new String[0], 3).isEmpty());
+  }
+
+  // Server "0" succeeds immediately.  Other servers never complete unless canceled.
+  private class HangingProber extends Prober {
+    final List<AtomicBoolean> canceled = new CopyOnWriteArrayList<>();
+
+    @Override
+    public Handle probe(String url, long timeoutMs, Callback callback) {
+      if (url.equals("0")) {
+        new Thread(() -> callback.onCompleted(true, 0)).start();
+        return NOT_CANCELABLE;
+      }
+      AtomicBoolean flag = new AtomicBoolean(false);
+      canceled.add(flag);
+      return () -> flag.set(true);
+    }
+
+    boolean allCanceled() {
+      for (AtomicBoolean flag : canceled) {
+        if (!flag.get()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  @Test
+  public void CancelRace() {
+    HangingProber prober = new HangingProber();
+    Prober.Handle race = Race.start(prober, new String[]{"1", "2", "3"}, index -> fail());
+    assertEquals(3, prober.canceled.size());
+    assertFalse(prober.allCanceled());
+    race.cancel();
+    assertTrue(prober.allCanceled());
+  }
+
+  @Test
+  public void WinnerCancelsRace() throws Exception {
+    HangingProber prober = new HangingProber();
+    Semaphore done = new Semaphore(0);
+    Race.start(prober, new String[]{"1", "0", "2"}, index -> {
+      assertEquals(1, index);
+      done.release();
+    });
+    done.acquire();
+    assertEquals(2, prober.canceled.size());
+    assertTrue(prober.allCanceled());
+  }
 
+  @Test
+  public void CancelBenchmark() {
+    HangingProber prober = new HangingProber();
+    Prober.Handle benchmark = Race.benchmark(prober, new String[]{"1", "2"}, 3,
+        ranking -> fail());
+    assertEquals(2, prober.canceled.size());
+    benchmark.cancel();
+    assertTrue(prober.allCanceled());
+  }
+}
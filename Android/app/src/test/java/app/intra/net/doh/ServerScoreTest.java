@@ -0,0 +1,83 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.doh;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class ServerScoreTest {
+
+  @Test
+  public void testPercentiles() {
+    ServerScore score = ServerScore.fromSamples("a", new long[]{50, 10, 40, 20, 30}, 1);
+    assertEquals(5, score.successes);
+    assertEquals(1, score.failures);
+    assertEquals(30, score.medianMs);
+    assertEquals(50, score.tailMs);
+
+    score = ServerScore.fromSamples("a",
+        new long[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20}, 0);
+    assertEquals(10, score.medianMs);
+    assertEquals(18, score.tailMs);
+    assertEquals(0, score.getFailureRate(), 0);
+  }
+
+  @Test
+  public void testNoSuccess() {
+    ServerScore score = ServerScore.fromSamples("a", new long[0], 3);
+    assertFalse(score.hasSucceeded());
+    assertEquals(-1, score.medianMs);
+    assertEquals(1, score.getFailureRate(), 0);
+  }
+
+  @Test
+  public void testOrder() {
+    ServerScore fast = ServerScore.fromSamples("fast", new long[]{20, 30, 40}, 0);
+    ServerScore slow = ServerScore.fromSamples("slow", new long[]{200, 300, 400}, 0);
+    ServerScore flaky = ServerScore.fromSamples("flaky", new long[]{10, 10}, 1);
+    ServerScore jittery = ServerScore.fromSamples("jittery", new long[]{20, 30, 4000}, 0);
+    ServerScore dead = ServerScore.fromSamples("dead", new long[0], 3);
+    List<ServerScore> ranking = new ArrayList<>();
+    Collections.addAll(ranking, dead, flaky, jittery, slow, fast);
+    Collections.sort(ranking);
+    // A failure costs more than the latency difference, and the tail breaks ties.
+    assertEquals("fast", ranking.get(0).url);
+    assertEquals("jittery", ranking.get(1).url);
+    assertEquals("slow", ranking.get(2).url);
+    assertEquals("flaky", ranking.get(3).url);
+    assertEquals("dead", ranking.get(4).url);
+  }
+
+  @Test
+  public void testEncode() {
+    ServerScore score = ServerScore.fromSamples("https://example.com/dns-query?a=1,2",
+        new long[]{10, 20, 30}, 2);
+    ServerScore decoded = ServerScore.decode(score.encode());
+    assertNotNull(decoded);
+    assertEquals(score.url, decoded.url);
+    assertEquals(score.successes, decoded.successes);
+    assertEquals(score.failures, decoded.failures);
+    assertEquals(score.medianMs, decoded.medianMs);
+    assertEquals(score.tailMs, decoded.tailMs);
+
+    assertNull(ServerScore.decode("garbage"));
+    assertNull(ServerScore.decode("1,x,3,4,https://example.com/"));
+  }
+}
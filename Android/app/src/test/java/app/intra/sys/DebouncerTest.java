@@ -0,0 +1,105 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.sys;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DebouncerTest {
+  private ScheduledExecutorService executor;
+  private AtomicInteger runs;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newSingleThreadScheduledExecutor();
+    runs = new AtomicInteger();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testBurst() throws Exception {
+    Debouncer debouncer = new Debouncer(executor, 100, 10000, runs::incrementAndGet);
+    for (int i = 0; i < 10; ++i) {
+      debouncer.trigger();
+      Thread.sleep(10);
+    }
+    assertEquals(0, runs.get());
+    Thread.sleep(300);
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void testSeparateBursts() throws Exception {
+    Debouncer debouncer = new Debouncer(executor, 50, 10000, runs::incrementAndGet);
+    debouncer.trigger();
+    Thread.sleep(300);
+    assertEquals(1, runs.get());
+    debouncer.trigger();
+    debouncer.trigger();
+    Thread.sleep(300);
+    assertEquals(2, runs.get());
+  }
+
+  @Test
+  public void testMaxDelay() throws Exception {
+    // Constant triggering would postpone the action forever without a maximum delay.
+    Debouncer debouncer = new Debouncer(executor, 100, 200, runs::incrementAndGet);
+    long start = System.currentTimeMillis();
+    while (System.currentTimeMillis() - start < 700) {
+      debouncer.trigger();
+      Thread.sleep(10);
+    }
+    int during = runs.get();
+    assertTrue(during >= 2);
+    Thread.sleep(300);
+    assertEquals(during + 1, runs.get());
+  }
+
+  @Test
+  public void testTriggerDuringAction() throws Exception {
+    final Debouncer[] debouncer = new Debouncer[1];
+    debouncer[0] = new Debouncer(executor, 50, 10000, () -> {
+      if (runs.incrementAndGet() == 1) {
+        // A change that arrives while the action is running must not be lost.
+        debouncer[0].trigger();
+      }
+    });
+    debouncer[0].trigger();
+    Thread.sleep(400);
+    assertEquals(2, runs.get());
+  }
+
+  @Test
+  public void testTriggerAfterShutdown() throws Exception {
+    Debouncer debouncer = new Debouncer(executor, 50, 10000, runs::incrementAndGet);
+    executor.shutdownNow();
+    // Must not throw.
+    debouncer.trigger();
+    debouncer.trigger();
+    Thread.sleep(100);
+    assertEquals(0, runs.get());
+  }
+}
@@ -0,0 +1,271 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.sys;
+
+import static org.junit.Assert.*;
+
+import app.intra.net.dns.DnsPacket;
+import app.intra.net.doh.Transaction;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HistoryStoreTest {
+
+  private static final byte[] RESPONSE = {
+      0x12, 0x34,  // [0-1]   query ID
+      -127, -128,  // [2-3]   flags: QR, RD, RA
+      0, 1,        // [4-5]   QDCOUNT (number of queries) = 1
+      0, 1,        // [6-7]   ANCOUNT (number of answers) = 1
+      0, 0,        // [8-9]   NSCOUNT (number of authoritative answers) = 0
+      0, 0,        // [10-11] ARCOUNT (number of additional records) = 0
+      // Start of first query
+      7, 'e', 'x', 'a', 'm', 'p', 'l', 'e',
+      3, 'c', 'o', 'm',
+      0,  // null terminator of FQDN (DNS root)
+      0, 1,  // QTYPE = A
+      0, 1,  // QCLASS = IN (Internet)
+      // Answer
+      -64, 12,     // Pointer to the query name
+      0, 1,        // TYPE = A
+      0, 1,        // CLASS = IN
+      0, 0, 1, 0,  // TTL
+      0, 4,        // RDLENGTH
+      93, -72, -40, 34
+  };
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private DnsPacket query;
+  private File dir;
+
+  @Before
+  public void setUp() throws ProtocolException {
+    query = new DnsPacket(RESPONSE);
+    dir = new File(folder.getRoot(), "history");
+  }
+
+  // Makes a transaction that can be identified by its wall time.
+  private Transaction transaction(long wallTime, Transaction.Status status) {
+    Transaction transaction = new Transaction(query, 1000);
+    transaction.responseTime = 1150;
+    transaction.responseWallTime = wallTime;
+    transaction.status = status;
+    transaction.response = RESPONSE;
+    transaction.serverIp = "192.0.2.1";
+    return transaction;
+  }
+
+  private static HistoryStore open(File dir, int segmentBytes, int maxSegments)
+      throws IOException {
+    HistoryStore store = new HistoryStore(dir, segmentBytes, maxSegments);
+    store.setEnabled(true);
+    store.load();
+    return store;
+  }
+
+  private void append(HistoryStore store, long first, long end) {
+    for (long i = first; i < end; ++i) {
+      store.append(transaction(i, Transaction.Status.SEND_FAIL));
+    }
+  }
+
+  // Checks that the store holds records [start, end), identified by wall time.
+  private static void check(HistoryStore store, long start, long end) throws IOException {
+    assertEquals(start, store.getStart());
+    assertEquals(end, store.getEnd());
+    for (long page = 0; page <= end / HistoryStore.PAGE_SIZE; ++page) {
+      HistoryStore.Record[] records = store.readPage(page);
+      for (int i = 0; i < HistoryStore.PAGE_SIZE; ++i) {
+        long index = page * HistoryStore.PAGE_SIZE + i;
+        if (index >= start && index < end) {
+          assertEquals(index, records[i].wallTime);
+        } else {
+          assertNull(records[i]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testRecord() throws IOException {
+    HistoryStore store = open(dir, 1 << 20, 2);
+    store.append(transaction(1, Transaction.Status.COMPLETE));
+    Transaction bad = transaction(2, Transaction.Status.COMPLETE);
+    bad.response = new byte[]{1, 2, 3};
+    store.append(bad);
+    store.append(transaction(3, Transaction.Status.CANCELED));
+
+    // The same records are read before and after they are written.
+    for (int pass = 0; pass < 2; ++pass) {
+      HistoryStore.Record[] records = store.readPage(0);
+      HistoryStore.Record record = records[0];
+      assertEquals(1, record.wallTime);
+      assertEquals(150, record.latencyMs);
+      assertEquals(1, record.type);
+      assertEquals(Transaction.Status.COMPLETE, record.status);
+      assertArrayEquals(new byte[]{93, -72, -40, 34}, record.address);
+      assertEquals("example.com.", record.name);
+      assertEquals("192.0.2.1", record.serverIp);
+
+      assertEquals(Transaction.Status.BAD_RESPONSE, records[1].status);
+      assertNull(records[1].address);
+      assertEquals(Transaction.Status.CANCELED, records[2].status);
+      assertNull(records[2].address);
+      assertNull(records[3]);
+      store.flush();
+    }
+  }
+
+  @Test
+  public void testDisabled() throws IOException {
+    HistoryStore store = open(dir, 1 << 20, 2);
+    store.setEnabled(false);
+    assertFalse(store.append(transaction(1, Transaction.Status.COMPLETE)));
+    check(store, 0, 0);
+  }
+
+  @Test
+  public void testNotLoaded() throws IOException {
+    HistoryStore store = new HistoryStore(dir, 1 << 20, 2);
+    store.setEnabled(true);
+    assertTrue(store.append(transaction(1, Transaction.Status.COMPLETE)));
+    assertFalse(store.append(transaction(2, Transaction.Status.COMPLETE)));
+    // Indices aren't known until the history has been loaded.
+    assertEquals(0, store.getEnd());
+    store.flush();
+    assertEquals(2, store.getEnd());
+  }
+
+  @Test
+  public void testReload() throws IOException {
+    HistoryStore store = open(dir, 1 << 20, 2);
+    append(store, 0, 100);
+    store.flush();
+    append(store, 100, 150);
+    store.flush();
+    check(open(dir, 1 << 20, 2), 0, 150);
+  }
+
+  @Test
+  public void testRotation() throws IOException {
+    // About 4 pages per segment.
+    HistoryStore store = open(dir, 4000, 3);
+    append(store, 0, 1000);
+    store.flush();
+    long start = store.getStart();
+    assertTrue(start > 0);
+    assertEquals(0, start % HistoryStore.PAGE_SIZE);
+    assertTrue(1000 - start <= 3 * 6 * HistoryStore.PAGE_SIZE);
+    check(store, start, 1000);
+    assertEquals(3, dir.list().length);
+    check(open(dir, 4000, 3), start, 1000);
+  }
+
+  @Test
+  public void testTruncatedRecord() throws IOException {
+    HistoryStore store = open(dir, 1 << 20, 2);
+    append(store, 0, 10);
+    store.flush();
+    File segment = dir.listFiles()[0];
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    file.setLength(file.length() - 3);
+    file.close();
+
+    store = open(dir, 1 << 20, 2);
+    check(store, 0, 9);
+    // New records follow the last complete one.
+    append(store, 9, 12);
+    store.flush();
+    check(open(dir, 1 << 20, 2), 0, 12);
+  }
+
+  @Test
+  public void testUnrecognized() throws IOException {
+    assertTrue(dir.mkdirs());
+    File junk = new File(dir, "0.log");
+    RandomAccessFile file = new RandomAccessFile(junk, "rw");
+    file.writeInt(12345678);
+    file.close();
+    HistoryStore store = open(dir, 1 << 20, 2);
+    assertFalse(junk.exists());
+    check(store, 0, 0);
+  }
+
+  @Test
+  public void testClear() throws IOException {
+    HistoryStore store = open(dir, 1 << 20, 2);
+    append(store, 0, 10);
+    store.flush();
+    append(store, 10, 20);
+    store.clear();
+    // Indices are not reused.
+    int next = HistoryStore.PAGE_SIZE;
+    check(store, next, next);
+    append(store, next, next + 5);
+    check(store, next, next + 5);
+    store.flush();
+    check(open(dir, 1 << 20, 2), next, next + 5);
+  }
+
+  @Test
+  public void testConcurrentReaders() throws Exception {
+    final HistoryStore store = open(dir, 16 * 1024, 4);
+    final int n = 20000;
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < n; i += 100) {
+            append(store, i, i + 100);
+            if (i % 300 == 0) {
+              store.flush();
+            }
+          }
+          store.flush();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    writer.start();
+    while (writer.isAlive()) {
+      // Every record in range must be present, whether it is on disk or still pending.  Records
+      // may be deleted by rotation during the read, but the start never decreases.
+      long end = store.getEnd();
+      if (end == 0) {
+        continue;
+      }
+      long page = (end - 1) / HistoryStore.PAGE_SIZE;
+      HistoryStore.Record[] records = store.readPage(page);
+      long start = store.getStart();
+      for (int i = 0; i < HistoryStore.PAGE_SIZE; ++i) {
+        long index = page * HistoryStore.PAGE_SIZE + i;
+        if (index >= start && index < end) {
+          assertEquals(index, records[i].wallTime);
+        }
+      }
+    }
+    writer.join();
+    check(store, store.getStart(), n);
+  }
+}
@@ -0,0 +1,182 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.sys;
+
+import static org.junit.Assert.*;
+
+import app.intra.net.dns.DnsPacket;
+import app.intra.net.doh.Transaction;
+import java.net.ProtocolException;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueryLogTest {
+
+  private DnsPacket query;
+  private QueryLog log;
+
+  @Before
+  public void setUp() throws ProtocolException {
+    query = new DnsPacket(new byte[]{
+        -107, -6,  // [0-1]   query ID
+        1, 0,      // [2-3]   flags, RD=1
+        0, 1,      // [4-5]   QDCOUNT (number of queries) = 1
+        0, 0,      // [6-7]   ANCOUNT (number of answers) = 0
+        0, 0,      // [8-9]   NSCOUNT (number of authoritative answers) = 0
+        0, 0,      // [10-11] ARCOUNT (number of additional records) = 0
+        // Start of first query
+        7, 'e', 'x', 'a', 'm', 'p', 'l', 'e',
+        3, 'c', 'o', 'm',
+        0,  // null terminator of FQDN (DNS root)
+        0, 1,  // QTYPE = A
+        0, 1   // QCLASS = IN (Internet)
+    });
+    log = new QueryLog();
+  }
+
+  private Transaction record(long time) {
+    Transaction transaction = new Transaction(query, time);
+    log.record(transaction);
+    return transaction;
+  }
+
+  // The start of the latest interval in the last call to activity().
+  private long latest;
+
+  private int[] activity() {
+    final AtomicReference<int[]> result = new AtomicReference<>();
+    log.showActivity(new ActivityReceiver() {
+      @Override
+      public void receive(long latest, int[] counts) {
+        QueryLogTest.this.latest = latest;
+        result.set(counts.clone());
+      }
+    });
+    return result.get();
+  }
+
+  private static int sum(int[] counts) {
+    int sum = 0;
+    for (int count : counts) {
+      sum += count;
+    }
+    return sum;
+  }
+
+  @Test
+  public void testEmpty() {
+    assertEquals(0, log.countQueriesSince(0));
+    int[] activity = activity();
+    assertEquals(ActivityReceiver.NUM_BUCKETS, activity.length);
+    assertEquals(0, sum(activity));
+  }
+
+  @Test
+  public void testCountQueriesSince() {
+    for (long t = 1000; t <= 10000; t += 1000) {
+      record(t);
+    }
+    assertEquals(10, log.countQueriesSince(0));
+    assertEquals(10, log.countQueriesSince(1000));
+    // Queries are counted to within ActivityReceiver.RESOLUTION_MS.
+    assertEquals(10, log.countQueriesSince(1099));
+    assertEquals(9, log.countQueriesSince(1100));
+    assertEquals(1, log.countQueriesSince(10000));
+    assertEquals(0, log.countQueriesSince(10100));
+  }
+
+  @Test
+  public void testHistogram() {
+    record(1000);
+    record(1050);
+    record(1150);
+    record(2099);
+    int[] activity = activity();
+    assertEquals(2000, latest);
+    assertEquals(1, activity[0]);
+    assertEquals(1, activity[9]);
+    assertEquals(2, activity[10]);
+    assertEquals(4, sum(activity));
+  }
+
+  @Test
+  public void testActivityExpires() {
+    record(1000);
+    record(2000);
+    record(61001);
+    // The first query is more than a minute older than the latest one.
+    int[] activity = activity();
+    assertEquals(61000, latest);
+    assertEquals(1, activity[0]);
+    assertEquals(1, activity[590]);
+    assertEquals(2, sum(activity));
+    assertEquals(2, log.countQueriesSince(0));
+  }
+
+  @Test
+  public void testOutOfOrder() {
+    record(61000);
+    // Queries that are recorded late are counted if they are within the last minute.
+    record(30000);
+    record(1000);
+    assertEquals(2, log.countQueriesSince(0));
+    assertEquals(2, sum(activity()));
+    assertEquals(61000, latest);
+  }
+
+  @Test
+  public void testHighRate() {
+    // 10,000 QPS for 10 seconds.
+    for (int i = 0; i < 100000; ++i) {
+      record(i / 10);
+    }
+    assertEquals(100000, log.countQueriesSince(0));
+    assertEquals(50000, log.countQueriesSince(5000));
+    int[] activity = activity();
+    assertEquals(9900, latest);
+    assertEquals(1000, activity[0]);
+    assertEquals(1000, activity[99]);
+    assertEquals(0, activity[100]);
+  }
+
+  @Test
+  public void testConcurrentReaders() throws InterruptedException {
+    // Four minutes at 1000 QPS.
+    final int n = 4 * 60 * 1000;
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < n; ++i) {
+          record(i);
+        }
+      }
+    };
+    writer.start();
+    while (writer.isAlive()) {
+      int[] activity = activity();
+      for (int i = 0; i < activity.length; ++i) {
+        if (latest - i * ActivityReceiver.RESOLUTION_MS < 0) {
+          assertEquals(0, activity[i]);
+        } else {
+          assertTrue(activity[i] <= 100);
+        }
+      }
+    }
+    writer.join();
+    assertEquals(60 * 1000, log.countQueriesSince(0));
+  }
+}
@@ -0,0 +1,216 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.sys;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VpnLifecycleTest {
+  // Records the operations that ran, and optionally blocks in the first one.
+  private static class FakeActions implements VpnLifecycle.Actions {
+    final List<String> ops = new ArrayList<>();
+    boolean startSucceeds = true;
+    Runnable onStart = null;
+    CountDownLatch entered = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(0);
+
+    private synchronized void record(String op) {
+      ops.add(op);
+    }
+
+    synchronized List<String> getOps() {
+      return new ArrayList<>(ops);
+    }
+
+    private void block() {
+      entered.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public boolean start() {
+      record("start");
+      if (onStart != null) {
+        onStart.run();
+      }
+      block();
+      return startSucceeds;
+    }
+
+    @Override
+    public void restart() {
+      record("restart");
+      block();
+    }
+
+    @Override
+    public void updateServer() {
+      record("update");
+      block();
+    }
+
+    @Override
+    public void stop() {
+      record("stop");
+      block();
+    }
+  }
+
+  private ExecutorService executor;
+  private FakeActions actions;
+  private VpnLifecycle lifecycle;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newSingleThreadExecutor();
+    actions = new FakeActions();
+    lifecycle = new VpnLifecycle(actions, executor);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  // Waits for all requests made so far to be handled.
+  private void settle() throws Exception {
+    try {
+      executor.submit(() -> {}).get(5, TimeUnit.SECONDS);
+    } catch (RejectedExecutionException e) {
+      // The lifecycle has stopped, and shut down the executor.
+      assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testStart() throws Exception {
+    // Nothing to restart or update before the VPN starts.
+    lifecycle.requestRestart();
+    lifecycle.requestUpdate();
+    settle();
+    assertEquals(VpnLifecycle.Phase.IDLE, lifecycle.getPhase());
+    assertTrue(actions.getOps().isEmpty());
+
+    lifecycle.requestStart();
+    lifecycle.requestUpdate();
+    settle();
+    assertEquals(VpnLifecycle.Phase.RUNNING, lifecycle.getPhase());
+    // The start uses the latest settings, so the update is redundant.
+    assertEquals(Arrays.asList("start"), actions.getOps());
+
+    // Starting again has no effect, but an update now applies.
+    lifecycle.requestStart();
+    lifecycle.requestUpdate();
+    settle();
+    assertEquals(Arrays.asList("start", "update"), actions.getOps());
+  }
+
+  @Test
+  public void testRestartStorm() throws Exception {
+    lifecycle.requestStart();
+    settle();
+
+    actions.entered = new CountDownLatch(1);
+    actions.release = new CountDownLatch(1);
+    lifecycle.requestRestart();
+    assertTrue(actions.entered.await(5, TimeUnit.SECONDS));
+    // These all arrive during the first restart, and collapse into one more.
+    for (int i = 0; i < 10; ++i) {
+      lifecycle.requestRestart();
+      lifecycle.requestUpdate();
+    }
+    actions.release.countDown();
+    settle();
+    assertEquals(Arrays.asList("start", "restart", "restart"), actions.getOps());
+    assertEquals(VpnLifecycle.Phase.RUNNING, lifecycle.getPhase());
+  }
+
+  @Test
+  public void testStopIsAsynchronousAndFinal() throws Exception {
+    lifecycle.requestStart();
+    settle();
+
+    actions.entered = new CountDownLatch(1);
+    actions.release = new CountDownLatch(1);
+    lifecycle.requestStop();
+    assertTrue(actions.entered.await(5, TimeUnit.SECONDS));
+    // Requests made while stopping are dropped, and don't wait for the stop to finish.
+    lifecycle.requestStop();
+    lifecycle.requestStart();
+    lifecycle.requestRestart();
+    actions.release.countDown();
+    settle();
+    assertEquals(VpnLifecycle.Phase.STOPPED, lifecycle.getPhase());
+    assertEquals(Arrays.asList("start", "stop"), actions.getOps());
+    assertTrue(executor.isShutdown());
+
+    lifecycle.requestStart();
+    assertEquals(Arrays.asList("start", "stop"), actions.getOps());
+  }
+
+  @Test
+  public void testStopTakesPriority() throws Exception {
+    actions.release = new CountDownLatch(1);
+    lifecycle.requestStart();
+    assertTrue(actions.entered.await(5, TimeUnit.SECONDS));
+    lifecycle.requestUpdate();
+    lifecycle.requestRestart();
+    lifecycle.requestStop();
+    actions.release.countDown();
+    settle();
+    assertEquals(Arrays.asList("start", "stop"), actions.getOps());
+  }
+
+  @Test
+  public void testFailedStart() throws Exception {
+    // A failed start requests a stop from the control thread, as IntraVpnService does.
+    actions.startSucceeds = false;
+    actions.onStart = lifecycle::requestStop;
+    lifecycle.requestStart();
+    settle();
+    assertEquals(VpnLifecycle.Phase.STOPPED, lifecycle.getPhase());
+    assertEquals(Arrays.asList("start", "stop"), actions.getOps());
+  }
+
+  @Test
+  public void testRetryStart() throws Exception {
+    actions.startSucceeds = false;
+    lifecycle.requestStart();
+    settle();
+    assertEquals(VpnLifecycle.Phase.IDLE, lifecycle.getPhase());
+
+    actions.startSucceeds = true;
+    lifecycle.requestStart();
+    settle();
+    assertEquals(VpnLifecycle.Phase.RUNNING, lifecycle.getPhase());
+    assertEquals(Arrays.asList("start", "start"), actions.getOps());
+  }
+}
@@ -0,0 +1,155 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.ui;
+
+import static org.junit.Assert.*;
+
+import app.intra.sys.ActivityReceiver;
+import org.junit.Test;
+
+public class ActivityCurveTest {
+
+  private static final int RESOLUTION_MS = ActivityCurve.RESOLUTION_MS;
+
+  private final ActivityCurve curve = new ActivityCurve();
+  private final int[] counts = new int[ActivityReceiver.NUM_BUCKETS];
+
+  // The curve computed from scratch for the events in |counts|, treating each event as if it
+  // occurred at the start of its interval.  The latest interval starts at |latest|.
+  private float[] expected(long now, long latest) {
+    float[] expected = new float[curve.values.length];
+    for (int b = 0; b < counts.length; ++b) {
+      float e = (now - (latest - b * RESOLUTION_MS)) / (float) RESOLUTION_MS;
+      float sigma = (float) Math.sqrt(e + 4);
+      for (int i = 0; i < expected.length; ++i) {
+        float z = (i - e) / sigma;
+        expected[i] += counts[b] * (float) Math.exp(-z * z) / sigma;
+      }
+    }
+    return expected;
+  }
+
+  private void assertCurve(long now, long latest) {
+    float[] expected = expected(now, latest);
+    float peak = 0;
+    for (float v : expected) {
+      peak = Math.max(peak, v);
+    }
+    for (int i = 0; i < expected.length; ++i) {
+      assertEquals("index " + i, expected[i], curve.values[i], 0.02f * peak);
+    }
+  }
+
+  private void receive(long now, long latest) {
+    curve.setNow(now);
+    curve.receive(latest, counts);
+  }
+
+  @Test
+  public void testEmpty() {
+    receive(10000, 10000);
+    assertTrue(curve.isEmpty());
+    for (float v : curve.values) {
+      assertEquals(0, v, 0);
+    }
+  }
+
+  @Test
+  public void testFirstFrame() {
+    counts[3] = 2;
+    counts[100] = 1;
+    counts[590] = 5;
+    receive(100000, 100000);
+    assertFalse(curve.isEmpty());
+    assertCurve(100000, 100000);
+  }
+
+  @Test
+  public void testAging() {
+    counts[1] = 1;
+    counts[2] = 3;
+    receive(100000, 100000);
+    // Age the curve by twenty seconds, one frame at a time, without any new events.
+    for (long now = 100000; now <= 120000; now += 16) {
+      receive(now, 100000);
+    }
+    assertCurve(120000, 100000);
+  }
+
+  @Test
+  public void testNewEvents() {
+    long latest = 100000;
+    receive(latest, latest);
+    // One event per interval, added as each interval goes by.
+    for (int i = 0; i < 200; ++i) {
+      latest += RESOLUTION_MS;
+      System.arraycopy(counts, 0, counts, 1, counts.length - 1);
+      counts[0] = 1;
+      receive(latest, latest);
+    }
+    assertCurve(latest, latest);
+  }
+
+  @Test
+  public void testPartialInterval() {
+    // Events added to the current interval across frames are only counted once.
+    counts[0] = 1;
+    receive(100000, 100000);
+    counts[0] = 2;
+    receive(100050, 100000);
+    counts[0] = 3;
+    receive(100100, 100000);
+    assertCurve(100100, 100000);
+  }
+
+  // The age of the center of mass of the curve, in samples.
+  private float centroid() {
+    float sum = 0;
+    float moment = 0;
+    for (int i = 0; i < curve.values.length; ++i) {
+      sum += curve.values[i];
+      moment += i * curve.values[i];
+    }
+    return moment / sum;
+  }
+
+  @Test
+  public void testMidInterval() {
+    // Between interval boundaries, the curve moves steadily toward older ages.
+    counts[0] = 1;
+    receive(100000, 100000);
+    float previous = -1;
+    for (long now = 102000; now <= 102000 + RESOLUTION_MS; now += RESOLUTION_MS / 4) {
+      receive(now, 100000);
+      float age = (now - 100000) / (float) RESOLUTION_MS;
+      float c = centroid();
+      assertEquals("now " + now, age, c, 0.1f);
+      assertTrue("now " + now, c > previous);
+      previous = c;
+    }
+    receive(102050, 100000);
+    assertCurve(102050, 100000);
+  }
+
+  @Test
+  public void testAgedOut() {
+    counts[0] = 1;
+    receive(100000, 100000);
+    // After two minutes, the event is no longer visible.
+    receive(220000, 100000);
+    assertTrue(curve.isEmpty());
+  }
+}
@@ -0,0 +1,104 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.ui;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CountryCacheTest {
+
+  // Counts the lookups that reach the underlying map.
+  private int misses;
+  private CountryMap map;
+
+  @Before
+  public void setUp() throws IOException {
+    misses = 0;
+    map = new CountryMap(ByteBuffer.wrap(CountryMapTest.V4), ByteBuffer.wrap(CountryMapTest.V6)) {
+      @Override
+      String getCountryCode(InetAddress address) {
+        ++misses;
+        return super.getCountryCode(address);
+      }
+    };
+  }
+
+  private static InetAddress ip(String address) throws IOException {
+    return InetAddress.getByName(address);
+  }
+
+  @Test
+  public void testLookup() throws IOException {
+    CountryCache cache = new CountryCache(map);
+    assertEquals("AU", cache.get(ip("1.0.0.1")).code);
+    assertEquals("CN", cache.get(ip("1.0.1.0")).code);
+    assertEquals("JP", cache.get(ip("2001:200::1")).code);
+    assertEquals("ZZ", cache.get(ip("224.0.0.1")).code);
+  }
+
+  @Test
+  public void testFlag() {
+    assertEquals("\uD83C\uDDE6\uD83C\uDDFA", CountryCache.getFlag("AU"));
+    assertEquals("\uD83C\uDDEF\uD83C\uDDF5", CountryCache.getFlag("JP"));
+  }
+
+  @Test
+  public void testHit() throws IOException {
+    CountryCache cache = new CountryCache(map);
+    CountryCache.Country first = cache.get(ip("1.0.0.1"));
+    // A different InetAddress object with the same address is a hit.
+    assertSame(first, cache.get(ip("1.0.0.1")));
+    assertEquals(1, misses);
+  }
+
+  @Test
+  public void testSharedCountry() throws IOException {
+    CountryCache cache = new CountryCache(map);
+    // Different addresses in the same country share one Country.
+    assertSame(cache.get(ip("1.0.1.0")), cache.get(ip("127.0.0.1")));
+    assertEquals(2, misses);
+  }
+
+  @Test
+  public void testFamilies() throws IOException {
+    CountryCache cache = new CountryCache(map);
+    // ::ffff:1.0.0.1 would be parsed as IPv4, so use an IPv4-compatible address, whose packed
+    // form ends with the same bytes as 1.0.0.1.
+    assertEquals("AU", cache.get(ip("1.0.0.1")).code);
+    assertEquals("ZZ", cache.get(ip("::1.0.0.1")).code);
+    assertEquals(2, misses);
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    CountryCache cache = new CountryCache(map, 2);
+    cache.get(ip("1.0.0.1"));
+    cache.get(ip("1.0.0.2"));
+    // Touch the first address so that the second is the least recently used.
+    cache.get(ip("1.0.0.1"));
+    cache.get(ip("1.0.0.3"));
+    assertEquals(3, misses);
+    cache.get(ip("1.0.0.1"));
+    assertEquals(3, misses);
+    cache.get(ip("1.0.0.2"));
+    assertEquals(4, misses);
+  }
+}
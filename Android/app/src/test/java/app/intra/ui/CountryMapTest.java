@@ -0,0 +1,136 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.ui;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class CountryMapTest {
+
+  // IPv4 table with two intervals per block.
+  static final byte[] V4 = {
+      'C', 'M', 'A', 'P',   // magic
+      1,                    // version
+      4,                    // key size
+      0, 2,                 // block size
+      0, 0, 0, 4,           // number of intervals
+      0, 3,                 // number of countries
+      'A', 'U', 'C', 'N', 'Z', 'Z',
+      // Index
+      0, 0, 0, 0,           // block 0 starts at 0.0.0.0
+      0, 0, 0, 0,           // at offset 0
+      1, 0, 1, 0,           // block 1 starts at 1.0.1.0
+      0, 0, 0, 6,           // at offset 6
+      // Block 0
+      2,                                            // 0.0.0.0: ZZ
+      (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x08,  // +0x01000000
+      0,                                            // 1.0.0.0: AU
+      // Block 1
+      1,                                                         // 1.0.1.0: CN
+      (byte) 0x80, (byte) 0xfe, (byte) 0xff, (byte) 0xf7, 0x0d,  // +0xdefeff00
+      2,                                                         // 224.0.0.0: ZZ
+  };
+
+  // IPv6 table, keyed by the upper 64 bits.
+  static final byte[] V6 = {
+      'C', 'M', 'A', 'P',   // magic
+      1,                    // version
+      8,                    // key size
+      0, 32,                // block size
+      0, 0, 0, 5,           // number of intervals
+      0, 4,                 // number of countries
+      'D', 'E', 'J', 'P', 'U', 'S', 'Z', 'Z',
+      // Index
+      0, 0, 0, 0, 0, 0, 0, 0,  // block 0 starts at ::
+      0, 0, 0, 0,              // at offset 0
+      // Block 0
+      3,                       // ::: ZZ
+      (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0xc0, (byte) 0xc0,
+      (byte) 0x80, 0x20,       // +0x2001020000000000
+      1,                       // 2001:200::: JP
+      (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10,  // +0x100000000
+      2,                       // 2001:201::: US
+      1,                       // +1
+      0,                       // 2001:201:0:1::: DE
+      (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xef, (byte) 0xbf, (byte) 0xbf,
+      (byte) 0xff, (byte) 0xdb, 0x01,  // +0xdbfefeffffffffff
+      3,                       // fc00::: ZZ
+  };
+
+  private static String lookup(CountryMap map, String address) throws IOException {
+    return map.getCountryCode(InetAddress.getByName(address));
+  }
+
+  @Test
+  public void testV4() throws IOException {
+    CountryMap map = new CountryMap(ByteBuffer.wrap(V4), null);
+    assertEquals("ZZ", lookup(map, "0.0.0.0"));
+    assertEquals("ZZ", lookup(map, "0.255.255.255"));
+    assertEquals("AU", lookup(map, "1.0.0.0"));
+    assertEquals("AU", lookup(map, "1.0.0.255"));
+    assertEquals("CN", lookup(map, "1.0.1.0"));
+    assertEquals("CN", lookup(map, "127.0.0.1"));
+    // Addresses above 128.0.0.0 must be compared as unsigned.
+    assertEquals("CN", lookup(map, "223.255.255.255"));
+    assertEquals("ZZ", lookup(map, "224.0.0.0"));
+    assertEquals("ZZ", lookup(map, "255.255.255.255"));
+    // No IPv6 table.
+    assertEquals("ZZ", lookup(map, "2001:200::1"));
+  }
+
+  @Test
+  public void testV6() throws IOException {
+    CountryMap map = new CountryMap(ByteBuffer.wrap(V4), ByteBuffer.wrap(V6));
+    assertEquals("ZZ", lookup(map, "::1"));
+    assertEquals("JP", lookup(map, "2001:200::"));
+    assertEquals("JP", lookup(map, "2001:200:ffff:ffff:ffff:ffff:ffff:ffff"));
+    assertEquals("US", lookup(map, "2001:201::1"));
+    assertEquals("DE", lookup(map, "2001:201:0:1::"));
+    assertEquals("DE", lookup(map, "2001:db8::1"));
+    // Addresses above 8000:: must be compared as unsigned.
+    assertEquals("DE", lookup(map, "fbff::1"));
+    assertEquals("ZZ", lookup(map, "fe80::1"));
+    assertEquals("AU", lookup(map, "1.0.0.1"));
+  }
+
+  @Test
+  public void testOffset() throws IOException {
+    // The table doesn't need to start at the beginning of the buffer.
+    ByteBuffer buffer = ByteBuffer.allocate(V4.length + 3);
+    buffer.position(3);
+    buffer.put(V4);
+    buffer.position(3);
+    CountryMap map = new CountryMap(buffer, null);
+    assertEquals("AU", lookup(map, "1.0.0.1"));
+    assertEquals("ZZ", lookup(map, "224.0.0.1"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncated() throws IOException {
+    new CountryMap(ByteBuffer.wrap(V4, 0, 30), null);
+  }
+
+  @Test(expected = IOException.class)
+  public void testBadFormat() throws IOException {
+    // The previous format: a bare list of 4-byte addresses and 2-byte country codes.
+    new CountryMap(ByteBuffer.wrap(new byte[]{0, 0, 0, 0, 'Z', 'Z', 1, 0, 0, 0, 'A', 'U'}),
+        null);
+  }
+}
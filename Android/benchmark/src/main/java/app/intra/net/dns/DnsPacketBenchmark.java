@@ -0,0 +1,270 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.net.dns;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the cost of parsing DNS packets the way the app does for every query.  Run with the
+ * GC profiler (the default for the jmh task) to see the bytes allocated per parse.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DnsPacketBenchmark {
+
+  private final byte[] query = {
+      -107, -6,  // [0-1]   query ID
+      1, 0,      // [2-3]   flags, RD=1
+      0, 1,      // [4-5]   QDCOUNT (number of queries) = 1
+      0, 0,      // [6-7]   ANCOUNT (number of answers) = 0
+      0, 0,      // [8-9]   NSCOUNT (number of authoritative answers) = 0
+      0, 0,      // [10-11] ARCOUNT (number of additional records) = 0
+      // Start of first query
+      5, 'm', 't', 'a', 'l', 'k',
+      6, 'g', 'o', 'o', 'g', 'l', 'e',
+      3, 'c', 'o', 'm',
+      0,  // null terminator of FQDN (DNS root)
+      0, 1,  // QTYPE = A
+      0, 1   // QCLASS = IN (Internet)
+  };
+
+  // Realistic response shapes, selected by the "shape" parameter:
+  //   cname: A CNAME chain typical of CDN-hosted names, ending in two A records.
+  //   soa: A CNAME chain followed by an SOA record, with nested compression pointers.
+  //   large: A large answer set, with every record name compressed.
+  @Param({"cname", "soa", "large"})
+  public String shape;
+
+  private byte[] response;
+
+  @Setup
+  public void setUp() throws ProtocolException {
+    switch (shape) {
+      case "cname":
+        response = new ResponseBuilder("www.example.com")
+            .cname("www.example.com.cdn.example.net")
+            .cname("e1234.a.cdn.example.net")
+            .cname("e1234.dscb.akamaiedge.net")
+            .address(new byte[]{93, (byte) 184, (byte) 216, 34})
+            .address(new byte[]{93, (byte) 184, (byte) 216, 35})
+            .build();
+        break;
+      case "soa":
+        response = new ResponseBuilder("cdn.krxd.net")
+            .cname("cdn-traffic-director.krxd.net")
+            .cname("cdn-fastly.krxd.net")
+            .cname("cdn-fastly.krxd.net.c.global-ssl.fastly.net")
+            .soa("ns1.fastly.net", "hostmaster.fastly.com")
+            .build();
+        break;
+      case "large":
+        ResponseBuilder builder = new ResponseBuilder("pool.ntp.example.org");
+        for (int i = 0; i < 32; ++i) {
+          builder.address(new byte[]{10, 0, (byte) (i >> 8), (byte) i});
+        }
+        for (int i = 0; i < 8; ++i) {
+          byte[] v6 = new byte[16];
+          v6[0] = 0x20;
+          v6[1] = 0x01;
+          v6[15] = (byte) i;
+          builder.address(v6);
+        }
+        response = builder.build();
+        break;
+      default:
+        throw new IllegalArgumentException(shape);
+    }
+    // Fail fast if the builder produced an invalid packet.
+    new DnsPacket(response).getResponseAddresses();
+  }
+
+  // The work done by GoIntraListener.onResponse for every query.  This doesn't depend on the
+  // "shape" parameter.
+  @Benchmark
+  public void parseQuery(Blackhole bh) throws ProtocolException {
+    DnsPacket packet = new DnsPacket(query);
+    bh.consume(packet.getQueryName());
+    bh.consume(packet.getQueryType());
+  }
+
+  // Validation alone, without materializing any fields.
+  @Benchmark
+  public DnsPacket parseResponse() throws ProtocolException {
+    return new DnsPacket(response);
+  }
+
+  // The work done when a history row is built for a response.
+  @Benchmark
+  public void parseResponseAddress(Blackhole bh) throws ProtocolException {
+    DnsPacket packet = new DnsPacket(response);
+    bh.consume(packet.getFirstResponseAddress());
+  }
+
+  /**
+   * Builds a response to an A query, in the style of a typical recursive resolver: each record
+   * name is a compression pointer to the previous record's target, and each target name
+   * compresses its suffix against names already in the packet.
+   */
+  private static class ResponseBuilder {
+    private static final int TTL = 300;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private int numAnswers = 0;
+    private int numAuthorities = 0;
+    // Offset of the name that the next record is about.
+    private int owner;
+
+    ResponseBuilder(String qname) {
+      out.write(0x12);
+      out.write(0x34);   // ID
+      out.write(0x81);
+      out.write(0x80);   // Flags: QR, RD, RA
+      writeShort(1);     // QDCOUNT
+      writeShort(0);     // ANCOUNT, patched by build()
+      writeShort(0);     // NSCOUNT, patched by build()
+      writeShort(0);     // ARCOUNT
+      owner = out.size();
+      writeName(qname);
+      writeShort(1);     // QTYPE = A
+      writeShort(1);     // QCLASS = IN
+    }
+
+    private void writeShort(int value) {
+      out.write(value >> 8);
+      out.write(value);
+    }
+
+    private void writeInt(int value) {
+      writeShort(value >>> 16);
+      writeShort(value);
+    }
+
+    private void writePointer(int offset) {
+      writeShort(0xC000 | offset);
+    }
+
+    // Writes |name|, replacing the longest suffix that already appears in the packet with a
+    // compression pointer.
+    private void writeName(String name) {
+      String[] labels = name.split("\\.");
+      byte[] packet = out.toByteArray();
+      for (int i = 0; i < labels.length; ++i) {
+        int suffix = find(packet, labels, i);
+        if (suffix >= 0) {
+          writePointer(suffix);
+          return;
+        }
+        out.write(labels[i].length());
+        for (char c : labels[i].toCharArray()) {
+          out.write(c);
+        }
+      }
+      out.write(0);
+    }
+
+    // Returns the offset of an uncompressed occurrence of labels[start:] in |packet|, or -1.
+    private static int find(byte[] packet, String[] labels, int start) {
+      StringBuilder wire = new StringBuilder();
+      for (int i = start; i < labels.length; ++i) {
+        wire.append((char) labels[i].length()).append(labels[i]);
+      }
+      wire.append((char) 0);
+      // Skip the header, which can't contain a name.
+      return new String(packet, StandardCharsets.ISO_8859_1).indexOf(wire.toString(), 12);
+    }
+
+    // Starts a record about the current owner name.
+    private void startRecord(int type, int rdlength) {
+      writePointer(owner);
+      writeShort(type);
+      writeShort(1);  // CLASS = IN
+      writeInt(TTL);
+      writeShort(rdlength);
+    }
+
+    // Sets the RDLENGTH of the record whose data starts at |rdataStart| and runs to the end of the
+    // packet.  This is needed for records containing names, whose length depends on how well
+    // they compress.
+    private void patchRdlength(int rdataStart) {
+      byte[] packet = out.toByteArray();
+      int rdlength = packet.length - rdataStart;
+      packet[rdataStart - 2] = (byte) (rdlength >> 8);
+      packet[rdataStart - 1] = (byte) rdlength;
+      out.reset();
+      out.write(packet, 0, packet.length);
+    }
+
+    ResponseBuilder cname(String target) {
+      startRecord(5, 0);
+      int rdataStart = out.size();
+      writeName(target);
+      patchRdlength(rdataStart);
+      owner = rdataStart;
+      ++numAnswers;
+      return this;
+    }
+
+    ResponseBuilder address(byte[] address) {
+      startRecord(address.length == 4 ? 1 : 28, address.length);
+      out.write(address, 0, address.length);
+      ++numAnswers;
+      return this;
+    }
+
+    ResponseBuilder soa(String mname, String rname) {
+      startRecord(6, 0);
+      int rdataStart = out.size();
+      writeName(mname);
+      writeName(rname);
+      writeInt(2024010100);  // SERIAL
+      writeInt(3600);        // REFRESH
+      writeInt(600);         // RETRY
+      writeInt(604800);      // EXPIRE
+      writeInt(30);          // MINIMUM
+      patchRdlength(rdataStart);
+      ++numAuthorities;
+      return this;
+    }
+
+    byte[] build() {
+      byte[] packet = out.toByteArray();
+      packet[6] = (byte) (numAnswers >> 8);
+      packet[7] = (byte) numAnswers;
+      packet[8] = (byte) (numAuthorities >> 8);
+      packet[9] = (byte) numAuthorities;
+      return packet;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.sys;
+
+import app.intra.net.dns.DnsPacket;
+import app.intra.net.doh.Transaction;
+import java.net.ProtocolException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the per-query bookkeeping in QueryTracker, alone and while the UI thread is reading
+ * the same data to draw the main screen.  Each group has its own log and simulated clock.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryLogBenchmark {
+
+  // The simulated query rate.
+  @Param({"10", "1000"})
+  public int qps;
+
+  private QueryLog log;
+  private DnsPacket query;
+
+  // Number of transactions recorded so far, which determines the simulated time.
+  private long count = 0;
+  // The simulated time of the most recent transaction.  Readers use it as their clock.
+  private volatile long now = 0;
+
+  @Setup
+  public void setUp() throws ProtocolException {
+    log = new QueryLog();
+    query = new DnsPacket(new byte[]{
+        -107, -6,  // [0-1]   query ID
+        1, 0,      // [2-3]   flags, RD=1
+        0, 1,      // [4-5]   QDCOUNT (number of queries) = 1
+        0, 0,      // [6-7]   ANCOUNT (number of answers) = 0
+        0, 0,      // [8-9]   NSCOUNT (number of authoritative answers) = 0
+        0, 0,      // [10-11] ARCOUNT (number of additional records) = 0
+        // Start of first query
+        5, 'm', 't', 'a', 'l', 'k',
+        6, 'g', 'o', 'o', 'g', 'l', 'e',
+        3, 'c', 'o', 'm',
+        0,  // null terminator of FQDN (DNS root)
+        0, 1,  // QTYPE = A
+        0, 1   // QCLASS = IN (Internet)
+    });
+  }
+
+  private Transaction nextTransaction() {
+    long time = count * 1000 / qps;
+    ++count;
+    Transaction transaction = new Transaction(query, time);
+    transaction.status = Transaction.Status.COMPLETE;
+    now = time;
+    return transaction;
+  }
+
+  // Baseline: the cost of building the Transaction that each recording benchmark records.
+  @Benchmark
+  @Group("newTransaction")
+  public Transaction newTransaction() {
+    return nextTransaction();
+  }
+
+  // The same work as newTransaction, plus recording the result, without any readers.
+  @Benchmark
+  @Group("record")
+  public void record() {
+    log.record(nextTransaction());
+  }
+
+  // Simulates the Go callback thread recording queries while the UI thread updates the
+  // queries-per-minute counter and draws the activity graph.
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(1)
+  public void contendedRecord() {
+    log.record(nextTransaction());
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(1)
+  public int contendedCount() {
+    return log.countQueriesSince(now - 60 * 1000);
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(1)
+  public void contendedShow(final Blackhole bh) {
+    log.showActivity(new ActivityReceiver() {
+      @Override
+      public void receive(long latest, int[] counts) {
+        // Visit every interval, as HistoryGraph does.
+        for (int count : counts) {
+          bh.consume(count);
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,147 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.ui;
+
+import app.intra.sys.ActivityReceiver;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of computing HistoryGraph's QPS curve, which happens on every animation frame.
+ * Each operation is one frame of a steady stream of queries, comparing ActivityCurve's incremental
+ * update with recomputing the whole curve on every frame, as HistoryGraph used to do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActivityCurveBenchmark {
+
+  // The query rate, which determines the number of events in the window.
+  @Param({"10", "100", "1000"})
+  public int qps;
+
+  private static final int RESOLUTION_MS = ActivityReceiver.RESOLUTION_MS;
+  private static final int FRAME_MS = 16;  // 60 frames per second
+
+  private final ActivityCurve incremental = new ActivityCurve();
+  private final FullCurve full = new FullCurve();
+
+  // The simulated time, and the activity histogram in the form provided by QueryTracker.
+  private long now;
+  private long latest;
+  private final int[] counts = new int[ActivityReceiver.NUM_BUCKETS];
+
+  @Setup
+  public void setUp() {
+    // Start with a full minute of history.
+    now = 1000 * 1000;
+    latest = 0;
+    Arrays.fill(counts, 0);
+    advance();
+  }
+
+  // Returns the number of queries before time |t|.
+  private long queriesBefore(long t) {
+    return t * qps / 1000;
+  }
+
+  // Moves to the next frame, updating the histogram with the queries since the last one.
+  private void advance() {
+    now += FRAME_MS;
+    long start = now / RESOLUTION_MS * RESOLUTION_MS;
+    int elapsed = (int) Math.min(counts.length, (start - latest) / RESOLUTION_MS);
+    System.arraycopy(counts, 0, counts, elapsed, counts.length - elapsed);
+    latest = start;
+    // Recount the new intervals, and the one that was current on the last frame.
+    for (int b = 0; b <= elapsed && b < counts.length; ++b) {
+      long intervalStart = latest - (long) b * RESOLUTION_MS;
+      long intervalEnd = Math.min(now + 1, intervalStart + RESOLUTION_MS);
+      counts[b] = (int) (queriesBefore(intervalEnd) - queriesBefore(intervalStart));
+    }
+  }
+
+  @Benchmark
+  public float[] incremental() {
+    advance();
+    incremental.setNow(now);
+    incremental.receive(latest, counts);
+    return incremental.values;
+  }
+
+  @Benchmark
+  public float[] full() {
+    advance();
+    full.now = now;
+    full.receive(latest, counts);
+    return full.values;
+  }
+
+  /**
+   * The previous implementation of ActivityCurve, which convolves every non-empty interval with
+   * its gaussian on every frame.
+   */
+  private static class FullCurve implements ActivityReceiver {
+    private static final int MIN_VARIANCE = 4;
+
+    private final int range = ActivityCurve.WINDOW_MS / RESOLUTION_MS;
+    final float[] values = new float[range];
+    long now;
+
+    private static float gaussian(float mu, float inverseSigma, int x) {
+      float z = (x - mu) * inverseSigma;
+      return ((float) Math.exp(-z * z)) * inverseSigma;
+    }
+
+    @Override
+    public void receive(long latest, int[] counts) {
+      Arrays.fill(values, 0.0f);
+      float scale = 1.0f / RESOLUTION_MS;
+      for (int b = 0; b < counts.length; ++b) {
+        int count = counts[b];
+        if (count == 0) {
+          continue;
+        }
+        long age = Math.max(0, now - (latest - (long) b * RESOLUTION_MS) - RESOLUTION_MS / 2);
+        float e = age * scale;
+        float sigma = (float) Math.sqrt(e + MIN_VARIANCE);
+        float support = 2.7f * sigma;
+        int left = Math.max(0, (int) (e - support));
+        if (left > range) {
+          continue;
+        }
+        int right = Math.min(range, (int) (e + support));
+        float inverseSigma = 1.0f / sigma;
+        for (int i = left; i < right; ++i) {
+          values[i] += count * gaussian(e, inverseSigma, i);
+        }
+      }
+    }
+  }
+}
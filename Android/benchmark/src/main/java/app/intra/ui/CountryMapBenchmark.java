@@ -0,0 +1,80 @@
+/*
+Copyright 2024 Jigsaw Operations LLC
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+https://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package app.intra.ui;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures IP-to-country lookups, which run twice for each row of the query history.
+ * The databases are read from the directory named by the "intra.assets" system property.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CountryMapBenchmark {
+
+  // Number of distinct addresses to look up.  This is large enough to defeat the CPU's caches.
+  private static final int NUM_ADDRESSES = 4096;
+
+  private CountryMap countryMap;
+  private final InetAddress[] addresses = new InetAddress[NUM_ADDRESSES];
+  private int next = 0;
+
+  @Setup
+  public void setUp() throws IOException {
+    String assets = System.getProperty("intra.assets", "app/src/main/assets");
+    // Map the database, as the app does.
+    try (RandomAccessFile v4 = new RandomAccessFile(assets + "/" + CountryMap.V4_ASSET, "r")) {
+      countryMap = new CountryMap(
+          v4.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, v4.length()), null);
+    }
+    Random random = new Random(0);
+    for (int i = 0; i < addresses.length; ++i) {
+      byte[] ip = new byte[4];
+      random.nextBytes(ip);
+      try {
+        addresses[i] = InetAddress.getByAddress(ip);
+      } catch (UnknownHostException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  @Benchmark
+  public String getCountryCode() {
+    next = (next + 1) % addresses.length;
+    return countryMap.getCountryCode(addresses[next]);
+  }
+}
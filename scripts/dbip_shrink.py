@@ -2,25 +2,126 @@
 import csv
 import gzip
 import ipaddress
+import struct
 import sys
 
 """
 Usage:
 Download the latest IP-to-country database from https://db-ip.com/db/download/country
 $ python dbip_shrink.py dbip-country-[date].csv.gz dbip
-Writes a packed binary file suitable for bisection search.
+Writes compact interval tables for IPv4 and IPv6, which are read by CountryMap.java.
 Thanks to DB-IP.com for offering a suitable database under a CC-BY license.
+
+Each table is a sorted list of (start, country) intervals.  Adjacent intervals with the same
+country are merged, and addresses not covered by the database map to "ZZ".  IPv4 intervals are
+keyed by the whole address, and IPv6 intervals by the upper 64 bits, which is the finest
+granularity that matters for routing.
+
+The intervals are grouped into blocks of BLOCK_SIZE.  An index of each block's first start and
+offset allows a binary search, after which the block is scanned linearly.  Within a block, each
+start is stored as a varint delta from the previous one, so most entries take 3 bytes.
+
+Format (all integers big-endian):
+  magic: b'CMAP'
+  version: u8 = 1
+  key size in bytes: u8 (4 for IPv4, 8 for IPv6)
+  BLOCK_SIZE: u16
+  number of intervals: u32
+  number of countries: u16
+  countries: 2 ASCII bytes each
+  index: for each block, the first start (key size) and the offset of its data (u32)
+  data: for each interval, the country's index (u8), preceded by the start's delta from the
+        previous interval (unsigned LEB128 varint) unless the interval is first in its block.
 """
 
-out_prefix = sys.argv[2]
+MAGIC = b'CMAP'
+VERSION = 1
+BLOCK_SIZE = 16
+UNKNOWN = 'ZZ'
 
-with open(out_prefix + '.v4', 'wb') as v4file, \
-        open(out_prefix + '.v6', 'wb') as v6file, \
-        gzip.open(sys.argv[1], mode='rt') as infile:
 
-    for start, end, country in csv.reader(infile):
-        addr = ipaddress.ip_address(start)
-        file = v4file if addr.version == 4 else v6file
-        file.write(addr.packed)
+def varint(n):
+    out = bytearray()
+    while n >= 0x80:
+        out.append((n & 0x7F) | 0x80)
+        n >>= 7
+    out.append(n)
+    return bytes(out)
+
+
+def coalesce(intervals):
+    """Merges adjacent intervals with the same country."""
+    merged = []
+    for start, country in intervals:
+        if merged and merged[-1][1] == country:
+            continue
+        merged.append((start, country))
+    return merged
+
+
+def write_table(intervals, key_size, file):
+    """Writes sorted (start, country) pairs in the format described above."""
+    intervals = coalesce(intervals)
+    countries = sorted(set(country for _, country in intervals))
+    if len(countries) > 256:
+        raise ValueError('Too many countries')
+    country_index = {country: i for i, country in enumerate(countries)}
+    key_format = '>I' if key_size == 4 else '>Q'
+
+    index = bytearray()
+    data = bytearray()
+    for i, (start, country) in enumerate(intervals):
+        if i % BLOCK_SIZE == 0:
+            index += struct.pack(key_format, start)
+            index += struct.pack('>I', len(data))
+        else:
+            data += varint(start - intervals[i - 1][0])
+        data.append(country_index[country])
+
+    file.write(MAGIC)
+    file.write(struct.pack('>BBHIH', VERSION, key_size, BLOCK_SIZE, len(intervals),
+                           len(countries)))
+    for country in countries:
         file.write(bytes(country, 'us-ascii'))
-        
+    file.write(index)
+    file.write(data)
+
+
+def to_key(addr, key_size):
+    """Returns the upper key_size bytes of addr, rounded up."""
+    shift = addr.max_prefixlen - 8 * key_size
+    return (int(addr) + (1 << shift) - 1) >> shift
+
+
+def read_csv(infile):
+    """Returns lists of (start, country) intervals for IPv4 and IPv6."""
+    tables = {4: [], 6: []}
+    key_sizes = {4: 4, 6: 8}
+    ends = {4: -1, 6: -1}
+    for start, end, country in csv.reader(infile):
+        start = ipaddress.ip_address(start)
+        end = ipaddress.ip_address(end)
+        version = start.version
+        key_size = key_sizes[version]
+        shift = start.max_prefixlen - 8 * key_size
+        first = to_key(start, key_size)
+        last = int(end) >> shift
+        if first > last:
+            # This interval doesn't contain the start of any key.
+            continue
+        if first > ends[version] + 1:
+            # Mark the gap since the previous interval as unknown.
+            tables[version].append((ends[version] + 1, UNKNOWN))
+        tables[version].append((first, country))
+        ends[version] = last
+    return tables[4], tables[6]
+
+
+if __name__ == '__main__':
+    out_prefix = sys.argv[2]
+    with gzip.open(sys.argv[1], mode='rt') as infile:
+        v4, v6 = read_csv(infile)
+    with open(out_prefix + '.v4', 'wb') as v4file:
+        write_table(v4, 4, v4file)
+    with open(out_prefix + '.v6', 'wb') as v6file:
+        write_table(v6, 8, v6file)